@@ -1,5 +1,6 @@
 package com.glenfordham.utils.process;
 
+import java.util.List;
 
 /**
  * ProcessWrapper wraps a Process class in order to add auto stream closing behaviour.
@@ -27,7 +28,18 @@ public class ProcessWrapper implements AutoCloseable {
     }
 
     /**
-     * Closes all streams and ensures the process is terminated.
+     * Forcibly terminates the process and every process it has started, such as the children of a shell which runs a
+     * command line. The descendants are found before the process is terminated, as they are no longer its descendants
+     * once it has exited.
+     */
+    public void destroyTree() {
+        List<ProcessHandle> descendants = process.descendants().toList();
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
+
+    /**
+     * Closes all streams and ensures the process, and any process it has started, is terminated.
      */
     @Override
     public void close() {
@@ -41,7 +53,9 @@ public class ProcessWrapper implements AutoCloseable {
             process.getInputStream().close();
         } catch (Exception ignore) {}
         try {
+            List<ProcessHandle> descendants = process.descendants().toList();
             process.destroy();
+            descendants.forEach(ProcessHandle::destroy);
         } catch (Exception ignore) {}
     }
 
@@ -8,6 +8,7 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The CommandLine class represents the hosts' Command Prompt or Terminal.
@@ -29,6 +30,19 @@ public class CommandLine {
      * @throws CmdLineException If an error occurs when attempting to invoke the process.
      */
     public String exec() throws CmdLineException {
+        return exec(0);
+    }
+
+    /**
+     * Executes a new process with the provided command-line, waiting a limited time for it to complete. If it does not
+     * complete in time, the process and every process it has started are terminated.
+     *
+     * @param timeout Time to wait for the process to complete in milliseconds, or 0 to wait with no limit.
+     * @return A String output of the command line process.
+     * @throws CmdLineException If an error occurs when attempting to invoke the process, or it does not complete in
+     *                          time.
+     */
+    public String exec(long timeout) throws CmdLineException {
         if (commandLineToRun.isEmpty()) {
             throw new CmdLineException("Unable to invoke empty command");
         }
@@ -47,6 +61,10 @@ public class CommandLine {
         // Wait for the process to complete and log error if an error code is returned
         logger.debug("Executing process: {}", Arrays.toString(osSafeCmdLine));
         try (ProcessWrapper processWrapper = new ProcessWrapper(new ProcessBuilder(osSafeCmdLine).start()))  {
+            if (timeout > 0 && !processWrapper.getProcess().waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                processWrapper.destroyTree();
+                throw new CmdLineException(String.format("Process did not complete within %d ms", timeout));
+            }
             final int processReturnValue = processWrapper.getProcess().waitFor();
             logger.debug("Process returned: {}", processReturnValue);
             if (processReturnValue != 0) {
@@ -34,7 +34,15 @@ public class Application {
                     System.exit(1);
                 }
 
-                TomcatServer.start(configProperties);
+                // A training run starts the application again in a JVM which records the classes it loads
+                if (configProperties.isPropertySet(Arguments.TRAINING_RUN)) {
+                    if (!TrainingRun.isRecording()) {
+                        System.exit(TrainingRun.createArchive(configProperties.getPropertyValue(Arguments.TRAINING_RUN), args));
+                    }
+                    System.exit(Server.start(configProperties) ? 0 : 1);
+                }
+
+                Server.start(configProperties);
             }
         } catch (Exception e) {
              logger.error(e.getMessage(), e);
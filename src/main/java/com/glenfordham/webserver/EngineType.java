@@ -0,0 +1,57 @@
+package com.glenfordham.webserver;
+
+/**
+ * Contains all supported server engines.
+ */
+enum EngineType {
+
+    TOMCAT(
+            "tomcat"
+    ),
+    LIGHTWEIGHT(
+            "lightweight"
+    );
+
+    private final String text;
+
+    EngineType(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Gets the name of the engine
+     *
+     * @return The engine name.
+     */
+    String get() {
+        return text;
+    }
+
+    /**
+     * Creates a new instance of the engine. Engine classes are only loaded when created, so the Tomcat classes are
+     * not loaded when the lightweight engine is used.
+     *
+     * @return A new ServerEngine.
+     */
+    ServerEngine create() {
+        return switch (this) {
+            case TOMCAT -> new TomcatEngine();
+            case LIGHTWEIGHT -> new LightweightEngine();
+        };
+    }
+
+    /**
+     * Gets the Enum form of the passed in text
+     *
+     * @param text String to be translated to an Enum.
+     * @return The Enum - returns null on failure to match on an Enum.
+     */
+    static EngineType get(String text) {
+        for (EngineType engineType : EngineType.values()) {
+            if (text.equalsIgnoreCase(engineType.get())) {
+                return engineType;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,306 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.request.RequestPipeline;
+import com.glenfordham.webserver.request.StaticResponse;
+import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A connection to the lightweight engine. While waiting for a request, the connection is parked on the engine's
+ * selector and holds no thread. Once the client sends data, a connection thread reads requests one at a time, and hands
+ * each to the RequestPipeline, waiting for its response to complete before the next request is read. When no further
+ * request has arrived, the connection is parked again. Idle connections are closed by the engine.
+ * <p>
+ * Only the request line and the Connection, Content-Length and Transfer-Encoding headers are used. Request bodies are
+ * not used, and are skipped. Requests with a chunked or large body are answered, and then the connection is closed.
+ * Requests with both Content-Length and Transfer-Encoding headers, or with an invalid or conflicting Content-Length,
+ * are rejected and the connection is closed, as is done by Tomcat.
+ */
+final class LightweightConnection implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Matches the default maximum HTTP header size of Tomcat
+    private static final int MAX_HEADER_SIZE = 8192;
+    // Largest request body which is skipped, rather than closing the connection
+    private static final int MAX_SKIPPED_BODY = 8192;
+    private static final String ROOT_PATH = "/";
+
+    private final LightweightEngine engine;
+    private final SocketChannel channel;
+    private final RequestPipeline pipeline;
+    private final boolean preAuthenticated;
+    private final int maxKeepAliveRequests;
+    private final InputStream input;
+    private final OutputStream output;
+    // Clients on the Unix domain socket have no address, and are not rate limited
+    private final String clientAddress;
+    // Only used by the connection thread, which hands the connection over through the engine's selector
+    private int requests = 0;
+    // Time the connection started waiting for a request, or 0 while a request is being served
+    private volatile long idleSince = System.nanoTime();
+
+    /**
+     * Creates a connection.
+     *
+     * @param engine               The engine which accepted the connection.
+     * @param channel              The connected channel.
+     * @param pipeline             RequestPipeline which runs the requests.
+     * @param preAuthenticated     True if requests on the connection need no authentication token.
+     * @param maxKeepAliveRequests Number of requests before the connection is closed, or -1 for no limit.
+     * @throws IOException If the address of the client cannot be read.
+     */
+    LightweightConnection(LightweightEngine engine, SocketChannel channel, RequestPipeline pipeline, boolean preAuthenticated,
+                          int maxKeepAliveRequests) throws IOException {
+        this.engine = engine;
+        this.channel = channel;
+        this.pipeline = pipeline;
+        this.preAuthenticated = preAuthenticated;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        // The streams are only read and written while the channel is in blocking mode, on a connection thread
+        input = new BufferedInputStream(Channels.newInputStream(channel));
+        output = new BufferedOutputStream(Channels.newOutputStream(channel));
+        clientAddress = preAuthenticated ? null : ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+    }
+
+    /**
+     * Gets the channel of the connection, to park it on the engine's selector.
+     *
+     * @return The connected channel.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Serves the requests the client has sent, then parks the connection on the engine's selector to wait for the
+     * next. The connection is closed when the client closes it, or the maximum number of keep-alive requests is
+     * reached.
+     */
+    @Override
+    public void run() {
+        boolean parked = false;
+        try {
+            while (true) {
+                String head = readHead(input);
+                if (head == null) {
+                    return;
+                }
+                idleSince = 0;
+                requests++;
+                if (!serve(head, clientAddress, input, output, maxKeepAliveRequests < 0 || requests < maxKeepAliveRequests)) {
+                    return;
+                }
+                idleSince = System.nanoTime();
+                // A request the client has already sent, such as a pipelined request, is read straight away
+                if (input.available() == 0) {
+                    engine.park(this);
+                    parked = true;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client closed the connection, or the connection was closed while idle
+            logger.debug("Connection closed. {}", e.getMessage());
+        } finally {
+            if (!parked) {
+                close();
+                engine.closed(this);
+            }
+        }
+    }
+
+    /**
+     * Checks if the connection has been waiting for a request since before a point in time.
+     *
+     * @param time Point in time, from System.nanoTime().
+     * @return True if the connection is idle, and has been since before the time.
+     */
+    boolean isIdleSince(long time) {
+        long since = idleSince;
+        return since != 0 && since - time < 0;
+    }
+
+    /**
+     * Closes the connection. A connection thread waiting for a request stops waiting.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close connection cleanly. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves a request, and waits for its response to complete.
+     *
+     * @param head          The request line and headers.
+     * @param clientAddress Address of the client, or null if it connected on the Unix domain socket.
+     * @param input         Stream of the connection, positioned at the request body.
+     * @param output        Stream of the connection, for the response.
+     * @param keepAlive     False if the connection is to be closed after this request.
+     * @return True if the connection can be used for another request.
+     * @throws IOException If the request body cannot be skipped, or a response cannot be written.
+     */
+    private boolean serve(String head, String clientAddress, InputStream input, OutputStream output, boolean keepAlive) throws IOException {
+        String[] lines = head.split("\r?\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            send(StaticResponse.BAD_REQUEST, new LightweightExchange(output, false, false, false));
+            return false;
+        }
+        String method = requestLine[0];
+        String target = requestLine[1];
+        boolean http10 = "HTTP/1.0".equals(requestLine[2]);
+
+        // HTTP/1.1 connections are kept alive unless the client asks to close them, and HTTP/1.0 connections are not
+        // unless the client asks to keep them alive
+        boolean clientKeepAlive = !http10;
+        long contentLength = 0;
+        boolean contentLengthSet = false;
+        boolean invalidContentLength = false;
+        boolean transferEncoding = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            switch (name) {
+                case "connection" -> {
+                    String connection = value.toLowerCase(Locale.ROOT);
+                    if (connection.contains("close")) {
+                        clientKeepAlive = false;
+                    } else if (connection.contains("keep-alive")) {
+                        clientKeepAlive = true;
+                    }
+                }
+                case "content-length" -> {
+                    long length = parseContentLength(value);
+                    if (length < 0 || (contentLengthSet && length != contentLength)) {
+                        invalidContentLength = true;
+                    }
+                    contentLength = length;
+                    contentLengthSet = true;
+                }
+                case "transfer-encoding" -> transferEncoding = true;
+                default -> {
+                    // Other headers are not used
+                }
+            }
+        }
+        // A body whose length is ambiguous could be read differently by a proxy in front of the server, so that a second
+        // request hidden in it is served as though it came from the proxy
+        if (invalidContentLength || (transferEncoding && contentLengthSet)) {
+            send(StaticResponse.BAD_REQUEST, new LightweightExchange(output, false, http10, false));
+            return false;
+        }
+        // The length of a chunked body is not known, so the connection cannot be reused
+        keepAlive = keepAlive && clientKeepAlive && !transferEncoding && contentLength <= MAX_SKIPPED_BODY;
+        if (keepAlive && contentLength > 0) {
+            input.skipNBytes(contentLength);
+        }
+
+        boolean headRequest = "HEAD".equals(method);
+        LightweightExchange exchange = new LightweightExchange(output, headRequest, http10, keepAlive);
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        if (!"GET".equals(method) && !headRequest) {
+            exchange.setHeader("Allow", "GET, HEAD");
+            send(StaticResponse.METHOD_NOT_ALLOWED, exchange);
+        } else if (!ROOT_PATH.equals(path)) {
+            send(StaticResponse.NOT_FOUND, exchange);
+        } else {
+            // The raw query string is parsed by ParameterMap, the same as with the Tomcat engine
+            pipeline.submit(new ParameterMap(queryStart < 0 ? null : target.substring(queryStart + 1)), clientAddress, preAuthenticated,
+                    exchange);
+        }
+        return exchange.awaitCompletion() && keepAlive;
+    }
+
+    /**
+     * Sends a static response, and completes the exchange.
+     *
+     * @param staticResponse The StaticResponse to send.
+     * @param exchange       Exchange of the request.
+     * @throws IOException If the response cannot be written.
+     */
+    private static void send(StaticResponse staticResponse, LightweightExchange exchange) throws IOException {
+        try {
+            staticResponse.send(exchange);
+        } finally {
+            exchange.complete();
+        }
+    }
+
+    /**
+     * Parses a Content-Length header. A list of lengths is accepted if they are all the same, as happens when a proxy
+     * combines repeated headers.
+     *
+     * @param value Value of the header.
+     * @return The length, or -1 if the value is not a valid length, or lists different lengths.
+     */
+    private static long parseContentLength(String value) {
+        long length = -1;
+        for (String element : value.split(",", -1)) {
+            String digits = element.trim();
+            // Digits only, as Long.parseLong would also accept a sign. Longer values could not be skipped anyway
+            if (digits.isEmpty() || digits.length() > 18 || !digits.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                return -1;
+            }
+            long next = Long.parseLong(digits);
+            if (length >= 0 && next != length) {
+                return -1;
+            }
+            length = next;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the request line and headers of the next request, up to the empty line which ends them. Empty lines
+     * before the request line are skipped.
+     *
+     * @param input Stream of the connection.
+     * @return The request line and headers, or null if the client closed the connection before sending a request.
+     * @throws IOException If the connection is closed part way through, or the headers are too large.
+     */
+    private static String readHead(InputStream input) throws IOException {
+        byte[] head = new byte[MAX_HEADER_SIZE];
+        int length = 0;
+        while (true) {
+            int next = input.read();
+            if (next == -1) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new IOException("Connection closed part way through request headers");
+            }
+            if (length == 0 && (next == '\r' || next == '\n')) {
+                continue;
+            }
+            if (length == head.length) {
+                throw new IOException("Request headers are larger than " + MAX_HEADER_SIZE + " bytes");
+            }
+            head[length++] = (byte) next;
+            if (next == '\n' && length >= 2
+                    && (head[length - 2] == '\n' || (length >= 3 && head[length - 2] == '\r' && head[length - 3] == '\n'))) {
+                return new String(head, 0, length, StandardCharsets.ISO_8859_1).trim();
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.concurrent.PinningMonitor;
+import com.glenfordham.webserver.concurrent.VirtualThreads;
+import com.glenfordham.webserver.config.Arguments;
+import com.glenfordham.webserver.config.ConfigProperties;
+import com.glenfordham.webserver.request.RateLimiter;
+import com.glenfordham.webserver.request.RequestPipeline;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server engine, for hosts where the memory and startup time of Tomcat matter. It only does what
+ * the Automation Server needs: GET and HEAD requests to the root path, with keep-alive connections, handed to the same
+ * RequestPipeline as the Tomcat engine so that requests get the same responses.
+ * <p>
+ * Each listener has an acceptor thread. Connections waiting for a request are parked on a selector, watched by a single
+ * poller thread, so that idle keep-alive connections hold no thread. Once a client sends data, its connection is
+ * served by a connection thread, using blocking I/O, and parked again when no further request has arrived. Connection
+ * threads are virtual threads when virtual thread mode is selected, otherwise a pool of up to the maximum number of
+ * connector threads, with a queue of ready connections; connections are closed when both are full. Idle connections
+ * are closed after the keep-alive timeout. HTTP/2 is not supported.
+ */
+final class LightweightEngine implements ServerEngine {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // How often idle connections are checked for, in milliseconds
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    // How long idle connector threads are kept, in seconds
+    private static final long THREAD_KEEP_ALIVE = 60;
+
+    private final Set<LightweightConnection> connections = ConcurrentHashMap.newKeySet();
+    // Connections to register with the selector. Only the poller thread registers channels, as registering blocks
+    // while the selector is selecting
+    private final Queue<LightweightConnection> parking = new ConcurrentLinkedQueue<>();
+    private final List<ServerSocketChannel> listeners = new ArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private RequestPipeline pipeline = null;
+    private ExecutorService connectionExecutor = null;
+    private ScheduledExecutorService idleChecker = null;
+    private Selector selector = null;
+    private Path socketPath = null;
+    private int port = 0;
+    private long keepAliveTimeout = 0;
+    private int maxKeepAliveRequests = 0;
+    private volatile boolean running = false;
+
+    /**
+     * Starts the engine. The request pipeline is initialised first, so config.xml is loaded and warmed up before the
+     * listeners are opened and any request is accepted. The time taken by each startup phase is logged.
+     *
+     * @param configProperties Application configuration.
+     * @param trainingRun      True if the engine is started for a training run, so listens on any free port, and not
+     *                         on its Unix domain socket.
+     * @throws IOException If a listener cannot be opened.
+     */
+    @Override
+    public void start(ConfigProperties configProperties, boolean trainingRun) throws IOException {
+        long startTime = System.nanoTime();
+        keepAliveTimeout = configProperties.getPropertyValueAsInt(Arguments.KEEP_ALIVE_TIMEOUT);
+        maxKeepAliveRequests = configProperties.getPropertyValueAsInt(Arguments.MAX_KEEP_ALIVE_REQUESTS);
+        boolean virtualThreads = createConnectionExecutor(configProperties);
+        if (configProperties.isPropertySet(Arguments.HTTP2)) {
+            logger.warn("HTTP/2 is not supported by the lightweight engine, ignoring");
+        }
+
+        // Synthetic requests of a training run arrive quickly, and some deliberately fail authentication
+        pipeline = new RequestPipeline(
+                configProperties.getPropertyValue(Arguments.CONFIG_FILE),
+                configProperties.getPropertyValue(Arguments.CONFIG_CACHE),
+                configProperties.isPropertySet(Arguments.CONFIG_RELOAD),
+                configProperties.isPropertySet(Arguments.DEBUG),
+                configProperties.isPropertySet(Arguments.WARM_UP),
+                virtualThreads,
+                configProperties.getPropertyValueAsInt(Arguments.HANDLER_THREADS),
+                new RateLimiter(
+                        trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.RATE_LIMIT),
+                        trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.AUTH_FAILURE_LIMIT),
+                        configProperties.getPropertyValueAsInt(Arguments.LOCKOUT_TIME)),
+                configProperties.getPropertyValueAsInt(Arguments.TARGET_DELAY),
+                configProperties.getPropertyValueAsInt(Arguments.REQUEST_TIMEOUT));
+        pipeline.init();
+        long pipelineTime = System.nanoTime();
+
+        int acceptCount = configProperties.getPropertyValueAsInt(Arguments.ACCEPT_COUNT);
+        running = true;
+        selector = Selector.open();
+        Thread poller = new Thread(this::poll, "http-poller");
+        poller.setDaemon(true);
+        poller.start();
+        ServerSocketChannel tcpListener = ServerSocketChannel.open();
+        listeners.add(tcpListener);
+        tcpListener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        tcpListener.bind(new InetSocketAddress(trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.PORT)), acceptCount);
+        port = ((InetSocketAddress) tcpListener.getLocalAddress()).getPort();
+        startAcceptor(tcpListener, false, "http-acceptor");
+        logger.info("Listening port: {}", port);
+
+        // A training run may run alongside a running server, so does not listen on its socket
+        if (configProperties.isPropertySet(Arguments.UNIX_SOCKET) && !trainingRun) {
+            socketPath = Path.of(configProperties.getPropertyValue(Arguments.UNIX_SOCKET)).toAbsolutePath();
+            UnixSocketFiles.removeStale(socketPath);
+            ServerSocketChannel unixListener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            listeners.add(unixListener);
+            unixListener.bind(UnixDomainSocketAddress.of(socketPath), acceptCount);
+            String permissions = configProperties.getPropertyValue(Arguments.UNIX_SOCKET_PERMISSIONS);
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString(permissions));
+            startAcceptor(unixListener, true, "http-acceptor-unix");
+            logger.info("Listening Unix domain socket: {}, permissions {}", socketPath, permissions);
+        }
+
+        idleChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-idle-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        idleChecker.scheduleWithFixedDelay(this::closeIdleConnections, IDLE_CHECK_INTERVAL, IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        logger.info("Connector accept count: {}", acceptCount);
+        logger.info("Connector keep-alive: timeout {} ms, max {} requests", keepAliveTimeout, maxKeepAliveRequests);
+
+        long endTime = System.nanoTime();
+        logger.info("Startup timings: request pipeline {} ms, listeners {} ms, total {} ms ({} ms since JVM start)",
+                (pipelineTime - startTime) / 1_000_000,
+                (endTime - pipelineTime) / 1_000_000,
+                (endTime - startTime) / 1_000_000,
+                ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void await() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes open connections, and closes the request pipeline.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close listener cleanly. {}", e.getMessage());
+            }
+        }
+        if (socketPath != null) {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException e) {
+                logger.debug("Unable to remove Unix domain socket {}. {}", socketPath, e.getMessage());
+            }
+        }
+        if (idleChecker != null) {
+            idleChecker.shutdownNow();
+        }
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close selector cleanly. {}", e.getMessage());
+            }
+        }
+        connections.forEach(LightweightConnection::close);
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown();
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * Parks a connection on the selector until the client sends data, so that it holds no connection thread while it
+     * waits for a request.
+     *
+     * @param connection The connection.
+     * @throws IOException If the connection is closed.
+     */
+    void park(LightweightConnection connection) throws IOException {
+        connection.getChannel().configureBlocking(false);
+        parking.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Removes a connection once it is closed.
+     *
+     * @param connection The connection.
+     */
+    void closed(LightweightConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Starts the thread which accepts connections on a listener, and hands each connection to a connection thread.
+     *
+     * @param listener         The listener.
+     * @param preAuthenticated True if requests on the listener need no authentication token.
+     * @param threadName       Name of the acceptor thread.
+     */
+    private void startAcceptor(ServerSocketChannel listener, boolean preAuthenticated, String threadName) {
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                SocketChannel channel;
+                try {
+                    channel = listener.accept();
+                } catch (ClosedChannelException e) {
+                    // The engine is stopping
+                    return;
+                } catch (IOException e) {
+                    logger.warn("Unable to accept connection. {}", e.getMessage());
+                    continue;
+                }
+                try {
+                    if (!preAuthenticated) {
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    }
+                    LightweightConnection connection = new LightweightConnection(this, channel, pipeline, preAuthenticated,
+                            maxKeepAliveRequests);
+                    // Registered so it can be closed when idle or when the engine is stopped
+                    connections.add(connection);
+                    park(connection);
+                } catch (IOException e) {
+                    logger.debug("Unable to open connection. {}", e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeException) {
+                        logger.debug("Unable to close connection cleanly. {}", closeException.getMessage());
+                    }
+                }
+            }
+        }, threadName);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Runs the poller thread, which registers parked connections with the selector, and hands each connection whose
+     * client has sent data to a connection thread.
+     */
+    private void poll() {
+        List<LightweightConnection> ready = new ArrayList<>();
+        while (running) {
+            try {
+                LightweightConnection parked;
+                while ((parked = parking.poll()) != null) {
+                    try {
+                        parked.getChannel().register(selector, SelectionKey.OP_READ, parked);
+                    } catch (ClosedChannelException e) {
+                        // Closed while idle, or by the engine stopping
+                        closed(parked);
+                    }
+                }
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    key.cancel();
+                    ready.add((LightweightConnection) key.attachment());
+                }
+                selector.selectedKeys().clear();
+                // A channel cannot return to blocking mode until its cancelled key is removed by the next selection
+                selector.selectNow();
+                ready.forEach(this::resume);
+                ready.clear();
+            } catch (ClosedSelectorException e) {
+                // The engine is stopping
+                return;
+            } catch (IOException e) {
+                logger.warn("Unable to wait for connections. {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands a connection whose client has sent data to a connection thread. The connection is closed if all connector
+     * threads are busy.
+     *
+     * @param connection The connection.
+     */
+    private void resume(LightweightConnection connection) {
+        try {
+            connection.getChannel().configureBlocking(true);
+            connectionExecutor.execute(connection);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Connection closed, all connector threads are busy");
+            connection.close();
+            closed(connection);
+        } catch (IOException e) {
+            // Closed while idle, or by the engine stopping
+            logger.debug("Connection closed. {}", e.getMessage());
+            connection.close();
+            closed(connection);
+        }
+    }
+
+    /**
+     * Closes connections which have been waiting for a request for longer than the keep-alive timeout. A parked
+     * connection has no connection thread to remove it once closed, so it is removed here, and the selector is woken
+     * to release its channel.
+     */
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(keepAliveTimeout);
+        boolean closedAny = false;
+        for (LightweightConnection connection : connections) {
+            if (connection.isIdleSince(now - timeout)) {
+                connection.close();
+                closed(connection);
+                closedAny = true;
+            }
+        }
+        if (closedAny) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Creates the executor which runs connection threads: virtual threads if virtual thread mode is selected and
+     * supported by the running Java version, otherwise a pool which starts threads up to the maximum before queueing
+     * connections, and releases idle threads.
+     *
+     * @param configProperties Application configuration.
+     * @return True if virtual threads are used.
+     */
+    private boolean createConnectionExecutor(ConfigProperties configProperties) {
+        if (configProperties.isPropertySet(Arguments.VIRTUAL_THREADS)) {
+            connectionExecutor = VirtualThreads.newExecutor("http-virtual-");
+            if (connectionExecutor != null) {
+                PinningMonitor.start();
+                logger.info("Running on virtual threads");
+                logger.info("Connector threads: virtual");
+                return true;
+            }
+            logger.warn("Virtual threads are not available under Java {}, using platform threads", System.getProperty("java.version"));
+        }
+        int maxThreads = configProperties.getPropertyValueAsInt(Arguments.CONNECTOR_MAX_THREADS);
+        int queueSize = configProperties.getPropertyValueAsInt(Arguments.CONNECTOR_QUEUE_SIZE);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            Thread thread = new Thread(runnable, "http-exec-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Threads are started on demand up to the maximum, so the minimum number of threads is not used
+        executor.allowCoreThreadTimeOut(true);
+        connectionExecutor = executor;
+        logger.info("Connector threads: max {}, queue size {}", maxThreads, queueSize);
+        return false;
+    }
+}
@@ -0,0 +1,239 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.request.Exchange;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The Exchange of a request received by the lightweight engine, which writes the response directly to the connection.
+ * Bodies of unknown size are sent chunked to HTTP/1.1 clients, and to HTTP/1.0 clients by closing the connection after
+ * the body. The body of a response to a HEAD request is not sent.
+ */
+final class LightweightExchange implements Exchange {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final OutputStream output;
+    private final boolean headRequest;
+    private final boolean http10;
+    private final StringBuilder headers = new StringBuilder();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private boolean keepAlive;
+    private boolean started = false;
+    private ChunkedOutputStream chunkedBody = null;
+    private volatile boolean failed = false;
+
+    /**
+     * Creates the Exchange of a request.
+     *
+     * @param output      Stream of the connection.
+     * @param headRequest True if the request is a HEAD request, so no body is sent.
+     * @param http10      True if the client uses HTTP/1.0, so does not support chunked bodies.
+     * @param keepAlive   True if the connection is kept open after the response.
+     */
+    LightweightExchange(OutputStream output, boolean headRequest, boolean http10, boolean keepAlive) {
+        this.output = output;
+        this.headRequest = headRequest;
+        this.http10 = http10;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        headers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    @Override
+    public void send(int status, String contentType, byte[] body) throws IOException {
+        try {
+            writeHead(status, contentType, "Content-Length: " + body.length);
+            if (!headRequest) {
+                output.write(body);
+            }
+            output.flush();
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public OutputStream stream(int status) throws IOException {
+        try {
+            if (http10) {
+                // Without a length, the end of the body is the end of the connection
+                keepAlive = false;
+                writeHead(status, null, null);
+                return new UnclosedOutputStream(headRequest ? OutputStream.nullOutputStream() : output);
+            }
+            writeHead(status, null, "Transfer-Encoding: chunked");
+            chunkedBody = new ChunkedOutputStream(output, headRequest);
+            return chunkedBody;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public void complete() {
+        try {
+            if (chunkedBody != null) {
+                chunkedBody.finish();
+            }
+            output.flush();
+        } catch (IOException e) {
+            failed = true;
+            logger.debug("Unable to complete response. {}", e.getMessage());
+        } finally {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Waits for the response to be completed.
+     *
+     * @return True if the response was sent, and the connection can be used for another request.
+     */
+    boolean awaitCompletion() {
+        try {
+            completed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return started && !failed && keepAlive;
+    }
+
+    /**
+     * Writes the status line and headers.
+     *
+     * @param status       HTTP status code.
+     * @param contentType  Content type of the body, or null if it has none.
+     * @param lengthHeader Header giving the length of the body, or null if the body ends with the connection.
+     * @throws IOException           If the headers cannot be written.
+     * @throws IllegalStateException If the status line has already been written.
+     */
+    private void writeHead(int status, String contentType, String lengthHeader) throws IOException {
+        if (started) {
+            throw new IllegalStateException("Response has already been sent");
+        }
+        started = true;
+        // Like Tomcat, no reason phrase is sent
+        StringBuilder head = new StringBuilder(128 + headers.length())
+                .append("HTTP/1.1 ").append(status).append(" \r\n")
+                .append("Date: ").append(DATE_FORMAT.format(ZonedDateTime.now(ZoneOffset.UTC))).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (lengthHeader != null) {
+            head.append(lengthHeader).append("\r\n");
+        }
+        head.append(headers);
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        } else if (http10) {
+            head.append("Connection: keep-alive\r\n");
+        }
+        head.append("\r\n");
+        output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes each write as a chunk of a chunked body. Closing the stream ends the body, but not the connection.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+
+        private final boolean discard;
+        private boolean finished = false;
+
+        /**
+         * Creates a chunked body stream.
+         *
+         * @param output  Stream of the connection.
+         * @param discard True if the body is not sent, as the request is a HEAD request.
+         */
+        private ChunkedOutputStream(OutputStream output, boolean discard) {
+            super(output);
+            this.discard = discard;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (finished) {
+                throw new IOException("Response body has already ended");
+            }
+            if (length == 0 || discard) {
+                return;
+            }
+            out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(bytes, offset, length);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        /**
+         * Ends the body with the last chunk, if it has not already ended.
+         *
+         * @throws IOException If the last chunk cannot be written.
+         */
+        private void finish() throws IOException {
+            if (!finished) {
+                finished = true;
+                if (!discard) {
+                    out.write(LAST_CHUNK);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Passes writes through, but only flushes on close, as the connection is closed once the response is complete.
+     */
+    private static final class UnclosedOutputStream extends FilterOutputStream {
+
+        /**
+         * Creates a stream which does not close the connection.
+         *
+         * @param output Stream of the connection.
+         */
+        private UnclosedOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.config.Arguments;
+import com.glenfordham.webserver.config.ConfigProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.BindException;
+
+/**
+ * Starts the server engine selected in the application arguments. Only one running server is supported.
+ */
+public class Server {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static boolean started = false;
+
+    /**
+     * Starts the server, and waits until it is shut down.
+     * <p>
+     * During a training run, the server listens on a free port, so that it can run alongside a running server, and is
+     * stopped once the synthetic requests have been sent.
+     *
+     * @param configProperties Application configuration.
+     * @return True if the server was started, and has since stopped.
+     */
+    static synchronized boolean start(ConfigProperties configProperties) {
+        if (started) {
+            logger.error("Unable to start server. Server is already started.");
+            return false;
+        }
+        EngineType engineType = EngineType.get(configProperties.getPropertyValue(Arguments.ENGINE));
+        if (engineType == null) {
+            logger.error("Unknown server engine {}", configProperties.getPropertyValue(Arguments.ENGINE));
+            return false;
+        }
+        logger.info("Server engine: {}", engineType.get());
+        try {
+            ServerEngine engine = engineType.create();
+            boolean trainingRun = configProperties.isPropertySet(Arguments.TRAINING_RUN);
+            engine.start(configProperties, trainingRun);
+            started = true;
+            if (trainingRun) {
+                TrainingRun.sendRequests(engine.getPort());
+                engine.stop();
+            } else {
+                engine.await();
+            }
+            return true;
+        } catch (Exception e) {
+            // Annoyingly, Tomcat nests BindExceptions inside LifeCycle exceptions
+            if (e instanceof BindException || e.getCause() instanceof BindException) {
+                logger.error("Unable to start. A process is already bound to port.");
+            } else {
+                if (configProperties.isPropertySet(Arguments.DEBUG)) {
+                    logger.error(e.getMessage(), e);
+                } else {
+                    logger.error(e.getMessage());
+                }
+            }
+        }
+        return false;
+    }
+
+    // Ensure only one server is started using static start() method
+    private Server() {
+    }
+}
@@ -0,0 +1,39 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.config.ConfigProperties;
+
+/**
+ * An HTTP server engine, which receives requests and runs them through the RequestPipeline. All engines give the same
+ * responses to the same requests, and differ only in how they handle connections.
+ */
+interface ServerEngine {
+
+    /**
+     * Starts the engine, returning once it is accepting requests. The request pipeline, and so config.xml, is
+     * initialised before any request is accepted.
+     *
+     * @param configProperties Application configuration.
+     * @param trainingRun      True if the engine is started for a training run, so listens on any free port.
+     * @throws Exception If the engine cannot be started.
+     */
+    void start(ConfigProperties configProperties, boolean trainingRun) throws Exception;
+
+    /**
+     * Gets the TCP port the engine is listening on.
+     *
+     * @return The port number.
+     */
+    int getPort();
+
+    /**
+     * Waits until the engine is shut down.
+     */
+    void await();
+
+    /**
+     * Stops the engine and releases its resources.
+     *
+     * @throws Exception If the engine cannot be stopped cleanly.
+     */
+    void stop() throws Exception;
+}
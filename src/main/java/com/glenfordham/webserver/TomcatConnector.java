@@ -0,0 +1,143 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.concurrent.PinningMonitor;
+import com.glenfordham.webserver.concurrent.VirtualThreads;
+import com.glenfordham.webserver.config.Arguments;
+import com.glenfordham.webserver.config.ConfigProperties;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.coyote.http2.Http2Protocol;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Configures the Tomcat connector from the application arguments. Tomcat's defaults are sized for large servers, so
+ * the thread pool, connection queues and keep-alive behaviour are all set explicitly, and every setting is logged at
+ * startup. A second connector listening on a Unix domain socket can be added for clients on the same host, which
+ * shares the thread pool and settings of the TCP connector.
+ */
+final class TomcatConnector {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String EXECUTOR_NAME = "connectorExecutor";
+
+    /**
+     * Configures the connector of a Tomcat instance.
+     *
+     * @param tomcat           The Tomcat instance, before it is started.
+     * @param configProperties Application configuration.
+     * @return True if the connector runs on virtual threads.
+     */
+    static boolean configure(Tomcat tomcat, ConfigProperties configProperties) {
+        Connector connector = tomcat.getConnector();
+
+        boolean virtualThreads = useVirtualThreads(configProperties, connector);
+        if (!virtualThreads) {
+            // A shared executor, rather than the connector's internal pool, so that idle threads are released
+            StandardThreadExecutor executor = new StandardThreadExecutor();
+            executor.setName(EXECUTOR_NAME);
+            executor.setNamePrefix("http-exec-");
+            executor.setMinSpareThreads(configProperties.getPropertyValueAsInt(Arguments.CONNECTOR_MIN_THREADS));
+            executor.setMaxThreads(configProperties.getPropertyValueAsInt(Arguments.CONNECTOR_MAX_THREADS));
+            executor.setMaxQueueSize(configProperties.getPropertyValueAsInt(Arguments.CONNECTOR_QUEUE_SIZE));
+            tomcat.getService().addExecutor(executor);
+            connector.getProtocolHandler().setExecutor(executor);
+        }
+        boolean http2 = configProperties.isPropertySet(Arguments.HTTP2);
+        configureConnection(connector, configProperties, http2);
+        logger.info("Listening port: {}", connector.getPort() == 0 ? "any free port" : connector.getPort());
+
+        // A training run may run alongside a running server, so does not listen on its socket
+        if (configProperties.isPropertySet(Arguments.UNIX_SOCKET) && !configProperties.isPropertySet(Arguments.TRAINING_RUN)) {
+            addUnixSocketConnector(tomcat, configProperties, connector, http2);
+        }
+        if (virtualThreads) {
+            logger.info("Connector threads: virtual");
+        } else {
+            logger.info("Connector threads: min {}, max {}, queue size {}",
+                    configProperties.getPropertyValue(Arguments.CONNECTOR_MIN_THREADS),
+                    configProperties.getPropertyValue(Arguments.CONNECTOR_MAX_THREADS),
+                    configProperties.getPropertyValue(Arguments.CONNECTOR_QUEUE_SIZE));
+        }
+        logger.info("Connector accept count: {}", configProperties.getPropertyValue(Arguments.ACCEPT_COUNT));
+        logger.info("Connector keep-alive: timeout {} ms, max {} requests",
+                configProperties.getPropertyValue(Arguments.KEEP_ALIVE_TIMEOUT),
+                configProperties.getPropertyValue(Arguments.MAX_KEEP_ALIVE_REQUESTS));
+        logger.info("Connector HTTP/2 (h2c) upgrade: {}", http2 ? "enabled" : "disabled");
+        return virtualThreads;
+    }
+
+    /**
+     * Applies the connection queue and keep-alive settings to a connector, and enables HTTP/2 upgrade if selected.
+     *
+     * @param connector        The Tomcat connector.
+     * @param configProperties Application configuration.
+     * @param http2            True if clients can upgrade connections to HTTP/2.
+     */
+    private static void configureConnection(Connector connector, ConfigProperties configProperties, boolean http2) {
+        connector.setProperty("acceptCount", configProperties.getPropertyValue(Arguments.ACCEPT_COUNT));
+        connector.setProperty("keepAliveTimeout", configProperties.getPropertyValue(Arguments.KEEP_ALIVE_TIMEOUT));
+        connector.setProperty("maxKeepAliveRequests", configProperties.getPropertyValue(Arguments.MAX_KEEP_ALIVE_REQUESTS));
+        if (http2) {
+            connector.addUpgradeProtocol(new Http2Protocol());
+        }
+    }
+
+    /**
+     * Adds a connector which listens on a Unix domain socket, sharing the threads and settings of the TCP connector.
+     * Requests received on it are marked by a UnixSocketValve, as only clients allowed by the socket file permissions
+     * can connect. A socket file left behind by a server which did not shut down cleanly is removed first.
+     *
+     * @param tomcat           The Tomcat instance, before it is started.
+     * @param configProperties Application configuration.
+     * @param tcpConnector     The configured TCP connector.
+     * @param http2            True if clients can upgrade connections to HTTP/2.
+     */
+    private static void addUnixSocketConnector(Tomcat tomcat, ConfigProperties configProperties, Connector tcpConnector, boolean http2) {
+        Path socketPath = Path.of(configProperties.getPropertyValue(Arguments.UNIX_SOCKET)).toAbsolutePath();
+        UnixSocketFiles.removeStale(socketPath);
+
+        Connector connector = new Connector();
+        connector.setProperty("unixDomainSocketPath", socketPath.toString());
+        connector.setProperty("unixDomainSocketPathPermissions", configProperties.getPropertyValue(Arguments.UNIX_SOCKET_PERMISSIONS));
+        connector.getProtocolHandler().setExecutor(tcpConnector.getProtocolHandler().getExecutor());
+        configureConnection(connector, configProperties, http2);
+        tomcat.getService().addConnector(connector);
+        tomcat.getEngine().getPipeline().addValve(new UnixSocketValve(connector));
+
+        logger.info("Listening Unix domain socket: {}, permissions {}", socketPath,
+                configProperties.getPropertyValue(Arguments.UNIX_SOCKET_PERMISSIONS));
+    }
+
+    /**
+     * Runs the connector on virtual threads, if virtual thread mode is selected and supported by the running Java
+     * version, and starts reporting virtual thread pinning.
+     *
+     * @param configProperties Application configuration.
+     * @param connector        The Tomcat connector.
+     * @return True if virtual threads are used.
+     */
+    private static boolean useVirtualThreads(ConfigProperties configProperties, Connector connector) {
+        if (!configProperties.isPropertySet(Arguments.VIRTUAL_THREADS)) {
+            return false;
+        }
+        ExecutorService executor = VirtualThreads.newExecutor("http-virtual-");
+        if (executor == null) {
+            logger.warn("Virtual threads are not available under Java {}, using platform threads", System.getProperty("java.version"));
+            return false;
+        }
+        connector.getProtocolHandler().setExecutor(executor);
+        PinningMonitor.start();
+        logger.info("Running on virtual threads");
+        return true;
+    }
+
+    // use static methods
+    private TomcatConnector() {
+    }
+}
@@ -0,0 +1,110 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.automation.config.AutomationConfig;
+import com.glenfordham.webserver.config.Arguments;
+import com.glenfordham.webserver.config.ConfigProperties;
+import com.glenfordham.webserver.servlet.RequestArbiter;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Defines an embedded Tomcat Server to be used as the web listener for web requests
+ */
+final class TomcatEngine implements ServerEngine {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private Tomcat tomcat = null;
+
+    /**
+     * Starts the Tomcat server.
+     * <p>
+     * The server only ever runs RequestArbiter, so it is registered directly on a bare context. There is no web
+     * application to deploy, which means no web.xml processing, JSP support, annotation or jar scanning, or static
+     * resources, all of which slow startup on hosts with slow storage. The time taken by each startup phase is logged.
+     *
+     * @param configProperties Application configuration.
+     * @param trainingRun      True if the server is started for a training run, so listens on any free port.
+     * @throws Exception If Tomcat cannot be started.
+     */
+    @Override
+    public void start(ConfigProperties configProperties, boolean trainingRun) throws Exception {
+        long startTime = System.nanoTime();
+        Path tempPath = Files.createTempDirectory("automation-server");
+        System.setProperty("org.apache.catalina.startup.EXIT_ON_INIT_FAILURE", "true");
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(tempPath.toString());
+        tomcat.setPort(trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.PORT));
+        boolean virtualThreads = TomcatConnector.configure(tomcat, configProperties);
+        long connectorTime = System.nanoTime();
+
+        // A context with no document base has no resources, and no ContextConfig, so nothing is scanned
+        Context ctx = tomcat.addContext("", null);
+        Wrapper servlet = Tomcat.addServlet(ctx, RequestArbiter.class.getSimpleName(), new RequestArbiter());
+        servlet.setLoadOnStartup(1);
+        servlet.setAsyncSupported(true);
+        ctx.addServletMappingDecoded("", RequestArbiter.class.getSimpleName());
+
+        // Load Servlet config into Servlet Context for accessibility
+        ctx.getServletContext().setAttribute(AutomationConfig.CONFIG_LOCATION_KEY, configProperties.getPropertyValue(Arguments.CONFIG_FILE));
+        ctx.getServletContext().setAttribute(AutomationConfig.CONFIG_CACHE_KEY, configProperties.getPropertyValue(Arguments.CONFIG_CACHE));
+        ctx.getServletContext().setAttribute(AutomationConfig.CONFIG_RELOAD_KEY, configProperties.isPropertySet(Arguments.CONFIG_RELOAD));
+        ctx.getServletContext().setAttribute(AutomationConfig.CONFIG_DEBUG_KEY, configProperties.isPropertySet(Arguments.DEBUG));
+        ctx.getServletContext().setAttribute(RequestArbiter.HANDLER_THREADS_KEY, configProperties.getPropertyValueAsInt(Arguments.HANDLER_THREADS));
+        ctx.getServletContext().setAttribute(RequestArbiter.VIRTUAL_THREADS_KEY, virtualThreads);
+        ctx.getServletContext().setAttribute(RequestArbiter.WARM_UP_KEY, configProperties.isPropertySet(Arguments.WARM_UP));
+        // Synthetic requests of a training run arrive quickly, and some deliberately fail authentication
+        ctx.getServletContext().setAttribute(RequestArbiter.RATE_LIMIT_KEY, trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.RATE_LIMIT));
+        ctx.getServletContext().setAttribute(RequestArbiter.AUTH_FAILURE_LIMIT_KEY, trainingRun ? 0 : configProperties.getPropertyValueAsInt(Arguments.AUTH_FAILURE_LIMIT));
+        ctx.getServletContext().setAttribute(RequestArbiter.LOCKOUT_TIME_KEY, configProperties.getPropertyValueAsInt(Arguments.LOCKOUT_TIME));
+        ctx.getServletContext().setAttribute(RequestArbiter.TARGET_DELAY_KEY, configProperties.getPropertyValueAsInt(Arguments.TARGET_DELAY));
+        ctx.getServletContext().setAttribute(RequestArbiter.REQUEST_TIMEOUT_KEY, configProperties.getPropertyValueAsInt(Arguments.REQUEST_TIMEOUT));
+        long contextTime = System.nanoTime();
+
+        // Starting Tomcat also initialises RequestArbiter, which loads config.xml and warms it up. The connector
+        // is started last, so no request is accepted until then
+        tomcat.start();
+        long endTime = System.nanoTime();
+        logger.info("Startup timings: connector {} ms, context {} ms, Tomcat start {} ms, total {} ms ({} ms since JVM start)",
+                toMillis(connectorTime - startTime),
+                toMillis(contextTime - connectorTime),
+                toMillis(endTime - contextTime),
+                toMillis(endTime - startTime),
+                ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    @Override
+    public int getPort() {
+        return tomcat.getConnector().getLocalPort();
+    }
+
+    @Override
+    public void await() {
+        tomcat.getServer().await();
+    }
+
+    @Override
+    public void stop() throws LifecycleException {
+        tomcat.stop();
+        tomcat.destroy();
+    }
+
+    /**
+     * Converts a duration in nanoseconds to milliseconds.
+     *
+     * @param nanos Duration in nanoseconds.
+     * @return Duration in milliseconds.
+     */
+    private static long toMillis(long nanos) {
+        return nanos / 1_000_000;
+    }
+}
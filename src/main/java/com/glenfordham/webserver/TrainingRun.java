@@ -0,0 +1,245 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.automation.Parameter;
+import com.glenfordham.webserver.automation.RequestType;
+import com.glenfordham.webserver.automation.config.AutomationConfig;
+import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Trains a class data sharing (AppCDS) archive for the application. When the JVM is started with the archive, the
+ * classes in it are mapped into memory rather than being loaded, parsed and verified from their jars one at a time,
+ * which makes up most of the startup time on slower hosts.
+ * <p>
+ * A training run starts two more JVMs. The first records every class loaded while the server starts, loads config.xml
+ * and serves a set of synthetic requests through each request type, and the second dumps the recorded classes into the
+ * archive. A static archive is created, as runtime images built for the application do not include the base archive
+ * of the JDK that a dynamic archive depends on.
+ * <p>
+ * The synthetic requests never name a configured request, so no request is actually run. Classes which are only
+ * loaded by request handlers while running a request are loaded directly instead.
+ */
+final class TrainingRun {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String CLASS_LIST_OPTION = "-XX:DumpLoadedClassList=";
+    private static final String UNCONFIGURED_REQUEST_NAME = "training_run";
+    private static final int PASSES = 3;
+
+    // Loaded by request handlers while running a request, or sending an email
+    private static final String[] HANDLER_CLASSES = {
+            "com.sun.mail.smtp.SMTPTransport",
+            "jakarta.mail.Session",
+            "jakarta.mail.Transport",
+            "jakarta.mail.internet.InternetAddress",
+            "jakarta.mail.internet.MimeMessage",
+            "java.lang.ProcessBuilder",
+            "java.net.HttpURLConnection",
+    };
+
+    /**
+     * Checks if this JVM is the one recording the classes loaded by a training run.
+     *
+     * @return True if the classes loaded by this JVM are being recorded.
+     */
+    static boolean isRecording() {
+        return ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(argument -> argument.startsWith(CLASS_LIST_OPTION));
+    }
+
+    /**
+     * Creates the class data sharing archive, by running the application with the same arguments in a JVM which records
+     * the classes it loads, and then dumping those classes into the archive. The JVM options of this JVM are passed on,
+     * other than any class data sharing options.
+     *
+     * @param archiveLocation Location of the archive to write.
+     * @param args            Application arguments, which must include the training run argument.
+     * @return The exit code, 0 if the archive was written.
+     * @throws IOException          If a JVM cannot be started.
+     * @throws InterruptedException If interrupted while waiting for a JVM to exit.
+     */
+    static int createArchive(String archiveLocation, String[] args) throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        Path archive = Path.of(archiveLocation).toAbsolutePath();
+        Path classList = archive.resolveSibling(archive.getFileName() + ".classlist");
+        String classPath = System.getProperty("java.class.path");
+
+        List<String> record = getJvmCommand();
+        record.add(CLASS_LIST_OPTION + classList);
+        record.add("-cp");
+        record.add(classPath);
+        record.add(Application.class.getName());
+        record.addAll(List.of(args));
+        logger.info("Training run: recording loaded classes");
+        int exitCode = run(record);
+        if (exitCode != 0) {
+            logger.error("Training run failed with exit code {}, archive not written", exitCode);
+            Files.deleteIfExists(classList);
+            return exitCode;
+        }
+
+        // The class path must match the class path used with the archive, otherwise the archive is ignored
+        List<String> dump = getJvmCommand();
+        dump.add("-Xshare:dump");
+        dump.add("-XX:SharedClassListFile=" + classList);
+        dump.add("-XX:SharedArchiveFile=" + archive);
+        dump.add("-cp");
+        dump.add(classPath);
+        logger.info("Training run: writing archive");
+        exitCode = run(dump);
+        Files.deleteIfExists(classList);
+        if (exitCode != 0) {
+            logger.error("Unable to write archive {}, exit code {}", archive, exitCode);
+            return exitCode;
+        }
+        logger.info("Training run complete in {} ms. Archive written to {}", (System.nanoTime() - startTime) / 1_000_000, archive);
+        return 0;
+    }
+
+    /**
+     * Sends the synthetic requests of a training run to the server: a request without parameters, one with invalid
+     * parameters, one which fails authentication, and one for each request type with a request name which is not
+     * configured. The requests are sent a few times over, so that connection reuse is also covered.
+     *
+     * @param port Port the server is listening on.
+     * @throws IOException               If a request cannot be sent.
+     * @throws AutomationConfigException If the configuration is not loaded.
+     */
+    static void sendRequests(int port) throws IOException, AutomationConfigException {
+        long startTime = System.nanoTime();
+        ConfigSnapshot config = AutomationConfig.get();
+        String token = config.getAuthenticationToken().getToken();
+        String requestName = getUnconfiguredRequestName(config);
+
+        List<String> queries = new ArrayList<>();
+        queries.add("");
+        queries.add("unknown=parameter");
+        queries.add(query("invalid" + token, RequestType.GPIO.get(), requestName));
+        for (RequestType requestType : RequestType.values()) {
+            queries.add(query(token, requestType.get(), requestName));
+            // Upper case and encoded values take different paths through parameter parsing
+            queries.add(query(token, requestType.get().toUpperCase(Locale.ROOT), requestName) + "&value=%20a%2Bb");
+        }
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (String query : queries) {
+                send(new URL("http", "localhost", port, "/?" + query));
+            }
+        }
+
+        int loaded = 0;
+        for (String className : HANDLER_CLASSES) {
+            try {
+                // Classes are loaded without being initialised, so nothing is started
+                Class.forName(className, false, TrainingRun.class.getClassLoader());
+                loaded++;
+            } catch (ClassNotFoundException e) {
+                logger.debug("Training run: class not found {}", className);
+            }
+        }
+        logger.info("Training run: sent {} requests and loaded {} request handler classes in {} ms",
+                queries.size() * PASSES, loaded, (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * Gets a request name which is not configured for any request type, so that synthetic requests do not run anything.
+     *
+     * @param config Loaded configuration.
+     * @return An unconfigured request name.
+     */
+    private static String getUnconfiguredRequestName(ConfigSnapshot config) {
+        Set<String> configured = new HashSet<>();
+        configured.addAll(config.getBroadlinkRequestNames());
+        configured.addAll(config.getCarportRequestNames());
+        configured.addAll(config.getCommandLineRequestNames());
+        configured.addAll(config.getEmailRequestNames());
+        configured.addAll(config.getGpioRequestNames());
+        configured.addAll(config.getProxyRequestNames());
+        String requestName = UNCONFIGURED_REQUEST_NAME;
+        for (int suffix = 1; configured.contains(requestName); suffix++) {
+            requestName = UNCONFIGURED_REQUEST_NAME + suffix;
+        }
+        return requestName;
+    }
+
+    /**
+     * Builds the query string of a request.
+     *
+     * @param token       Authentication token.
+     * @param requestType Request type.
+     * @param requestName Request name.
+     * @return The URL encoded query string.
+     */
+    private static String query(String token, String requestType, String requestName) {
+        return Parameter.AUTHENTICATION_TOKEN.get() + "=" + URLEncoder.encode(token, StandardCharsets.UTF_8)
+                + "&" + Parameter.REQUEST_TYPE.get() + "=" + requestType
+                + "&" + Parameter.REQUEST_NAME.get() + "=" + requestName;
+    }
+
+    /**
+     * Sends a GET request and reads the whole response, so that the connection can be reused.
+     *
+     * @param url URL of the request.
+     * @throws IOException If the request fails.
+     */
+    private static void send(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        try (InputStream response = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (response != null) {
+                response.readAllBytes();
+            }
+        }
+    }
+
+    /**
+     * Gets the command which starts a JVM the same way as this one, without any class data sharing options.
+     *
+     * @return The java command and JVM options.
+     */
+    private static List<String> getJvmCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command()
+                .orElse(Path.of(System.getProperty("java.home"), "bin", "java").toString()));
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-Xshare:") && !argument.startsWith("-XX:SharedArchiveFile=")) {
+                command.add(argument);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * Runs a command, sharing this JVM's console, and waits for it to exit.
+     *
+     * @param command Command to run.
+     * @return The exit code of the command.
+     * @throws IOException          If the command cannot be started.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static int run(List<String> command) throws IOException, InterruptedException {
+        logger.debug("Running {}", command);
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    // use static methods
+    private TrainingRun() {
+    }
+}
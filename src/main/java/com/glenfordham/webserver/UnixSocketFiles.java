@@ -0,0 +1,52 @@
+package com.glenfordham.webserver;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Helper functions for the socket files of Unix domain sockets, used by every server engine.
+ */
+final class UnixSocketFiles {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Removes a socket file if no server is listening on it. Other files are left alone, so that starting the server
+     * fails rather than deleting them.
+     *
+     * @param socketPath Path of the Unix domain socket.
+     */
+    static void removeStale(Path socketPath) {
+        try {
+            if (!Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                return;
+            }
+        } catch (IOException e) {
+            // The socket file does not exist
+            return;
+        }
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+            logger.warn("A server is already listening on Unix domain socket {}", socketPath);
+        } catch (IOException e) {
+            try {
+                Files.delete(socketPath);
+                logger.info("Removed stale Unix domain socket {}", socketPath);
+            } catch (IOException deleteException) {
+                logger.warn("Unable to remove stale Unix domain socket {}. {}", socketPath, deleteException.getMessage());
+            }
+        }
+    }
+
+    // use static methods
+    private UnixSocketFiles() {
+    }
+}
@@ -0,0 +1,45 @@
+package com.glenfordham.webserver;
+
+import com.glenfordham.webserver.servlet.RequestArbiter;
+import jakarta.servlet.ServletException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import java.io.IOException;
+
+/**
+ * Marks requests received on the Unix domain socket connector, so that RequestArbiter can tell them apart from
+ * requests received over TCP. Request attributes cannot be set by clients, so the mark cannot be forged.
+ */
+final class UnixSocketValve extends ValveBase {
+
+    private final Connector connector;
+
+    /**
+     * Creates a valve which marks the requests of a connector.
+     *
+     * @param connector The Unix domain socket connector.
+     */
+    UnixSocketValve(Connector connector) {
+        super(true);
+        this.connector = connector;
+    }
+
+    /**
+     * Marks the request if it was received on the Unix domain socket connector, and passes it on.
+     *
+     * @param request  The request.
+     * @param response The response.
+     * @throws IOException      If the next valve fails with an IOException.
+     * @throws ServletException If the next valve fails with a ServletException.
+     */
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (request.getConnector() == connector) {
+            request.setAttribute(RequestArbiter.UNIX_SOCKET_ATTRIBUTE, Boolean.TRUE);
+        }
+        getNext().invoke(request, response);
+    }
+}
@@ -1,8 +1,6 @@
 package com.glenfordham.webserver.automation;
 
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
-import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
 import com.glenfordham.webserver.automation.jaxb.TokenBehaviour;
 
 /**
@@ -13,11 +11,11 @@ public class Authenticator {
     /**
      * Authenticates the provided token
      *
+     * @param config              Configuration pinned for the request.
      * @param authenticationToken Token to be authenticated.
      * @return True if the token passes authentication.
      */
-    static boolean authenticate(String authenticationToken) throws AutomationConfigException {
-        Config config = AutomationConfig.get();
+    static boolean authenticate(ConfigSnapshot config, String authenticationToken) {
         String token = config.getAuthenticationToken().getToken();
         if (config.getAuthenticationToken().getBehaviour() == TokenBehaviour.SEED) {
             return true;
@@ -2,20 +2,24 @@ package com.glenfordham.webserver.automation;
 
 import com.glenfordham.webserver.automation.config.AutomationConfig;
 import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigPin;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.HandlerException;
-import com.glenfordham.webserver.automation.handler.broadlink.BroadlinkHandler;
-import com.glenfordham.webserver.automation.handler.carport.CarportHandler;
-import com.glenfordham.webserver.automation.handler.cmdline.CommandLineHandler;
-import com.glenfordham.webserver.automation.handler.email.EmailHandler;
-import com.glenfordham.webserver.automation.handler.gpio.GpioHandler;
-import com.glenfordham.webserver.automation.handler.proxy.ProxyHandler;
+import com.glenfordham.webserver.automation.handler.Response;
+import com.glenfordham.webserver.automation.jaxb.RequestPolicy;
 import com.glenfordham.webserver.servlet.parameter.ParameterException;
+import com.glenfordham.webserver.servlet.parameter.ParameterList;
 import com.glenfordham.webserver.servlet.parameter.ParameterMap;
-import jakarta.servlet.ServletContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Defines an entry point used to handle a HTTP request to be processed by the Automation Server.
@@ -24,36 +28,190 @@ public class Automation {
 
     private static final Logger logger = LogManager.getLogger();
 
+    // Enough dispatches in total for the dispatch path to be compiled by the JIT, however many requests are configured
+    private static final int WARM_UP_DISPATCHES = 10_000;
+
+    private final int requestTimeout;
+
+    /**
+     * Creates the entry point of the Automation Server.
+     *
+     * @param requestTimeout Time requests have to complete from when they are received, in milliseconds, unless their
+     *                       request policy sets a timeout, or 0 for no limit.
+     */
+    public Automation(int requestTimeout) {
+        this.requestTimeout = Math.max(0, requestTimeout);
+    }
+
     /**
      * Attempts to process HTTP request.
-     * Checks that URL parameters are valid, then identifies the request type and triage's the request to the
-     * appropriate handler.
+     * Checks that URL parameters are valid, then looks up the Action compiled for the request type and request name
+     * in the route table of the configuration version. The current configuration version is pinned for the whole
+     * request, so that validation, authentication and the Action all see the same configuration even if it is
+     * reloaded part way through. The Action is run with the deadline of the request.
+     *
+     * @param parameterMap     Parameters of the HTTP request.
+     * @param preAuthenticated True if the client has already been authenticated, such as by the file permissions of
+     *                         the Unix domain socket, so no authentication token is needed.
+     * @param receivedAt       Time the request was received, from System.nanoTime(), which its deadline is measured
+     *                         from.
+     * @param response         Response which will be delivered to the client.
+     * @return The Outcome of the request.
+     * @throws AutomationConfigException If no configuration is loaded.
+     * @throws HandlerException          If the request fails while running.
+     * @throws ParameterException        If a URL parameter is not valid for the request.
+     */
+    public Outcome processHttpRequest(ParameterMap parameterMap, boolean preAuthenticated, long receivedAt, Response response) throws AutomationConfigException, HandlerException, ParameterException {
+        try (ConfigPin configPin = AutomationConfig.pin()) {
+            RouteTable routeTable = RouteTable.of(configPin.getSnapshot());
+
+            // If URL parameters are not valid, ignore the request
+            if (!routeTable.getParameterValidator().isParameterMapValid(parameterMap, preAuthenticated)) {
+                logger.debug("Invalid request");
+                return routeTable.getParameterValidator().isAuthenticationFailure(parameterMap) ? Outcome.UNAUTHORISED : Outcome.INVALID;
+            }
+            logger.debug("Valid request");
+
+            // Requests which are not configured are ignored without logging, as they are likely to be probes
+            Action action = getAction(routeTable, parameterMap);
+            if (action == null) {
+                return Outcome.NOT_CONFIGURED;
+            }
+            try {
+                action.run(parameterMap, getDeadline(configPin.getSnapshot(), parameterMap, receivedAt), response);
+            } catch (BusyException e) {
+                logger.warn("Request not run. {}", e.getMessage());
+                return Outcome.BUSY;
+            } catch (DeadlineExceededException e) {
+                logger.warn("Request timed out. {}", e.getMessage());
+                return Outcome.TIMED_OUT;
+            }
+            return Outcome.COMPLETED;
+        }
+    }
+
+    /**
+     * Checks if a request is critical, so is not shed when the server is overloaded. Only an authenticated request can
+     * be critical, so that a client without the authentication token cannot get past load shedding by naming a
+     * critical request. The other parameters are not validated, so this is only used to decide whether to shed a
+     * request, never to run it.
      *
-     * @param context      ServletContext used to retrieve configuration.
-     * @param parameterMap Parameters of the HTTP request.
-     * @param clientOutput OutputStream which will be delivered to the client.
+     * @param parameterMap     Parameters of the HTTP request.
+     * @param preAuthenticated True if the client has already been authenticated, such as by the file permissions of
+     *                         the Unix domain socket, so no authentication token is needed.
+     * @return True if the request is authenticated, and the request policy of the request, or of its request type,
+     * marks it as critical.
      */
-    public void processHttpRequest(ServletContext context, ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        AutomationConfig.load((String) context.getAttribute(AutomationConfig.CONFIG_LOCATION_KEY));
-        AutomationParameterValidator parameterValidator = new AutomationParameterValidator();
-
-        // If URL parameters are not valid, ignore the request
-        if (!parameterValidator.isParameterMapValid(parameterMap)) {
-            logger.debug("Invalid request");
-            return;
+    public boolean isCritical(ParameterMap parameterMap, boolean preAuthenticated) {
+        ParameterList requestType = parameterMap.get(Parameter.REQUEST_TYPE.get());
+        ParameterList requestName = parameterMap.get(Parameter.REQUEST_NAME.get());
+        if (requestType == null || requestType.isEmpty()) {
+            return false;
+        }
+        try {
+            ConfigSnapshot config = AutomationConfig.get();
+            if (!preAuthenticated) {
+                ParameterList authenticationTokens = parameterMap.get(Parameter.AUTHENTICATION_TOKEN.get());
+                if (authenticationTokens == null || authenticationTokens.size() != 1
+                        || !Authenticator.authenticate(config, authenticationTokens.get(0))) {
+                    return false;
+                }
+            }
+            RequestPolicy policy = config.getRequestPolicy(requestType.get(0),
+                    requestName != null && !requestName.isEmpty() ? requestName.get(0) : null);
+            return policy != null && Boolean.TRUE.equals(policy.isCritical());
+        } catch (AutomationConfigException e) {
+            return false;
         }
-        logger.debug("Valid request");
-
-        RequestType requestType = RequestType.get(parameterMap.get(Parameter.REQUEST_TYPE.get()).getFirst());
-        if (requestType != null) {
-            switch (requestType) {
-                case BROADLINK -> new BroadlinkHandler().start(parameterMap, clientOutput);
-                case CARPORT -> new CarportHandler().start(parameterMap, clientOutput);
-                case CMD_LINE -> new CommandLineHandler().start(parameterMap, clientOutput);
-                case EMAIL -> new EmailHandler().start(parameterMap, clientOutput);
-                case GPIO -> new GpioHandler().start(parameterMap, clientOutput);
-                case PROXY -> new ProxyHandler().start(parameterMap, clientOutput);
+    }
+
+    /**
+     * Warms up the current configuration before the server accepts requests, so that the first requests are not
+     * slowed down by class loading, interpreted code, host name lookups or connecting to servers. The route table is
+     * compiled, each configured request is parsed, validated and dispatched enough times for the dispatch path to be
+     * compiled by the JIT, without running any request, and then each handler prepares its outbound resources. The
+     * time taken by each stage is logged.
+     *
+     * @throws AutomationConfigException If no configuration is loaded.
+     * @throws ParameterException        If a synthetic request cannot be parsed.
+     */
+    public void warmUp() throws AutomationConfigException, ParameterException {
+        long startTime = System.nanoTime();
+        try (ConfigPin configPin = AutomationConfig.pin()) {
+            ConfigSnapshot config = configPin.getSnapshot();
+            RouteTable routeTable = RouteTable.of(config);
+            long compiledTime = System.nanoTime();
+
+            String token = URLEncoder.encode(config.getAuthenticationToken().getToken(), StandardCharsets.UTF_8);
+            List<String> queryStrings = new ArrayList<>();
+            for (String requestType : routeTable.getRequestTypes()) {
+                for (String requestName : routeTable.getRequestNames(requestType)) {
+                    queryStrings.add(Parameter.AUTHENTICATION_TOKEN.get() + "=" + token
+                            + "&" + Parameter.REQUEST_TYPE.get() + "=" + URLEncoder.encode(requestType, StandardCharsets.UTF_8)
+                            + "&" + Parameter.REQUEST_NAME.get() + "=" + URLEncoder.encode(requestName, StandardCharsets.UTF_8));
+                }
+            }
+            int passes = queryStrings.isEmpty() ? 0 : Math.max(1, WARM_UP_DISPATCHES / queryStrings.size());
+            int dispatched = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                for (String queryString : queryStrings) {
+                    ParameterMap parameterMap = new ParameterMap(queryString);
+                    if (routeTable.getParameterValidator().isParameterMapValid(parameterMap) && getAction(routeTable, parameterMap) != null) {
+                        dispatched++;
+                    }
+                }
             }
+            long dispatchTime = System.nanoTime();
+
+            HandlerRegistry.warmUp(config);
+            long endTime = System.nanoTime();
+            if (dispatched != passes * queryStrings.size()) {
+                logger.warn("Warm-up dispatched {} of {} requests", dispatched, passes * queryStrings.size());
+            }
+            logger.info("Warm-up timings: route table {} ms, {} requests dispatched {} times {} ms, handlers {} ms, total {} ms",
+                    (compiledTime - startTime) / 1_000_000,
+                    queryStrings.size(), passes, (dispatchTime - compiledTime) / 1_000_000,
+                    (endTime - dispatchTime) / 1_000_000,
+                    (endTime - startTime) / 1_000_000);
+        }
+    }
+
+    /**
+     * Gets the deadline of a validated request. The timeout of its request policy is used if it has one, otherwise the
+     * default request timeout. A client can ask for a shorter timeout with the timeout URL parameter, but not a longer
+     * one. Request types which allow other URL parameters, such as proxy requests, pass the timeout URL parameter to
+     * their handler instead, as they did before request timeouts were added.
+     *
+     * @param config       The pinned configuration.
+     * @param parameterMap Validated parameters of the request.
+     * @param receivedAt   Time the request was received, from System.nanoTime().
+     * @return The Deadline, which never passes if the request has no timeout.
+     * @throws ParameterException If the request type or request name is missing.
+     */
+    private Deadline getDeadline(ConfigSnapshot config, ParameterMap parameterMap, long receivedAt) throws ParameterException {
+        RequestPolicy policy = config.getRequestPolicy(
+                parameterMap.get(Parameter.REQUEST_TYPE.get()).getFirst(),
+                parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst());
+        long timeout = policy != null && policy.getTimeout() != null ? Math.max(0, policy.getTimeout()) : requestTimeout;
+        ParameterList clientTimeout = parameterMap.get(Parameter.TIMEOUT.get());
+        if (clientTimeout != null && !AutomationParameterValidator.allowsExtraParameters(parameterMap)) {
+            long requested = Long.parseLong(clientTimeout.getFirst());
+            timeout = timeout > 0 ? Math.min(timeout, requested) : requested;
         }
+        return Deadline.after(receivedAt, timeout);
+    }
+
+    /**
+     * Looks up the Action of a validated request.
+     *
+     * @param routeTable   Route table of the pinned configuration.
+     * @param parameterMap Validated parameters of the request.
+     * @return The Action, or null if the request is not configured.
+     * @throws ParameterException If the request type or request name is missing.
+     */
+    private static Action getAction(RouteTable routeTable, ParameterMap parameterMap) throws ParameterException {
+        return routeTable.get(
+                parameterMap.get(Parameter.REQUEST_TYPE.get()).getFirst(),
+                parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst());
     }
 }
@@ -1,6 +1,6 @@
 package com.glenfordham.webserver.automation;
 
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
 import com.glenfordham.webserver.servlet.parameter.ParameterException;
 import com.glenfordham.webserver.servlet.parameter.ParameterList;
 import com.glenfordham.webserver.servlet.parameter.ParameterMap;
@@ -10,10 +10,28 @@ import org.apache.logging.log4j.Logger;
 
 import java.util.Arrays;
 
+/**
+ * Validates and authenticates the URL parameters of Automation Server requests.
+ */
 public class AutomationParameterValidator implements ParameterValidator {
 
     private static final Logger logger = LogManager.getLogger();
 
+    private static final String[] PARAMETER_KEYS = Arrays.stream(Parameter.values()).map(Parameter::get).toArray(String[]::new);
+    private static final String[] REQUIRED_PARAMETER_KEYS = Arrays.stream(Parameter.values())
+            .filter(Parameter::isRequired).map(Parameter::get).toArray(String[]::new);
+
+    private final ConfigSnapshot config;
+
+    /**
+     * Creates a validator for a configuration version.
+     *
+     * @param config Configuration used to authenticate requests.
+     */
+    public AutomationParameterValidator(ConfigSnapshot config) {
+        this.config = config;
+    }
+
     /**
      * Validates all passed in parameters based on the Automation package requirements.
      *
@@ -22,17 +40,43 @@ public class AutomationParameterValidator implements ParameterValidator {
      */
     @Override
     public boolean isParameterMapValid(ParameterMap parameterMap) {
+        return isParameterMapValid(parameterMap, false);
+    }
+
+    /**
+     * Validates all passed in parameters based on the Automation package requirements. Requests from clients which have
+     * already been authenticated do not need an authentication token, and any token they provide is ignored.
+     *
+     * @param parameterMap     Complete ParameterMap object, containing both parameter keys and values.
+     * @param preAuthenticated True if the client has already been authenticated.
+     * @return True is parameterMap is valid.
+     */
+    public boolean isParameterMapValid(ParameterMap parameterMap, boolean preAuthenticated) {
         try {
-            return areUrlParamKeysValid(parameterMap)
-                    && isAuthenticationTokenValid(parameterMap.get(Parameter.AUTHENTICATION_TOKEN.get()))
+            return areUrlParamKeysValid(parameterMap, preAuthenticated)
+                    && (preAuthenticated || isAuthenticationTokenValid(parameterMap.get(Parameter.AUTHENTICATION_TOKEN.get())))
                     && isRequestTypeValid(parameterMap.get(Parameter.REQUEST_TYPE.get()))
-                    && (parameterMap.containsKey(Parameter.REQUEST_NAME.get()) && !parameterMap.get(Parameter.REQUEST_NAME.get()).isEmpty());
-        } catch (AutomationConfigException | ParameterException e) {
+                    && (parameterMap.containsKey(Parameter.REQUEST_NAME.get()) && !parameterMap.get(Parameter.REQUEST_NAME.get()).isEmpty())
+                    && (allowsExtraParameters(parameterMap) || isTimeoutValid(parameterMap.get(Parameter.TIMEOUT.get())));
+        } catch (ParameterException e) {
             logger.error(e.getMessage(), e);
             return false;
         }
     }
 
+    /**
+     * Checks if a request was not valid because of its authentication token, rather than its other parameters. Only
+     * used once a request has failed validation, so the reason is not logged again.
+     *
+     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
+     * @return True if there is exactly one authentication token, and it is not correct.
+     */
+    public boolean isAuthenticationFailure(ParameterMap parameterMap) {
+        ParameterList authenticationTokens = parameterMap.get(Parameter.AUTHENTICATION_TOKEN.get());
+        return authenticationTokens != null && authenticationTokens.size() == 1
+                && !Authenticator.authenticate(config, authenticationTokens.get(0));
+    }
+
     /**
      * Iterate over all parameter map keys and check if they are valid parameters against the Parameter Enum.
      *
@@ -41,14 +85,43 @@ public class AutomationParameterValidator implements ParameterValidator {
      */
     @Override
     public boolean areUrlParamKeysValid(ParameterMap parameterMap) throws ParameterException {
-        // If proxy request type, URL parameter validation is handled in the Proxy handler.
+        return areUrlParamKeysValid(parameterMap, false);
+    }
+
+    /**
+     * Iterate over all parameter map keys and check if they are valid parameters against the Parameter Enum.
+     *
+     * @param parameterMap     Complete ParameterMap object, containing both parameter keys and values.
+     * @param preAuthenticated True if the client has already been authenticated, so the authentication token is not
+     *                         required.
+     * @return True if all keys are valid.
+     * @throws ParameterException If the request type is empty.
+     */
+    private boolean areUrlParamKeysValid(ParameterMap parameterMap, boolean preAuthenticated) throws ParameterException {
+        // If the request type allows other URL parameters, such as proxy requests, they are validated by its handler.
         // Make sure that the minimum parameter values are present.
-        if (parameterMap.containsKey(Parameter.REQUEST_TYPE.get())
-                && parameterMap.get(Parameter.REQUEST_TYPE.get()).getFirst().equalsIgnoreCase(RequestType.PROXY.get())) {
-            return Arrays.stream(Parameter.values()).allMatch(e->parameterMap.containsKey(e.get()));
+        if (allowsExtraParameters(parameterMap)) {
+            for (String key : REQUIRED_PARAMETER_KEYS) {
+                if (!parameterMap.containsKey(key) && !(preAuthenticated && Parameter.AUTHENTICATION_TOKEN.get().equals(key))) {
+                    return false;
+                }
+            }
+            return true;
         }
-        return parameterMap.keySet().stream().noneMatch(key -> Arrays.stream(Parameter.values())
-                .noneMatch(e -> e.get().equals(key)));
+        return parameterMap.containsOnlyKeys(PARAMETER_KEYS);
+    }
+
+    /**
+     * Checks if the request type of a request allows other URL parameters, such as proxy requests. A timeout URL
+     * parameter of such a request is one of its other parameters, passed to its handler, rather than its timeout.
+     *
+     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
+     * @return True if the request type allows other URL parameters.
+     * @throws ParameterException If the request type is empty.
+     */
+    static boolean allowsExtraParameters(ParameterMap parameterMap) throws ParameterException {
+        return parameterMap.containsKey(Parameter.REQUEST_TYPE.get())
+                && HandlerRegistry.allowsExtraParameters(parameterMap.get(Parameter.REQUEST_TYPE.get()).getFirst());
     }
 
     /**
@@ -74,32 +147,51 @@ public class AutomationParameterValidator implements ParameterValidator {
      *
      * @param authenticationTokens List of parameter tokens.
      * @return True if there is only one authentication token, and the token value is correct.
-     * @throws AutomationConfigException If unable to parse the configuration file to extract authentication config.
      * @throws ParameterException If authenticationTokens is empty.
      */
-    private boolean isAuthenticationTokenValid(ParameterList authenticationTokens) throws AutomationConfigException, ParameterException {
+    private boolean isAuthenticationTokenValid(ParameterList authenticationTokens) throws ParameterException {
         if (areUrlParamsValid(authenticationTokens)) {
-            return Authenticator.authenticate(authenticationTokens.getFirst());
+            return Authenticator.authenticate(config, authenticationTokens.getFirst());
         } else {
             logger.error("Invalid authentication token");
             return false;
         }
     }
 
+    /**
+     * Checks if the optional timeout is valid, if one is provided.
+     *
+     * @param timeouts List of timeouts, or null if no timeout is provided.
+     * @return True if there is no timeout, or only one timeout, and it is a positive whole number of milliseconds.
+     * @throws ParameterException If timeouts is empty.
+     */
+    private boolean isTimeoutValid(ParameterList timeouts) throws ParameterException {
+        if (timeouts == null) {
+            return true;
+        }
+        if (areUrlParamsValid(timeouts)) {
+            try {
+                if (Long.parseLong(timeouts.getFirst()) > 0) {
+                    return true;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        logger.error("Invalid timeout");
+        return false;
+    }
+
     /**
      * Checks if the provided request type is valid.
      *
      * @param requestTypes List of request types.
-     * @return True if there is only one request type, and the token value is a valid request type.
+     * @return True if there is only one request type, and it has a registered handler.
      * @throws ParameterException If requestTypes is empty.
      */
     private boolean isRequestTypeValid(ParameterList requestTypes) throws ParameterException {
-        if (areUrlParamsValid(requestTypes)) {
-            for (RequestType requestTypeCheck : RequestType.values()) {
-                if (requestTypes.getFirst().equals(requestTypeCheck.get())) {
-                    return true;
-                }
-            }
+        if (areUrlParamsValid(requestTypes) && HandlerRegistry.isRegistered(requestTypes.getFirst())) {
+            return true;
         }
         logger.error("Invalid request type");
         return false;
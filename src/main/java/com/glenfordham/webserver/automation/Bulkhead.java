@@ -0,0 +1,179 @@
+package com.glenfordham.webserver.automation;
+
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
+import com.glenfordham.webserver.automation.handler.HandlerException;
+import com.glenfordham.webserver.automation.jaxb.RequestPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests of a request type, or of a single request, run at once, so that requests to a hung command
+ * or an unresponsive mail server or proxy host cannot take every request handler thread. Requests over the limit wait
+ * in a bounded queue, for a limited time, and then fail fast with a BusyException.
+ * <p>
+ * A bulkhead is created for each request policy with a max_concurrent limit, and is kept across configuration
+ * reloads, so that requests still running under an earlier configuration version count towards the limit. Reloading
+ * changes the limits of the existing bulkhead. A ReentrantLock is used rather than synchronized, so waiting does not
+ * pin a virtual thread.
+ */
+final class Bulkhead {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Queue timeout used when a request policy does not set one, in milliseconds
+    private static final int DEFAULT_QUEUE_TIMEOUT = 5000;
+
+    // Bulkheads by request type, or request type and request name
+    private static final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int maxConcurrent;
+    private int maxQueued;
+    private long queueTimeout;
+    private int running = 0;
+    private int queued = 0;
+
+    /**
+     * Creates a bulkhead.
+     *
+     * @param name Request type, or request type and request name, the bulkhead applies to.
+     */
+    private Bulkhead(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Wraps the Action of a request in the bulkhead of its request policy, if the policy limits how many requests run
+     * at once.
+     *
+     * @param policy The RequestPolicy of the request, may be null.
+     * @param action The compiled Action of the request.
+     * @return An Action which runs the request inside the bulkhead, or the Action itself if there is no limit.
+     */
+    static Action wrap(RequestPolicy policy, Action action) {
+        if (policy == null || policy.getMaxConcurrent() == null) {
+            return action;
+        }
+        Bulkhead bulkhead = of(policy);
+        return (parameterMap, deadline, response) -> {
+            bulkhead.acquire(deadline);
+            try {
+                action.run(parameterMap, deadline, response);
+            } finally {
+                bulkhead.release();
+            }
+        };
+    }
+
+    /**
+     * Gets the bulkhead of a request policy, creating it or updating its limits from the policy.
+     *
+     * @param policy RequestPolicy with a max_concurrent limit.
+     * @return The Bulkhead.
+     */
+    private static Bulkhead of(RequestPolicy policy) {
+        String name = policy.getRequestName() != null
+                ? policy.getRequestType() + ":" + policy.getRequestName()
+                : policy.getRequestType();
+        Bulkhead bulkhead = bulkheads.computeIfAbsent(name.toLowerCase(Locale.ROOT), Bulkhead::new);
+        bulkhead.configure(
+                policy.getMaxConcurrent(),
+                policy.getMaxQueued() != null ? policy.getMaxQueued() : 0,
+                policy.getQueueTimeout() != null ? policy.getQueueTimeout() : DEFAULT_QUEUE_TIMEOUT);
+        return bulkhead;
+    }
+
+    /**
+     * Sets the limits of the bulkhead. Lowering the limits does not stop requests which are already running, but no
+     * more are started until the number running is under the new limit.
+     *
+     * @param maxConcurrent Maximum number of requests run at once.
+     * @param maxQueued     Maximum number of requests waiting to run.
+     * @param queueTimeout  How long a request waits to run, in milliseconds.
+     */
+    private void configure(int maxConcurrent, int maxQueued, int queueTimeout) {
+        lock.lock();
+        try {
+            if (maxConcurrent != this.maxConcurrent || maxQueued != this.maxQueued
+                    || TimeUnit.MILLISECONDS.toNanos(queueTimeout) != this.queueTimeout) {
+                logger.debug("Bulkhead {}: {} concurrent, {} queued, queue timeout {} ms", name, maxConcurrent, maxQueued, queueTimeout);
+            }
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.maxQueued = Math.max(0, maxQueued);
+            this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueTimeout));
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a place in the bulkhead, waiting in its queue if it is full. The wait is bounded by both the queue timeout
+     * and the deadline of the request.
+     *
+     * @param deadline Deadline of the request.
+     * @throws BusyException             If the queue is full, or the request waited in the queue for too long.
+     * @throws DeadlineExceededException If the deadline of the request passes while it waits in the queue.
+     * @throws HandlerException          If the request handler thread is interrupted while waiting.
+     */
+    private void acquire(Deadline deadline) throws HandlerException {
+        lock.lock();
+        try {
+            if (running < maxConcurrent) {
+                running++;
+                return;
+            }
+            if (queued >= maxQueued) {
+                logger.debug("Bulkhead {} is full, {} running and {} queued", name, running, queued);
+                throw new BusyException(String.format("Too many %s requests running", name));
+            }
+            queued++;
+            try {
+                long remaining = Math.min(queueTimeout, deadline.remaining(TimeUnit.NANOSECONDS));
+                while (running >= maxConcurrent) {
+                    if (deadline.isExpired()) {
+                        logger.debug("Request timed out in bulkhead {} queue, {} running and {} queued", name, running, queued);
+                        throw new DeadlineExceededException(String.format("Timed out waiting for a running %s request to finish", name));
+                    }
+                    if (remaining <= 0) {
+                        logger.debug("Bulkhead {} queue timed out, {} running and {} queued", name, running, queued);
+                        throw new BusyException(String.format("Timed out waiting for a running %s request to finish", name));
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                running++;
+            } finally {
+                queued--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandlerException("Interrupted waiting to run request", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up a place in the bulkhead, and wakes the next queued request.
+     */
+    private void release() {
+        lock.lock();
+        try {
+            running--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.glenfordham.webserver.automation;
+
+import com.glenfordham.webserver.automation.handler.HandlerException;
+
+/**
+ * A BusyException is thrown when a request cannot run because too many requests of its request type, or too many of
+ * the same request, are already running or waiting to run.
+ */
+class BusyException extends HandlerException {
+
+    /**
+     * Creates a new BusyException.
+     *
+     * @param message the message to be used for the Exception
+     */
+    BusyException(String message) {
+        super(message);
+    }
+}
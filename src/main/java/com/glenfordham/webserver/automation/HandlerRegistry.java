@@ -0,0 +1,316 @@
+package com.glenfordham.webserver.automation;
+
+import com.glenfordham.webserver.automation.config.AutomationConfig;
+import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Handler;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Registry of the request handlers, found with ServiceLoader from the Handler service providers on the class path. The
+ * built-in handlers are registered in META-INF/services, and other request types can be added by putting a jar with
+ * its own Handler provider on the class path.
+ * <p>
+ * Each handler is a long-lived singleton, created the first time a configuration version with its request type's
+ * section is compiled, so request types which are not configured never initialise their handler, or the libraries it
+ * depends on, such as Jakarta Mail for email requests. Request types which are not part of config.xml are always
+ * configured. Handlers are told when they are created and when a later configuration version is compiled, so they can
+ * keep state, such as connections or per-device state, across requests and reloads.
+ * <p>
+ * Each configuration version which uses a handler holds it until the version is retired. Once neither the current
+ * configuration version nor any version still in use has the handler's section, because a reload removed it, the
+ * handler is closed and released. Classes already loaded stay loaded, as the application class loader does not unload
+ * classes.
+ * <p>
+ * The number of classes loaded, and the metaspace and heap used, while initialising a handler and compiling its
+ * requests are logged, along with the totals used by the JVM. Heap figures are approximate, as they include any other
+ * allocation or garbage collection at the same time.
+ */
+final class HandlerRegistry {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String METASPACE_POOL = "Metaspace";
+
+    // Handler providers by request type. Finding a provider loads its class, but does not create the handler
+    private static final Map<String, Registration> REGISTRATIONS = discover();
+
+    private static final Map<String, Subsystem> active = new HashMap<>();
+
+    /**
+     * Gets the registered request types.
+     *
+     * @return The request types, in lower case.
+     */
+    static Set<String> getRequestTypes() {
+        return REGISTRATIONS.keySet();
+    }
+
+    /**
+     * Checks if a request type has a registered handler.
+     *
+     * @param requestType Request type, case-insensitive.
+     * @return True if the request type is registered.
+     */
+    static boolean isRegistered(String requestType) {
+        return REGISTRATIONS.containsKey(requestType.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks if requests of a request type may have URL parameters other than the standard parameters.
+     *
+     * @param requestType Request type, case-insensitive.
+     * @return True if other URL parameters are allowed, false if not or if the request type is not registered.
+     */
+    static boolean allowsExtraParameters(String requestType) {
+        Registration registration = REGISTRATIONS.get(requestType.toLowerCase(Locale.ROOT));
+        return registration != null && registration.extraParameters();
+    }
+
+    /**
+     * Compiles the configured requests of a request type. The handler is created and initialised if it is not already
+     * running, or told about the configuration version if it is the first time the running handler has seen it. The
+     * configuration version holds the handler until it is retired.
+     *
+     * @param requestType Registered request type to compile, in lower case.
+     * @param config      Configuration to compile the requests from.
+     * @return The compiled Actions by request name. Empty if the request type's section is not configured, or the
+     * handler could not be created.
+     */
+    static synchronized Map<String, Action> compile(String requestType, ConfigSnapshot config) {
+        if (!isConfigured(requestType, config)) {
+            return Map.of();
+        }
+        Footprint before = null;
+        Subsystem subsystem = active.get(requestType);
+        if (subsystem == null) {
+            before = Footprint.measure();
+            try {
+                subsystem = new Subsystem(REGISTRATIONS.get(requestType).provider().get());
+            } catch (ServiceConfigurationError e) {
+                logger.error("Unable to create {} handler. {}", requestType, e.getMessage());
+                return Map.of();
+            }
+            subsystem.handler.init(config);
+            active.put(requestType, subsystem);
+        } else if (config.getVersion() > subsystem.version) {
+            subsystem.handler.reconfigure(config);
+        }
+        subsystem.version = Math.max(subsystem.version, config.getVersion());
+        subsystem.users++;
+        config.whenRetired(() -> release(requestType));
+
+        Map<String, Action> actions = new HashMap<>();
+        for (String requestName : subsystem.handler.getRequestNames(config)) {
+            Action action = subsystem.handler.compile(config, requestName);
+            if (action != null) {
+                actions.put(requestName, action);
+            }
+        }
+
+        if (before != null) {
+            Footprint after = Footprint.measure();
+            logger.info("Initialised {} handler: {} classes loaded, metaspace +{} KB, heap +{} KB (JVM totals: {} classes, metaspace {} KB, heap {} KB)",
+                    requestType,
+                    after.classes - before.classes,
+                    (after.metaspaceBytes - before.metaspaceBytes) / 1024,
+                    Math.max(0, after.heapBytes - before.heapBytes) / 1024,
+                    after.classes, after.metaspaceBytes / 1024, after.heapBytes / 1024);
+        }
+        return Map.copyOf(actions);
+    }
+
+    /**
+     * Warms up each running handler used by a configuration version.
+     *
+     * @param config Configuration to warm up.
+     */
+    static void warmUp(ConfigSnapshot config) {
+        Map<String, Handler> handlers = new LinkedHashMap<>();
+        synchronized (HandlerRegistry.class) {
+            active.forEach((requestType, subsystem) -> {
+                if (isConfigured(requestType, config)) {
+                    handlers.put(requestType, subsystem.handler);
+                }
+            });
+        }
+        for (Map.Entry<String, Handler> handler : handlers.entrySet()) {
+            long startTime = System.nanoTime();
+            handler.getValue().warmUp(config);
+            logger.debug("Warmed up {} handler in {} ms", handler.getKey(), (System.nanoTime() - startTime) / 1_000_000);
+        }
+    }
+
+    /**
+     * Releases a configuration version's hold on a handler, closing the handler if no other version uses it.
+     *
+     * @param requestType Request type of the handler.
+     */
+    private static synchronized void release(String requestType) {
+        Subsystem subsystem = active.get(requestType);
+        if (subsystem == null || --subsystem.users > 0 || isConfiguredInCurrent(requestType)) {
+            return;
+        }
+        active.remove(requestType);
+        subsystem.handler.close();
+        Footprint now = Footprint.measure();
+        logger.info("Closed {} handler, as it is no longer configured (JVM totals: {} classes, metaspace {} KB, heap {} KB)",
+                requestType, now.classes, now.metaspaceBytes / 1024, now.heapBytes / 1024);
+    }
+
+    /**
+     * Checks if a request type's section is present in the current configuration version. A version is retired once
+     * it has been replaced, which is before the current version is first compiled, so handlers that the current
+     * version still uses are kept running rather than being closed and initialised again.
+     *
+     * @param requestType Request type to check.
+     * @return True if the request type is configured in the current configuration.
+     */
+    private static boolean isConfiguredInCurrent(String requestType) {
+        try {
+            return isConfigured(requestType, AutomationConfig.get());
+        } catch (AutomationConfigException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a request type's section is present in a configuration version. Request types which are not built in
+     * have no section in config.xml, so are always configured.
+     *
+     * @param requestType Request type to check.
+     * @param config      Configuration to check.
+     * @return True if the request type is configured.
+     */
+    private static boolean isConfigured(String requestType, ConfigSnapshot config) {
+        RequestType builtIn = RequestType.get(requestType);
+        if (builtIn == null) {
+            return true;
+        }
+        return switch (builtIn) {
+            case BROADLINK -> config.hasBroadlink();
+            case CARPORT -> config.hasCarport();
+            case CMD_LINE -> config.hasCommandLine();
+            case EMAIL -> config.hasEmail();
+            case GPIO -> config.hasGpio();
+            case PROXY -> config.hasProxy();
+        };
+    }
+
+    /**
+     * Finds the Handler providers on the class path. Providers without a HandlesRequestType annotation, or for a
+     * request type which already has a provider, are logged and ignored.
+     *
+     * @return The registrations by request type, in lower case.
+     */
+    private static Map<String, Registration> discover() {
+        Map<String, Registration> registrations = new LinkedHashMap<>();
+        Iterator<ServiceLoader.Provider<Handler>> providers = ServiceLoader.load(Handler.class, HandlerRegistry.class.getClassLoader())
+                .stream().iterator();
+        while (true) {
+            ServiceLoader.Provider<Handler> provider;
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                provider = providers.next();
+            } catch (ServiceConfigurationError e) {
+                logger.error("Unable to load handler, ignoring. {}", e.getMessage());
+                continue;
+            }
+            HandlesRequestType annotation = provider.type().getAnnotation(HandlesRequestType.class);
+            if (annotation == null) {
+                logger.error("Handler {} does not declare its request type, ignoring", provider.type().getName());
+                continue;
+            }
+            String requestType = annotation.value().toLowerCase(Locale.ROOT);
+            Registration existing = registrations.putIfAbsent(requestType, new Registration(provider, annotation.extraParameters()));
+            if (existing != null) {
+                logger.error("Request type {} is already handled by {}, ignoring {}",
+                        requestType, existing.provider().type().getName(), provider.type().getName());
+            } else if (RequestType.get(requestType) == null) {
+                logger.info("Registered handler {} for request type {}", provider.type().getName(), requestType);
+            }
+        }
+        for (RequestType builtIn : RequestType.values()) {
+            if (!registrations.containsKey(builtIn.get())) {
+                logger.warn("No handler registered for request type {}", builtIn.get());
+            }
+        }
+        return Collections.unmodifiableMap(registrations);
+    }
+
+    /**
+     * A registered Handler provider.
+     *
+     * @param provider        Provider which creates the handler.
+     * @param extraParameters Whether requests may have URL parameters other than the standard parameters.
+     */
+    private record Registration(ServiceLoader.Provider<Handler> provider, boolean extraParameters) {
+    }
+
+    /**
+     * A running handler, the newest configuration version it has seen, and the number of configuration versions using
+     * it.
+     */
+    private static final class Subsystem {
+
+        private final Handler handler;
+        private long version = 0;
+        private int users = 0;
+
+        /**
+         * Creates a running handler, not yet used by any configuration version.
+         *
+         * @param handler The handler.
+         */
+        private Subsystem(Handler handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Class count and memory use of the JVM at a point in time.
+     *
+     * @param classes        Number of classes loaded.
+     * @param metaspaceBytes Metaspace used, in bytes.
+     * @param heapBytes      Heap used, in bytes.
+     */
+    private record Footprint(int classes, long metaspaceBytes, long heapBytes) {
+
+        /**
+         * Measures the current class count and memory use.
+         *
+         * @return The current Footprint.
+         */
+        private static Footprint measure() {
+            long metaspace = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (METASPACE_POOL.equals(pool.getName())) {
+                    metaspace = pool.getUsage().getUsed();
+                }
+            }
+            return new Footprint(ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(), metaspace,
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    // use static methods
+    private HandlerRegistry() {
+    }
+}
@@ -0,0 +1,31 @@
+package com.glenfordham.webserver.automation;
+
+/**
+ * The outcome of processing an Automation Server request, used to choose the HTTP status code of the response.
+ */
+public enum Outcome {
+    /**
+     * The request was run.
+     */
+    COMPLETED,
+    /**
+     * The URL parameters are missing or not valid, or the request type is not registered.
+     */
+    INVALID,
+    /**
+     * The authentication token is not correct.
+     */
+    UNAUTHORISED,
+    /**
+     * The request is valid, but no request with the request name is configured for the request type.
+     */
+    NOT_CONFIGURED,
+    /**
+     * The request did not run, as too many requests of its request type, or of the same request, are running.
+     */
+    BUSY,
+    /**
+     * The request did not complete before its deadline, and any work still running was stopped.
+     */
+    TIMED_OUT
+}
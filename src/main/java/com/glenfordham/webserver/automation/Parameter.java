@@ -4,22 +4,33 @@ package com.glenfordham.webserver.automation;
  * Contains all supported URL parameters
  * <p>
  * eg. ?authentication_token=token&amp;request_type=request_type&amp;request=requestName
+ * <p>
+ * Optional parameters may be left out of a request.
  */
 public enum Parameter {
     AUTHENTICATION_TOKEN(
-            "authentication_token"
+            "authentication_token",
+            true
     ),
     REQUEST_NAME(
-            "request_name"
+            "request_name",
+            true
     ),
     REQUEST_TYPE(
-            "request_type"
+            "request_type",
+            true
+    ),
+    TIMEOUT(
+            "timeout",
+            false
     );
 
     private final String text;
+    private final boolean required;
 
-    Parameter(String text) {
+    Parameter(String text, boolean required) {
         this.text = text;
+        this.required = required;
     }
 
     /**
@@ -31,6 +42,15 @@ public enum Parameter {
         return text;
     }
 
+    /**
+     * Checks if the parameter must be provided with every request.
+     *
+     * @return True if the parameter is required, false if it is optional.
+     */
+    public boolean isRequired() {
+        return required;
+    }
+
     /**
      * Gets the Enum form of the passed in text
      *
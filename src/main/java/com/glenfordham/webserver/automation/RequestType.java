@@ -1,5 +1,10 @@
 package com.glenfordham.webserver.automation;
 
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 /**
  * Contains all supported request types
  * <p>
@@ -26,6 +31,10 @@ public enum RequestType {
             "proxy"
     );
 
+    // Request types by text, so that a request type is found with a single lookup
+    private static final Map<String, RequestType> BY_TEXT = Arrays.stream(values())
+            .collect(Collectors.toUnmodifiableMap(RequestType::get, requestType -> requestType));
+
     private final String text;
 
     RequestType(String text) {
@@ -48,11 +57,6 @@ public enum RequestType {
      * @return The Enum - returns null on failure to match on an Enum.
      */
     public static RequestType get(String text) {
-        for (RequestType requestType : RequestType.values()) {
-            if (text.equalsIgnoreCase(requestType.get())) {
-                return requestType;
-            }
-        }
-        return null;
+        return BY_TEXT.get(text.toLowerCase(Locale.ROOT));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+package com.glenfordham.webserver.automation;
+
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.handler.Action;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Routes of a configuration version, mapping each request type and request name to a compiled Action. A route table
+ * is compiled once per ConfigSnapshot, the first time the snapshot is used, so dispatching a request is a single
+ * lookup after the request has been authenticated. Routes are held in case-insensitive maps, which compare the request
+ * type and name in place, so that looking up a route, or rejecting an unknown one, allocates nothing whatever the case
+ * of the request.
+ */
+final class RouteTable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final AutomationParameterValidator parameterValidator;
+    private final Map<String, Map<String, Action>> routes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Compiles every configured request of a configuration version into an Action.
+     *
+     * @param config Configuration to compile.
+     */
+    private RouteTable(ConfigSnapshot config) {
+        long startTime = System.nanoTime();
+        parameterValidator = new AutomationParameterValidator(config);
+        int routeCount = 0;
+        for (String requestType : HandlerRegistry.getRequestTypes()) {
+            // Handlers of request types which are not configured are not initialised
+            Map<String, Action> actions = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            actions.putAll(HandlerRegistry.compile(requestType, config));
+            // Requests whose request policy limits how many run at once are run inside its bulkhead
+            actions.replaceAll((requestName, action) -> Bulkhead.wrap(config.getRequestPolicy(requestType, requestName), action));
+            routes.put(requestType, actions);
+            routeCount += actions.size();
+        }
+        logger.debug("Configuration version {} compiled to {} routes in {} ms",
+                config.getVersion(), routeCount, (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * Gets the route table of a configuration version, compiling it if this is the first time the version is used.
+     *
+     * @param config Configuration pinned for the request.
+     * @return The RouteTable of the configuration version.
+     */
+    static RouteTable of(ConfigSnapshot config) {
+        return config.getCompiled(RouteTable.class, RouteTable::new);
+    }
+
+    /**
+     * Gets the parameter validator of the configuration version, which authenticates requests.
+     *
+     * @return The AutomationParameterValidator.
+     */
+    AutomationParameterValidator getParameterValidator() {
+        return parameterValidator;
+    }
+
+    /**
+     * Gets the Action for a request. Unknown request names are not logged, so that they are rejected as cheaply as
+     * possible.
+     *
+     * @param requestType Type of the request, case-insensitive.
+     * @param requestName Name of the request, case-insensitive.
+     * @return The compiled Action, or null if the request is not configured or cannot be run.
+     */
+    Action get(String requestType, String requestName) {
+        Map<String, Action> actions = routes.get(requestType);
+        return actions == null ? null : actions.get(requestName);
+    }
+
+    /**
+     * Gets the request types of the route table.
+     *
+     * @return The registered request types, in lower case.
+     */
+    Set<String> getRequestTypes() {
+        return routes.keySet();
+    }
+
+    /**
+     * Gets the names of the runnable requests of a request type.
+     *
+     * @param requestType Type of the requests, in lower case.
+     * @return The request names which have a compiled Action.
+     */
+    Set<String> getRequestNames(String requestType) {
+        return routes.get(requestType).keySet();
+    }
+}
@@ -1,21 +1,13 @@
 package com.glenfordham.webserver.automation.config;
 
-import com.glenfordham.utils.StreamUtils;
-import com.glenfordham.webserver.automation.jaxb.Config;
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.Unmarshaller;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.xml.sax.SAXException;
-
-import javax.xml.XMLConstants;
-import javax.xml.transform.Source;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
+
 import java.io.File;
-import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents configuration XML that complies to the Automation Server XML schema.
@@ -27,80 +19,159 @@ public class AutomationConfig {
     // Used to save and retrieve Servlet configuration provided from command line
     public static final String CONFIG_LOCATION_KEY = "configLocation";
     public static final String CONFIG_RELOAD_KEY = "configReload";
+    public static final String CONFIG_CACHE_KEY = "configCache";
     public static final String CONFIG_DEBUG_KEY = "configDebug";
 
-    private static Config config = null;
-    private static boolean loaded = false;
-    private static boolean configReload = false;
+    // The current configuration is only ever replaced as a whole, so readers never see a partially loaded version
+    private static final AtomicReference<ConfigSnapshot> current = new AtomicReference<>();
+    private static ConfigWatcher configWatcher = null;
+    private static Path cacheFile = null;
+    private static ConfigFiles configFiles = null;
 
     /**
-     * Loads a configuration XML file and converts it into the JAXB representation.
+     * Loads a configuration XML file, converts it into the JAXB representation and indexes it as a ConfigSnapshot.
+     * Once loaded, the configuration is only reloaded if it is being watched for changes.
      *
      * @param configFileLocation Path to the configuration file relative to the application run path.
      * @throws AutomationConfigException If an error occurs with loading, validation or conversion.
      */
-    public static void load(String configFileLocation) throws AutomationConfigException {
-        if (!loaded || configReload) {
+    public static synchronized void load(String configFileLocation) throws AutomationConfigException {
+        if (current.get() == null) {
             logger.info("Loading configuration XML");
-            try {
-                // Load configuration file
-                File configFile = new File(configFileLocation);
-                if (!configFile.exists()) {
-                    throw new AutomationConfigException("Configuration XML file does not exist.");
-                }
-                validateConfig(configFile);
-
-                // Convert config XML into Java object representation
-                JAXBContext jaxbContext = JAXBContext.newInstance(Config.class);
-                Unmarshaller jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-                config = (Config) jaxbUnmarshaller.unmarshal(configFile);
-                loaded = true;
-            } catch (Exception e) {
-                throw new AutomationConfigException(e.getMessage(), e);
+            long startTime = System.nanoTime();
+            ConfigSnapshot loaded = parse(configFileLocation, nextVersion());
+            current.set(loaded);
+            logger.info("Configuration XML version {} loaded in {} ms, holding approximately {} bytes", loaded.getVersion(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), loaded.getEstimatedBytes());
+        }
+    }
+
+    /**
+     * Reloads the configuration XML file, replacing the current configuration only if the new configuration is valid.
+     * Requests in progress keep the version they pinned, and the replaced version is retired once they finish.
+     *
+     * @param configFileLocation Path to the configuration file relative to the application run path.
+     */
+    static synchronized void reload(String configFileLocation) {
+        long startTime = System.nanoTime();
+        try {
+            ConfigSnapshot updated = parse(configFileLocation, nextVersion());
+            ConfigSnapshot previous = current.getAndSet(updated);
+            if (previous != null) {
+                previous.retire();
             }
+
+            List<String> changes = updated.describeChanges(previous);
+            logger.info("Configuration XML version {} reloaded in {} ms with {} change(s), holding approximately {} bytes",
+                    updated.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), changes.size(),
+                    updated.getEstimatedBytes());
+            changes.forEach(change -> logger.info("Configuration change: {}", change));
+        } catch (AutomationConfigException e) {
+            logger.error("Unable to reload configuration XML, current configuration retained. {}", e.getMessage());
         }
     }
 
     /**
-     * Get the loaded Automation configuration file
+     * Enables the binary configuration cache. Each time the configuration XML is successfully loaded, the validated
+     * configuration is written to the cache file, and later loads of the same XML content read the cache instead of
+     * processing the XML. Must be called before the configuration is loaded.
      *
-     * @return The Config object.
+     * @param cacheFileLocation Path to the cache file relative to the application run path.
+     */
+    public static synchronized void useCache(String cacheFileLocation) {
+        cacheFile = Path.of(cacheFileLocation);
+        logger.info("Configuration cache enabled: {}", cacheFile.toAbsolutePath());
+    }
+
+    /**
+     * Get the loaded Automation configuration file. The returned snapshot is not pinned, so requests should use
+     * {@link #pin()} to keep a single version for their whole lifetime.
+     *
+     * @return The indexed ConfigSnapshot.
      * @throws AutomationConfigException If configuration file is not yet loaded.
      */
-    public static Config get() throws AutomationConfigException {
-        if (config == null) {
+    public static ConfigSnapshot get() throws AutomationConfigException {
+        ConfigSnapshot snapshot = current.get();
+        if (snapshot == null) {
             throw new AutomationConfigException("Configuration file unexpectedly not loaded.");
         }
-        return config;
+        return snapshot;
     }
 
     /**
-     * Sets the configReload value.
+     * Pins the current configuration version. The pinned version will not be retired until the pin is closed, even if
+     * the configuration XML is reloaded. No locks are taken.
      *
-     * @param value If true, configuration file will be loaded on every request. Should only be used in single-thread
-     *              debug scenarios to ensure thread-safety.
+     * @return A ConfigPin for the current ConfigSnapshot, to be closed when the request is complete.
+     * @throws AutomationConfigException If configuration file is not yet loaded.
      */
-    public static void setConfigReload(boolean value) {
-        configReload = value;
-        logger.info("Configuration XML will reload on every request.");
+    public static ConfigPin pin() throws AutomationConfigException {
+        while (true) {
+            ConfigSnapshot snapshot = get();
+            snapshot.pin();
+            // If a reload replaced the snapshot before it was pinned, it may already be retired, so try again
+            if (current.get() == snapshot) {
+                return new ConfigPin(snapshot);
+            }
+            snapshot.unpin();
+        }
     }
 
-    private static void validateConfig(final File configFile) throws AutomationConfigException {
-        SchemaFactory schemaFactory;
-        schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        try {
-            schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
-            schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+    /**
+     * Starts watching the configuration XML file and its included files, so that the configuration is reloaded in the
+     * background whenever their content changes. Requests never wait for the configuration to be reloaded. If called
+     * before the configuration is loaded, parsed files are kept so that each reload only parses the changed files.
+     *
+     * @param configFileLocation Path to the configuration file relative to the application run path.
+     */
+    public static synchronized void watch(String configFileLocation) {
+        if (configWatcher == null) {
+            configWatcher = new ConfigWatcher(configFileLocation);
+            configWatcher.start();
+            logger.info("Configuration XML will be reloaded when changed.");
+        }
+    }
 
-            // Load and validate config XML file against schema - use getResourceAsStream() so this code works when jar'd
-            Schema schema = schemaFactory.newSchema(StreamUtils.getFile(AutomationConfig.class.getResourceAsStream(Constant.CONFIG_XSD.getText())));
-            Validator validator = schema.newValidator();
-            Source configFileAsXml = new StreamSource(configFile);
+    /**
+     * Gets the configuration XML file and every file it includes, as of the last load.
+     *
+     * @param configFileLocation Path to the configuration file relative to the application run path.
+     * @return A List of absolute file paths, starting with the configuration XML file.
+     */
+    static synchronized List<Path> getConfigFiles(String configFileLocation) {
+        return configFiles != null ? configFiles.getFiles() : List.of(Path.of(configFileLocation).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Gets the version number for the next ConfigSnapshot. Only called while holding the load lock.
+     *
+     * @return The current version plus one, or 1 if no configuration is loaded.
+     */
+    private static long nextVersion() {
+        ConfigSnapshot snapshot = current.get();
+        return snapshot != null ? snapshot.getVersion() + 1 : 1;
+    }
+
+    /**
+     * Parses the configuration XML file and its included files into a new ConfigSnapshot.
+     *
+     * @param configFileLocation Path to the configuration file relative to the application run path.
+     * @param version            Version number to give the parsed ConfigSnapshot.
+     * @return The parsed ConfigSnapshot.
+     * @throws AutomationConfigException If an error occurs with loading, validation or conversion.
+     */
+    private static ConfigSnapshot parse(String configFileLocation, long version) throws AutomationConfigException {
+        // Load configuration file
+        File configFile = new File(configFileLocation);
+        if (!configFile.exists()) {
+            throw new AutomationConfigException("Configuration XML file does not exist.");
+        }
 
-            validator.validate(configFileAsXml);
-        } catch (IOException | SAXException e) {
-            throw new AutomationConfigException(e.getMessage(), e);
+        // Keep file hashes while watching, so that a reload only validates the files which have changed
+        if (configFiles == null) {
+            configFiles = new ConfigFiles(configFile.toPath());
         }
+        return new ConfigSnapshot(configFiles.load(cacheFile, configWatcher != null), version);
     }
 
     // use static methods
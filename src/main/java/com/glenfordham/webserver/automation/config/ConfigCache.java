@@ -0,0 +1,246 @@
+package com.glenfordham.webserver.automation.config;
+
+import com.glenfordham.webserver.automation.jaxb.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Binary cache of a validated configuration, used to skip JAXB and XML schema processing at startup while the
+ * configuration XML is unchanged.
+ * <p>
+ * The cache file starts with a header holding a format version, a hash of the XML schema, a hash of the
+ * configuration XML content, and the path and content hash of each included file. The rest of the file is the
+ * serialized, merged configuration. The file is memory-mapped when read, and is only used if every header value
+ * matches, otherwise the configuration XML is processed as normal and the cache is rewritten.
+ */
+final class ConfigCache {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int MAGIC = 0x41534343; // "ASCC"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+
+    // Only the generated configuration classes and the JDK types they are made of may be read from the cache
+    private static final ObjectInputFilter CLASS_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;java.lang.*;java.util.ArrayList;com.glenfordham.webserver.automation.jaxb.*;!*");
+
+    private static byte[] schemaHash = null;
+
+    /**
+     * Reads the configuration from a cache file, if the cache was written for the same XML schema and the same content
+     * of the configuration XML file and every included file.
+     *
+     * @param cacheFile     Location of the cache file.
+     * @param contentHash   Hash of the configuration XML content, from {@link #hash(byte[])}.
+     * @param baseDirectory Directory that included file paths are relative to.
+     * @return The cached configuration, or null if there is no usable cache.
+     */
+    static Config read(Path cacheFile, byte[] contentHash, Path baseDirectory) {
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || !matches(buffer, getSchemaHash()) || !matches(buffer, contentHash)
+                    || !includesMatch(buffer, baseDirectory)) {
+                logger.info("Configuration cache is out of date and will be rewritten");
+                return null;
+            }
+
+            try (ObjectInputStream input = new ObjectInputStream(new ByteBufferInputStream(buffer))) {
+                input.setObjectInputFilter(CLASS_FILTER);
+                return (Config) input.readObject();
+            }
+        } catch (NoSuchFileException e) {
+            logger.info("No configuration cache found, it will be created");
+        } catch (IOException | ClassNotFoundException | ClassCastException | BufferUnderflowException e) {
+            // Includes caches written by a build with different configuration classes
+            logger.warn("Unable to read configuration cache, it will be rewritten. {}", e.toString());
+        } catch (AutomationConfigException e) {
+            logger.warn("Unable to read configuration cache. {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Writes a validated configuration to a cache file. The file is replaced atomically, so a reader never sees a
+     * partly written cache. Failures are logged, as the cache is only an optimisation.
+     *
+     * @param cacheFile     Location of the cache file.
+     * @param contentHash   Hash of the configuration XML content the configuration was loaded from.
+     * @param includeHashes Path of each included file, as configured, and the hash of the content it was loaded from.
+     * @param config        The validated, merged configuration.
+     */
+    static void write(Path cacheFile, byte[] contentHash, Map<String, byte[]> includeHashes, Config config) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream header = new DataOutputStream(bytes)) {
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                header.write(getSchemaHash());
+                header.write(contentHash);
+                header.writeInt(includeHashes.size());
+                for (Map.Entry<String, byte[]> include : includeHashes.entrySet()) {
+                    header.writeUTF(include.getKey());
+                    header.write(include.getValue());
+                }
+            }
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(config);
+            }
+
+            Path directory = cacheFile.toAbsolutePath().getParent();
+            Path tempFile = Files.createTempFile(directory, cacheFile.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tempFile, bytes.toByteArray());
+                Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            logger.info("Configuration cache written: {} ({} bytes)", cacheFile, bytes.size());
+        } catch (IOException | AutomationConfigException e) {
+            logger.warn("Unable to write configuration cache. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Hashes configuration XML content, or any other content which determines whether a cache is valid.
+     *
+     * @param content Content to hash.
+     * @return A SHA-256 hash of the content.
+     */
+    static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be supported by every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks if the next hash in the buffer matches the expected hash.
+     *
+     * @param buffer   Buffer positioned at the start of a hash.
+     * @param expected The expected hash.
+     * @return True if the hashes match.
+     */
+    private static boolean matches(ByteBuffer buffer, byte[] expected) {
+        byte[] actual = new byte[HASH_LENGTH];
+        buffer.get(actual);
+        return Arrays.equals(actual, expected);
+    }
+
+    /**
+     * Checks if every included file listed in the buffer still has the content hash it was cached with.
+     *
+     * @param buffer        Buffer positioned at the start of the included file list.
+     * @param baseDirectory Directory that included file paths are relative to.
+     * @return True if every included file is unchanged.
+     */
+    private static boolean includesMatch(ByteBuffer buffer, Path baseDirectory) {
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] path = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(path);
+            // Paths are written with writeUTF, which is the same as UTF-8 for anything but NUL and supplementary characters
+            Path includeFile = baseDirectory.resolve(new String(path, StandardCharsets.UTF_8).strip());
+            try {
+                if (!matches(buffer, hash(Files.readAllBytes(includeFile)))) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the hash of the XML schema, so that a cache is not used after the schema, and therefore the configuration
+     * classes, have changed.
+     *
+     * @return A SHA-256 hash of the XML schema.
+     * @throws AutomationConfigException If the XML schema cannot be read.
+     */
+    private static synchronized byte[] getSchemaHash() throws AutomationConfigException {
+        if (schemaHash == null) {
+            URL schemaLocation = ConfigCache.class.getResource(Constant.CONFIG_XSD.getText());
+            if (schemaLocation == null) {
+                throw new AutomationConfigException("Configuration XML schema not found.");
+            }
+            try (InputStream schema = schemaLocation.openStream()) {
+                schemaHash = hash(schema.readAllBytes());
+            } catch (IOException e) {
+                throw new AutomationConfigException(e.getMessage(), e);
+            }
+        }
+        return schemaHash;
+    }
+
+    /**
+     * Reads a ByteBuffer as an InputStream, so that a memory-mapped cache is deserialized without copying it first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * Creates an InputStream which reads from the buffer's current position to its limit.
+         *
+         * @param buffer Buffer to read.
+         */
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    // use static methods
+    private ConfigCache() {
+    }
+}
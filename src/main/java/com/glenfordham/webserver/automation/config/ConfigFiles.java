@@ -0,0 +1,367 @@
+package com.glenfordham.webserver.automation.config;
+
+import com.glenfordham.webserver.automation.jaxb.Broadlink;
+import com.glenfordham.webserver.automation.jaxb.Carport;
+import com.glenfordham.webserver.automation.jaxb.CommandLine;
+import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.jaxb.ConfigInclude;
+import com.glenfordham.webserver.automation.jaxb.Email;
+import com.glenfordham.webserver.automation.jaxb.Gpio;
+import com.glenfordham.webserver.automation.jaxb.Proxy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The configuration XML file and the files it includes. Included files have a config_include root element, and their
+ * sections are merged into the sections of the configuration XML file, in the order they are included.
+ * <p>
+ * Included files are validated and converted in parallel on the common fork-join pool. When file hashes are kept, a
+ * reload only validates the files whose content has changed, and converts the rest without validating them again.
+ * Only the hash of each file is kept between loads, never its parsed content, so the JAXB representation is dropped
+ * once the configuration snapshot has been built.
+ */
+final class ConfigFiles {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Path configFile;
+    private final Path baseDirectory;
+    private volatile List<Path> files;
+
+    // Hash of the content of each file as it was last validated, empty unless file hashes are kept
+    private Map<Path, byte[]> validatedHashes = Map.of();
+
+    /**
+     * Creates a ConfigFiles for a configuration XML file. Included files are resolved relative to its directory.
+     *
+     * @param configFile The configuration XML file.
+     */
+    ConfigFiles(Path configFile) {
+        this.configFile = configFile.toAbsolutePath().normalize();
+        this.baseDirectory = this.configFile.getParent();
+        this.files = List.of(this.configFile);
+    }
+
+    /**
+     * Gets the configuration XML file and every file it includes, as of the last load. Safe to call from any thread.
+     *
+     * @return An immutable List of absolute file paths, starting with the configuration XML file.
+     */
+    List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Loads the configuration XML file and its included files, and merges them into a single configuration.
+     *
+     * @param cacheFile      Location of the binary configuration cache, or null if the cache is not used.
+     * @param keepFileHashes True to keep the hash of each file, so that the next load only validates changed files.
+     * @return The merged configuration.
+     * @throws AutomationConfigException If a file cannot be read, is invalid, or the merged configuration is invalid.
+     */
+    Config load(Path cacheFile, boolean keepFileHashes) throws AutomationConfigException {
+        byte[] configXml = read(configFile);
+        byte[] contentHash = ConfigCache.hash(configXml);
+
+        // Use the cached configuration if it was written for the same content of every file, skipping XML processing
+        if (cacheFile != null) {
+            Config cached = ConfigCache.read(cacheFile, contentHash, baseDirectory);
+            if (cached != null) {
+                logger.debug("Configuration loaded from cache");
+                files = resolveFiles(cached.getIncludes());
+                // The cache was only written for validated content, so the first reload need only validate changes
+                validatedHashes = keepFileHashes ? hashFiles(contentHash) : Map.of();
+                return cached;
+            }
+        }
+
+        Map<Path, byte[]> hashes = new HashMap<>();
+        Config config = ConfigLoader.load(configXml, Config.class, !isValidated(configFile, contentHash));
+        hashes.put(configFile, contentHash);
+
+        // Track included files as soon as they are known, so a missing file is picked up by the watcher once created
+        files = resolveFiles(config.getIncludes());
+        List<Path> includeFiles = files.subList(1, files.size());
+
+        Map<String, byte[]> includeHashes = new LinkedHashMap<>();
+        List<ConfigInclude> includes = loadIncludes(config.getIncludes(), includeFiles, includeHashes, hashes);
+
+        Config merged = merge(config, includes);
+        validatedHashes = keepFileHashes ? hashes : Map.of();
+        if (cacheFile != null) {
+            ConfigCache.write(cacheFile, contentHash, includeHashes, merged);
+        }
+        return merged;
+    }
+
+    /**
+     * Reads and hashes each included file, and converts them in parallel. Only the files which have changed since
+     * they were last validated are validated.
+     *
+     * @param includePaths  Included file paths, as configured.
+     * @param includeFiles  Included files, resolved against the configuration XML file's directory.
+     * @param includeHashes Map to add each configured include path and its content hash to.
+     * @param hashes        Map to add the content hash of each included file to.
+     * @return The parsed included files, in the order they are included.
+     * @throws AutomationConfigException If an included file cannot be read or is invalid.
+     */
+    private List<ConfigInclude> loadIncludes(List<String> includePaths, List<Path> includeFiles,
+                                             Map<String, byte[]> includeHashes, Map<Path, byte[]> hashes) throws AutomationConfigException {
+        ConfigInclude[] includes = new ConfigInclude[includeFiles.size()];
+        List<ParseTask> tasks = new ArrayList<>();
+        int validated = 0;
+        for (int i = 0; i < includeFiles.size(); i++) {
+            Path includeFile = includeFiles.get(i);
+            byte[] includeXml = read(includeFile);
+            byte[] includeHash = ConfigCache.hash(includeXml);
+            includeHashes.put(includePaths.get(i), includeHash);
+            hashes.put(includeFile, includeHash);
+
+            boolean validate = !isValidated(includeFile, includeHash);
+            if (validate) {
+                validated++;
+            }
+            tasks.add(new ParseTask(i, includeXml, validate));
+        }
+
+        if (!tasks.isEmpty()) {
+            ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            for (ParseTask task : tasks) {
+                if (task.error != null) {
+                    throw new AutomationConfigException(String.format("Included file '%s' is invalid. %s",
+                            includePaths.get(task.index), task.error.getMessage()), task.error);
+                }
+                includes[task.index] = task.getRawResult();
+            }
+        }
+        logger.debug("{} included file(s) loaded, {} validated", includes.length, validated);
+        return Arrays.asList(includes);
+    }
+
+    /**
+     * Checks if a file was validated with the same content by an earlier load, so it only needs to be converted.
+     *
+     * @param file The file.
+     * @param hash Hash of the current file content.
+     * @return True if the file content has not changed since it was validated.
+     */
+    private boolean isValidated(Path file, byte[] hash) {
+        byte[] previous = validatedHashes.get(file);
+        return previous != null && Arrays.equals(previous, hash);
+    }
+
+    /**
+     * Hashes the configuration XML file and each included file, after the configuration has been read from the cache,
+     * which was only written for validated content. Files which cannot be read are left out, so they are validated
+     * by the next load.
+     *
+     * @param contentHash Hash of the configuration XML content.
+     * @return A Map of each file to the hash of its content.
+     */
+    private Map<Path, byte[]> hashFiles(byte[] contentHash) {
+        Map<Path, byte[]> hashes = new HashMap<>();
+        hashes.put(configFile, contentHash);
+        for (Path includeFile : files.subList(1, files.size())) {
+            try {
+                hashes.put(includeFile, ConfigCache.hash(read(includeFile)));
+            } catch (AutomationConfigException e) {
+                logger.debug("Unable to hash included file {}. {}", includeFile, e.getMessage());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Resolves the configured include paths against the configuration XML file's directory.
+     *
+     * @param includePaths Included file paths, as configured.
+     * @return An immutable List of the configuration XML file followed by each included file.
+     */
+    private List<Path> resolveFiles(List<String> includePaths) {
+        List<Path> resolved = new ArrayList<>();
+        resolved.add(configFile);
+        for (String includePath : includePaths) {
+            resolved.add(baseDirectory.resolve(includePath.strip()).normalize());
+        }
+        return List.copyOf(resolved);
+    }
+
+    /**
+     * Merges the sections of the included files into the configuration.
+     *
+     * @param config   The configuration XML file.
+     * @param includes The included files, in the order they are included.
+     * @return The merged configuration.
+     * @throws AutomationConfigException If the merged configuration is invalid.
+     */
+    private static Config merge(Config config, List<ConfigInclude> includes) throws AutomationConfigException {
+        Config merged = config;
+        if (!includes.isEmpty()) {
+            merged = new Config();
+            merged.setAuthenticationToken(config.getAuthenticationToken());
+            merged.getIncludes().addAll(config.getIncludes());
+            merged.setBroadlink(mergeBroadlink(sections(config.getBroadlink(), includes, ConfigInclude::getBroadlink)));
+            merged.setCarport(mergeSections(sections(config.getCarport(), includes, ConfigInclude::getCarport), Carport::new,
+                    (to, from) -> to.getRequests().addAll(from.getRequests())));
+            merged.setCommandLine(mergeSections(sections(config.getCommandLine(), includes, ConfigInclude::getCommandLine), CommandLine::new,
+                    (to, from) -> to.getRequests().addAll(from.getRequests())));
+            merged.setEmail(mergeSections(sections(config.getEmail(), includes, ConfigInclude::getEmail), Email::new,
+                    (to, from) -> {
+                        to.getMailboxes().addAll(from.getMailboxes());
+                        to.getRequests().addAll(from.getRequests());
+                    }));
+            merged.setGpio(mergeSections(sections(config.getGpio(), includes, ConfigInclude::getGpio), Gpio::new,
+                    (to, from) -> to.getRequests().addAll(from.getRequests())));
+            merged.setProxy(mergeSections(sections(config.getProxy(), includes, ConfigInclude::getProxy), Proxy::new,
+                    (to, from) -> {
+                        to.getHosts().addAll(from.getHosts());
+                        to.getRequests().addAll(from.getRequests());
+                    }));
+            merged.getRequestPolicies().addAll(config.getRequestPolicies());
+            for (ConfigInclude include : includes) {
+                merged.getRequestPolicies().addAll(include.getRequestPolicies());
+            }
+        }
+
+        if (merged.getBroadlink() != null && merged.getBroadlink().getCliPath() == null) {
+            throw new AutomationConfigException("Broadlink cli_path is not configured.");
+        }
+        return merged;
+    }
+
+    /**
+     * Merges Broadlink sections. cli_path may only be configured in one of the sections.
+     *
+     * @param sections Broadlink sections to merge, in order.
+     * @return The merged Broadlink section, or null if there are no sections.
+     * @throws AutomationConfigException If cli_path is configured more than once.
+     */
+    private static Broadlink mergeBroadlink(List<Broadlink> sections) throws AutomationConfigException {
+        if (sections.isEmpty()) {
+            return null;
+        }
+        Broadlink merged = new Broadlink();
+        for (Broadlink section : sections) {
+            if (section.getCliPath() != null) {
+                if (merged.getCliPath() != null) {
+                    throw new AutomationConfigException("Broadlink cli_path is configured more than once.");
+                }
+                merged.setCliPath(section.getCliPath());
+            }
+            merged.getDevices().addAll(section.getDevices());
+            merged.getSignals().addAll(section.getSignals());
+            merged.getRequests().addAll(section.getRequests());
+        }
+        return merged;
+    }
+
+    /**
+     * Merges sections of the same type into a new section.
+     *
+     * @param sections Sections to merge, in order.
+     * @param create   Creates a new, empty section.
+     * @param append   Appends the entries of one section to another.
+     * @param <T>      Type of the section.
+     * @return The merged section, or null if there are no sections.
+     */
+    private static <T> T mergeSections(List<T> sections, Supplier<T> create, BiConsumer<T, T> append) {
+        if (sections.isEmpty()) {
+            return null;
+        }
+        T merged = create.get();
+        sections.forEach(section -> append.accept(merged, section));
+        return merged;
+    }
+
+    /**
+     * Gets every configured section of one type, from the configuration XML file and then each included file.
+     *
+     * @param section    The section from the configuration XML file, may be null.
+     * @param includes   The included files.
+     * @param getSection Function which gets the section from an included file.
+     * @param <T>        Type of the section.
+     * @return A List of the sections which are present.
+     */
+    private static <T> List<T> sections(T section, List<ConfigInclude> includes, Function<ConfigInclude, T> getSection) {
+        List<T> sections = new ArrayList<>();
+        if (section != null) {
+            sections.add(section);
+        }
+        for (ConfigInclude include : includes) {
+            T includedSection = getSection.apply(include);
+            if (includedSection != null) {
+                sections.add(includedSection);
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Reads the content of a configuration file.
+     *
+     * @param file The file to read.
+     * @return The file content.
+     * @throws AutomationConfigException If the file does not exist or cannot be read.
+     */
+    private static byte[] read(Path file) throws AutomationConfigException {
+        if (!Files.exists(file)) {
+            throw new AutomationConfigException(String.format("Configuration XML file does not exist: %s", file));
+        }
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new AutomationConfigException(String.format("Unable to read configuration XML file. %s", e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Converts an included file on the fork-join pool, validating it if required. Errors are kept rather than thrown,
+     * so that they can be reported against the file they came from.
+     */
+    private static class ParseTask extends RecursiveTask<ConfigInclude> {
+
+        private final int index;
+        private final byte[] includeXml;
+        private final boolean validate;
+        private AutomationConfigException error = null;
+
+        /**
+         * Creates a task to parse an included file.
+         *
+         * @param index      Position of the file in the list of included files.
+         * @param includeXml Content of the included file.
+         * @param validate   True to validate the file against the schema.
+         */
+        ParseTask(int index, byte[] includeXml, boolean validate) {
+            this.index = index;
+            this.includeXml = includeXml;
+            this.validate = validate;
+        }
+
+        @Override
+        protected ConfigInclude compute() {
+            try {
+                return ConfigLoader.load(includeXml, ConfigInclude.class, validate);
+            } catch (AutomationConfigException e) {
+                error = e;
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.glenfordham.webserver.automation.config;
+
+import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.jaxb.ConfigInclude;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+
+/**
+ * Converts configuration XML files into their JAXB representation, validating against the Automation Server XML
+ * schema in the same pass. The JAXBContext and compiled Schema are expensive to create but thread-safe, so they are
+ * created once per process and shared by every load.
+ */
+final class ConfigLoader {
+
+    private static JAXBContext jaxbContext = null;
+    private static Schema schema = null;
+
+    /**
+     * Validates and unmarshals a configuration XML file in a single parse. Safe to call from multiple threads at once.
+     *
+     * @param configXml Content of the configuration XML file.
+     * @param rootType  The expected root element type, either Config or ConfigInclude.
+     * @param <T>       Type of the root element.
+     * @return The JAXB representation of the configuration XML.
+     * @throws AutomationConfigException If the XML is invalid against the schema, or cannot be converted.
+     */
+    static <T> T load(byte[] configXml, Class<T> rootType) throws AutomationConfigException {
+        return load(configXml, rootType, true);
+    }
+
+    /**
+     * Unmarshals a configuration XML file, validating it in the same parse if required. Content which has already
+     * been validated, and has not changed since, can skip validation. Safe to call from multiple threads at once.
+     *
+     * @param configXml Content of the configuration XML file.
+     * @param rootType  The expected root element type, either Config or ConfigInclude.
+     * @param validate  True to validate the XML against the schema.
+     * @param <T>       Type of the root element.
+     * @return The JAXB representation of the configuration XML.
+     * @throws AutomationConfigException If the XML is invalid against the schema, or cannot be converted.
+     */
+    static <T> T load(byte[] configXml, Class<T> rootType, boolean validate) throws AutomationConfigException {
+        Object root;
+        try {
+            // Unmarshallers are not thread-safe, so create one per load. They are cheap once the context exists
+            Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
+            if (validate) {
+                unmarshaller.setSchema(getSchema());
+            }
+            root = unmarshaller.unmarshal(new ByteArrayInputStream(configXml));
+        } catch (JAXBException e) {
+            // Validation and parse errors are linked to the JAXBException, and carry the useful message
+            Throwable cause = e.getLinkedException() != null ? e.getLinkedException() : e;
+            throw new AutomationConfigException(cause.getMessage() != null ? cause.getMessage() : e.toString(), e);
+        }
+
+        // Both root elements are valid against the schema, so check the right one was used
+        if (!rootType.isInstance(root)) {
+            throw new AutomationConfigException(String.format("Unexpected root element, expected %s.",
+                    rootType == Config.class ? "config" : "config_include"));
+        }
+        return rootType.cast(root);
+    }
+
+    /**
+     * Gets the shared JAXBContext, creating it on first use.
+     *
+     * @return The JAXBContext for the Config and ConfigInclude classes.
+     * @throws JAXBException If the JAXBContext cannot be created.
+     */
+    private static synchronized JAXBContext getJaxbContext() throws JAXBException {
+        if (jaxbContext == null) {
+            jaxbContext = JAXBContext.newInstance(Config.class, ConfigInclude.class);
+        }
+        return jaxbContext;
+    }
+
+    /**
+     * Gets the shared compiled Schema, creating it on first use. The schema is read straight from the classpath, which
+     * also works when running from a jar.
+     *
+     * @return The compiled configuration XML schema.
+     * @throws AutomationConfigException If the schema cannot be found or compiled.
+     */
+    private static synchronized Schema getSchema() throws AutomationConfigException {
+        if (schema == null) {
+            URL schemaLocation = ConfigLoader.class.getResource(Constant.CONFIG_XSD.getText());
+            if (schemaLocation == null) {
+                throw new AutomationConfigException("Configuration XML schema not found.");
+            }
+            try {
+                SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+                schemaFactory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+                schema = schemaFactory.newSchema(schemaLocation);
+            } catch (SAXException e) {
+                throw new AutomationConfigException(e.getMessage(), e);
+            }
+        }
+        return schema;
+    }
+
+    // use static methods
+    private ConfigLoader() {
+    }
+}
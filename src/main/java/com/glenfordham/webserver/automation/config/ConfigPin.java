@@ -0,0 +1,41 @@
+package com.glenfordham.webserver.automation.config;
+
+/**
+ * A pin on a single ConfigSnapshot version, held for the lifetime of a request so that every part of the request sees
+ * the same configuration, even if the configuration XML is reloaded part way through. Closing the pin allows the
+ * snapshot to be retired once it has been replaced.
+ */
+public final class ConfigPin implements AutoCloseable {
+
+    private final ConfigSnapshot snapshot;
+    private boolean closed = false;
+
+    /**
+     * Creates a pin on an already pinned snapshot.
+     *
+     * @param snapshot The pinned ConfigSnapshot.
+     */
+    ConfigPin(ConfigSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Gets the pinned configuration.
+     *
+     * @return The pinned ConfigSnapshot.
+     */
+    public ConfigSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Releases the pin. Only the first call has any effect.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            snapshot.unpin();
+        }
+    }
+}
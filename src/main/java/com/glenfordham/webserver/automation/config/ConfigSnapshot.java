@@ -0,0 +1,776 @@
+package com.glenfordham.webserver.automation.config;
+
+import com.glenfordham.webserver.automation.handler.proxy.ProxyParameterMapping;
+import com.glenfordham.webserver.automation.jaxb.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Immutable, indexed view of a loaded configuration XML file. All configured names are indexed case-insensitively, and
+ * references between configuration elements (eg. a Broadlink request and its device and signal) are resolved once when
+ * the snapshot is built, rather than on every request.
+ * <p>
+ * The snapshot does not keep the JAXB representation of the configuration XML. Names and other repeated Strings are
+ * stored once, and the Broadlink section, which can hold thousands of signals, is converted to a compact form with all
+ * signal payloads decoded into a single shared arena.
+ * <p>
+ * Each snapshot has a version, and is pinned by requests for as long as they use it. When a reload replaces a
+ * snapshot it is retired, and its retire actions run once the last request pinning it has finished.
+ */
+public final class ConfigSnapshot {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Approximate size of an index entry and the record or request object it refers to, excluding Strings
+    private static final int ENTRY_OVERHEAD = 64;
+    // Separates the request type and request name of a request policy key, and cannot appear in a request type
+    private static final char POLICY_KEY_SEPARATOR = ':';
+
+    private final long version;
+    private final long estimatedBytes;
+    private final AuthenticationToken authenticationToken;
+
+    // Each index is null if the matching section is not present in the configuration XML
+    private final Map<String, Device> broadlinkDevices;
+    private final Map<String, Signal> broadlinkSignals;
+    private final Map<String, BroadlinkEntry> broadlinkRequests;
+    private final Map<String, CarportEntry> carportRequests;
+    private final Map<String, CommandLineRequest> commandLineRequests;
+    private final Map<String, Mailbox> mailboxes;
+    private final Map<String, EmailEntry> emailRequests;
+    private final Map<String, GpioRequest> gpioRequests;
+    private final Map<String, ProxyHost> proxyHosts;
+    private final Map<String, ProxyEntry> proxyRequests;
+    // Request policies are keyed by request type, or by request type and request name
+    private final Map<String, RequestPolicy> requestPolicies;
+
+    // Pinning and retirement state, updated without locks as it is used on every request
+    private final AtomicInteger pins = new AtomicInteger();
+    private final AtomicBoolean retireActionsRun = new AtomicBoolean();
+    private final List<Runnable> retireActions = new CopyOnWriteArrayList<>();
+    private volatile boolean retired = false;
+
+    // Structures compiled from this snapshot by other packages, eg. the route table
+    private final Map<Class<?>, FutureTask<Object>> compiled = new ConcurrentHashMap<>();
+
+    /**
+     * Builds an indexed snapshot from the JAXB representation of the configuration XML.
+     *
+     * @param config  The unmarshalled configuration XML.
+     * @param version Version number of the snapshot, increasing with each load.
+     */
+    ConfigSnapshot(Config config, long version) {
+        this.version = version;
+        authenticationToken = config.getAuthenticationToken();
+        StringPool pool = new StringPool();
+        SignalArena arena = null;
+
+        Broadlink broadlink = config.getBroadlink();
+        if (broadlink != null) {
+            String cliPath = pool.intern(broadlink.getCliPath());
+            // Signals with a duplicate name are dropped by the index, so the arena is sized from the signals kept
+            Map<String, BroadlinkSignal> signals = index(pool, broadlink.getSignals(), BroadlinkSignal::getName);
+            SignalArena signalArena = new SignalArena(signals.values().stream().map(BroadlinkSignal::getCode).toList());
+            broadlinkDevices = index(pool, broadlink.getDevices(), BroadlinkDevice::getName, device -> new Device(
+                    pool.intern(device.getName()),
+                    pool.intern(device.getDeviceCode()),
+                    pool.intern(device.getIpAddress()),
+                    pool.intern(device.getMacAddress())));
+            Map<String, Signal> decodedSignals = new HashMap<>();
+            signals.forEach((name, signal) -> decodedSignals.put(name, signalArena.add(pool.intern(signal.getName()), signal.getCode())));
+            broadlinkSignals = Collections.unmodifiableMap(decodedSignals);
+            broadlinkRequests = index(pool, broadlink.getRequests(), BroadlinkRequest::getName, request -> new BroadlinkEntry(
+                    pool.intern(request.getName()),
+                    cliPath,
+                    pool.intern(request.getBroadlinkDeviceName()),
+                    resolve(broadlinkDevices, request.getBroadlinkDeviceName(), "Broadlink device", request.getName()),
+                    resolve(broadlinkSignals, request.getSignalName(), "Broadlink signal", request.getName())));
+            arena = signalArena;
+        } else {
+            broadlinkDevices = null;
+            broadlinkSignals = null;
+            broadlinkRequests = null;
+        }
+
+        Gpio gpio = config.getGpio();
+        gpioRequests = gpio != null ? index(pool, gpio.getRequests(), GpioRequest::getName) : null;
+
+        Carport carport = config.getCarport();
+        if (carport != null) {
+            // Carport requests may only link to 'Carport Only' Gpio requests
+            Map<String, GpioRequest> carportGpioRequests = gpio != null
+                    ? index(pool, gpio.getRequests().stream().filter(GpioRequest::isCarportOnly).toList(), GpioRequest::getName)
+                    : Map.of();
+            carportRequests = index(pool, carport.getRequests(), CarportRequest::getName, request -> new CarportEntry(
+                    request,
+                    resolveGpio(carportGpioRequests, request, CarportEntry.TRIGGER),
+                    resolveGpio(carportGpioRequests, request, CarportEntry.READ)));
+        } else {
+            carportRequests = null;
+        }
+
+        CommandLine commandLine = config.getCommandLine();
+        commandLineRequests = commandLine != null ? index(pool, commandLine.getRequests(), CommandLineRequest::getName) : null;
+
+        Email email = config.getEmail();
+        if (email != null) {
+            mailboxes = index(pool, email.getMailboxes(), Mailbox::getName);
+            emailRequests = index(pool, email.getRequests(), EmailRequest::getName, request -> new EmailEntry(
+                    request,
+                    resolve(mailboxes, request.getMailboxName(), "Mailbox", request.getName())));
+        } else {
+            mailboxes = null;
+            emailRequests = null;
+        }
+
+        Proxy proxy = config.getProxy();
+        if (proxy != null) {
+            proxyHosts = index(pool, proxy.getHosts(), ProxyHost::getName);
+            proxyRequests = index(pool, proxy.getRequests(), ProxyRequest::getName, request -> new ProxyEntry(
+                    request,
+                    resolve(proxyHosts, request.getHost(), "Proxy host", request.getName()),
+                    getForwardParameters(pool, request)));
+        } else {
+            proxyHosts = null;
+            proxyRequests = null;
+        }
+
+        requestPolicies = index(pool, config.getRequestPolicies(), ConfigSnapshot::policyKey);
+
+        int entries = sizeOf(broadlinkDevices) + sizeOf(broadlinkSignals) + sizeOf(broadlinkRequests)
+                + sizeOf(carportRequests) + sizeOf(commandLineRequests) + sizeOf(mailboxes) + sizeOf(emailRequests)
+                + sizeOf(gpioRequests) + sizeOf(proxyHosts) + sizeOf(proxyRequests) + sizeOf(requestPolicies);
+        int arenaBytes = arena != null ? arena.size() : 0;
+        estimatedBytes = pool.getEstimatedBytes() + arenaBytes + (long) entries * ENTRY_OVERHEAD;
+        logger.debug("Configuration version {} holds {} entries, {} distinct strings ({} bytes) and {} bytes of signal payloads",
+                version, entries, pool.size(), pool.getEstimatedBytes(), arenaBytes);
+    }
+
+    /**
+     * Gets the version of this snapshot. Each load or reload of the configuration XML creates a new version.
+     *
+     * @return The snapshot version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the estimated number of bytes of heap held by this snapshot. The estimate covers the indexes, the Strings
+     * they hold and the Broadlink signal payloads.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Registers an action to run when this snapshot has been replaced and no request is using it any more. Used to
+     * release resources which were created for a specific configuration version. If the snapshot has already been
+     * retired, the action runs immediately.
+     *
+     * @param action Action to run on retirement.
+     */
+    public void whenRetired(Runnable action) {
+        retireActions.add(action);
+        if (retireActionsRun.get() && retireActions.remove(action)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Gets a structure compiled from this snapshot, compiling it on first use. The structure is kept for exactly as
+     * long as the snapshot, so it never outlives or mixes configuration versions. Only the first thread to ask for a
+     * structure compiles it, and other threads wait for it. A compiler can itself get other compiled structures, such
+     * as the route table getting the mailbox connections used by email requests.
+     *
+     * @param type     Type of the compiled structure, used as its key.
+     * @param compiler Function which compiles the structure from this snapshot.
+     * @param <T>      Type of the compiled structure.
+     * @return The compiled structure.
+     */
+    public <T> T getCompiled(Class<T> type, Function<ConfigSnapshot, T> compiler) {
+        FutureTask<Object> task = compiled.get(type);
+        if (task == null) {
+            // Compiled outside the map, as computeIfAbsent does not allow the compiler to add other structures
+            FutureTask<Object> newTask = new FutureTask<>(() -> compiler.apply(this));
+            task = compiled.putIfAbsent(type, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return type.cast(task.get());
+        } catch (ExecutionException e) {
+            // A structure which failed to compile is compiled again on next use
+            compiled.remove(type, task);
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + type.getSimpleName() + " to be compiled", e);
+        }
+    }
+
+    /**
+     * Gets the configured authentication token.
+     *
+     * @return The AuthenticationToken configuration.
+     */
+    public AuthenticationToken getAuthenticationToken() {
+        return authenticationToken;
+    }
+
+    /**
+     * Checks if the Broadlink section is present in the configuration XML.
+     *
+     * @return True if Broadlink is configured.
+     */
+    public boolean hasBroadlink() {
+        return broadlinkRequests != null;
+    }
+
+    /**
+     * Gets a configured Broadlink device by name.
+     *
+     * @param name Name of the device, case-insensitive.
+     * @return The Device, or null if not configured.
+     */
+    public Device getBroadlinkDevice(String name) {
+        return lookup(broadlinkDevices, name);
+    }
+
+    /**
+     * Gets a configured Broadlink signal by name.
+     *
+     * @param name Name of the signal, case-insensitive.
+     * @return The Signal, or null if not configured.
+     */
+    public Signal getBroadlinkSignal(String name) {
+        return lookup(broadlinkSignals, name);
+    }
+
+    /**
+     * Gets a configured Broadlink request, with its device and signal resolved.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The BroadlinkEntry, or null if not configured.
+     */
+    public BroadlinkEntry getBroadlinkRequest(String name) {
+        return lookup(broadlinkRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Broadlink requests.
+     *
+     * @return The normalised request names, or an empty Set if Broadlink is not configured.
+     */
+    public Set<String> getBroadlinkRequestNames() {
+        return namesOf(broadlinkRequests);
+    }
+
+    /**
+     * Checks if the Carport section is present in the configuration XML.
+     *
+     * @return True if Carport is configured.
+     */
+    public boolean hasCarport() {
+        return carportRequests != null;
+    }
+
+    /**
+     * Gets a configured Carport request, with its trigger and read Gpio requests resolved.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The CarportEntry, or null if not configured.
+     */
+    public CarportEntry getCarportRequest(String name) {
+        return lookup(carportRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Carport requests.
+     *
+     * @return The normalised request names, or an empty Set if Carport is not configured.
+     */
+    public Set<String> getCarportRequestNames() {
+        return namesOf(carportRequests);
+    }
+
+    /**
+     * Checks if the Command Line section is present in the configuration XML.
+     *
+     * @return True if Command Line is configured.
+     */
+    public boolean hasCommandLine() {
+        return commandLineRequests != null;
+    }
+
+    /**
+     * Gets a configured Command Line request by name.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The CommandLineRequest, or null if not configured.
+     */
+    public CommandLineRequest getCommandLineRequest(String name) {
+        return lookup(commandLineRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Command Line requests.
+     *
+     * @return The normalised request names, or an empty Set if Command Line is not configured.
+     */
+    public Set<String> getCommandLineRequestNames() {
+        return namesOf(commandLineRequests);
+    }
+
+    /**
+     * Checks if the Email section is present in the configuration XML.
+     *
+     * @return True if Email is configured.
+     */
+    public boolean hasEmail() {
+        return emailRequests != null;
+    }
+
+    /**
+     * Gets a configured Mailbox by name.
+     *
+     * @param name Name of the mailbox, case-insensitive.
+     * @return The Mailbox, or null if not configured.
+     */
+    public Mailbox getMailbox(String name) {
+        return lookup(mailboxes, name);
+    }
+
+    /**
+     * Gets a configured Email request, with its mailbox resolved.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The EmailEntry, or null if not configured.
+     */
+    public EmailEntry getEmailRequest(String name) {
+        return lookup(emailRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Email requests.
+     *
+     * @return The normalised request names, or an empty Set if Email is not configured.
+     */
+    public Set<String> getEmailRequestNames() {
+        return namesOf(emailRequests);
+    }
+
+    /**
+     * Checks if the Gpio section is present in the configuration XML.
+     *
+     * @return True if Gpio is configured.
+     */
+    public boolean hasGpio() {
+        return gpioRequests != null;
+    }
+
+    /**
+     * Gets a configured Gpio request by name. 'Carport Only' requests are included.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The GpioRequest, or null if not configured.
+     */
+    public GpioRequest getGpioRequest(String name) {
+        return lookup(gpioRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Gpio requests.
+     *
+     * @return The normalised request names, or an empty Set if Gpio is not configured.
+     */
+    public Set<String> getGpioRequestNames() {
+        return namesOf(gpioRequests);
+    }
+
+    /**
+     * Checks if the Proxy section is present in the configuration XML.
+     *
+     * @return True if Proxy is configured.
+     */
+    public boolean hasProxy() {
+        return proxyRequests != null;
+    }
+
+    /**
+     * Gets a configured Proxy host by name.
+     *
+     * @param name Name of the host, case-insensitive.
+     * @return The ProxyHost, or null if not configured.
+     */
+    public ProxyHost getProxyHost(String name) {
+        return lookup(proxyHosts, name);
+    }
+
+    /**
+     * Gets a configured Proxy request, with its host and forward parameters resolved.
+     *
+     * @param name Name of the request, case-insensitive.
+     * @return The ProxyEntry, or null if not configured.
+     */
+    public ProxyEntry getProxyRequest(String name) {
+        return lookup(proxyRequests, name);
+    }
+
+    /**
+     * Gets the names of the configured Proxy requests.
+     *
+     * @return The normalised request names, or an empty Set if Proxy is not configured.
+     */
+    public Set<String> getProxyRequestNames() {
+        return namesOf(proxyRequests);
+    }
+
+    /**
+     * Gets the request policy of a request. The policy of the request name is used if there is one, otherwise the
+     * policy of the request type.
+     *
+     * @param requestType Type of the request, case-insensitive.
+     * @param requestName Name of the request, case-insensitive.
+     * @return The RequestPolicy, or null if neither the request nor its request type has a policy.
+     */
+    public RequestPolicy getRequestPolicy(String requestType, String requestName) {
+        if (requestPolicies.isEmpty() || requestType == null) {
+            return null;
+        }
+        RequestPolicy policy = requestName != null ? lookup(requestPolicies, requestType + POLICY_KEY_SEPARATOR + requestName) : null;
+        return policy != null ? policy : lookup(requestPolicies, requestType);
+    }
+
+    /**
+     * Pins this snapshot so that it is not retired while a request is using it.
+     */
+    void pin() {
+        pins.incrementAndGet();
+    }
+
+    /**
+     * Releases a pin on this snapshot. If the snapshot has been replaced and this was the last pin, it is retired.
+     */
+    void unpin() {
+        if (pins.decrementAndGet() == 0 && retired) {
+            runRetireActions();
+        }
+    }
+
+    /**
+     * Marks this snapshot as replaced. It is retired immediately if no request has it pinned, otherwise when the last
+     * pin is released.
+     */
+    void retire() {
+        retired = true;
+        if (pins.get() == 0) {
+            runRetireActions();
+        }
+    }
+
+    /**
+     * Runs the retire actions of this snapshot, exactly once.
+     */
+    private void runRetireActions() {
+        if (retireActionsRun.compareAndSet(false, true)) {
+            logger.debug("Configuration version {} retired", version);
+            for (Runnable action : retireActions) {
+                // An action registered concurrently may already have been run by whenRetired()
+                if (!retireActions.remove(action)) {
+                    continue;
+                }
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.error("Error retiring configuration version {}. {}", version, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Describes the differences between a previous snapshot and this snapshot, for logging when configuration is
+     * reloaded.
+     *
+     * @param previous The snapshot being replaced, may be null if no configuration was loaded.
+     * @return A List of human-readable changes, empty if nothing changed.
+     */
+    List<String> describeChanges(ConfigSnapshot previous) {
+        List<String> changes = new ArrayList<>();
+        if (previous == null) {
+            changes.add("configuration loaded");
+            return changes;
+        }
+        if (!Objects.equals(previous.authenticationToken, authenticationToken)) {
+            changes.add("authentication token changed");
+        }
+        describeChanges(changes, "Broadlink device", previous.broadlinkDevices, broadlinkDevices);
+        describeChanges(changes, "Broadlink signal", previous.broadlinkSignals, broadlinkSignals);
+        describeChanges(changes, "Broadlink request", previous.broadlinkRequests, broadlinkRequests);
+        describeChanges(changes, "Carport request", previous.carportRequests, carportRequests);
+        describeChanges(changes, "Command Line request", previous.commandLineRequests, commandLineRequests);
+        describeChanges(changes, "Mailbox", previous.mailboxes, mailboxes);
+        describeChanges(changes, "Email request", previous.emailRequests, emailRequests);
+        describeChanges(changes, "Gpio request", previous.gpioRequests, gpioRequests);
+        describeChanges(changes, "Proxy host", previous.proxyHosts, proxyHosts);
+        describeChanges(changes, "Proxy request", previous.proxyRequests, proxyRequests);
+        describeChanges(changes, "Request policy", previous.requestPolicies, requestPolicies);
+        return changes;
+    }
+
+    /**
+     * Gets the index key of a request policy.
+     *
+     * @param policy The request policy.
+     * @return The request type, followed by the request name if the policy applies to a single request.
+     */
+    private static String policyKey(RequestPolicy policy) {
+        return policy.getRequestName() != null
+                ? policy.getRequestType() + POLICY_KEY_SEPARATOR + policy.getRequestName()
+                : policy.getRequestType();
+    }
+
+    /**
+     * Normalises a configured or requested name so that lookups are case-insensitive.
+     *
+     * @param name Name to normalise.
+     * @return The normalised name.
+     */
+    static String normalise(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Looks up a value in an index, by normalised name.
+     *
+     * @param index Index to look in, may be null if the section is not configured.
+     * @param name  Name to look up.
+     * @param <T>   Type of the indexed value.
+     * @return The indexed value, or null if not present.
+     */
+    private static <T> T lookup(Map<String, T> index, String name) {
+        if (index == null || name == null) {
+            return null;
+        }
+        return index.get(normalise(name));
+    }
+
+    /**
+     * Gets the normalised names held by an index.
+     *
+     * @param index Index to get the names of, may be null if the section is not configured.
+     * @return An immutable Set of normalised names.
+     */
+    private static Set<String> namesOf(Map<String, ?> index) {
+        return index != null ? index.keySet() : Set.of();
+    }
+
+    /**
+     * Builds an immutable index keyed by normalised name. If a name is configured more than once, the first entry is
+     * kept, to match the order that configuration was previously searched in.
+     *
+     * @param pool    StringPool to intern the normalised names in.
+     * @param entries List of configuration entries to index.
+     * @param nameOf  Function which returns the name of an entry.
+     * @param <T>     Type of the configuration entry.
+     * @return An immutable Map of normalised name to entry.
+     */
+    private static <T> Map<String, T> index(StringPool pool, List<T> entries, Function<T, String> nameOf) {
+        return index(pool, entries, nameOf, Function.identity());
+    }
+
+    /**
+     * Builds an immutable index keyed by normalised name, converting each configuration entry as it is indexed.
+     *
+     * @param pool    StringPool to intern the normalised names in.
+     * @param entries List of configuration entries to index.
+     * @param nameOf  Function which returns the name of an entry.
+     * @param convert Function which converts a configuration entry to the indexed value.
+     * @param <T>     Type of the configuration entry.
+     * @param <R>     Type of the indexed value.
+     * @return An immutable Map of normalised name to indexed value.
+     */
+    private static <T, R> Map<String, R> index(StringPool pool, List<T> entries, Function<T, String> nameOf, Function<T, R> convert) {
+        Map<String, R> index = new HashMap<>();
+        for (T entry : entries) {
+            String key = pool.intern(normalise(nameOf.apply(entry)));
+            if (index.containsKey(key)) {
+                logger.warn("Duplicate configuration name ignored: {}", nameOf.apply(entry));
+            } else {
+                index.put(key, convert.apply(entry));
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    /**
+     * Gets the size of an index.
+     *
+     * @param index Index to get the size of, may be null if the section is not configured.
+     * @return The number of entries in the index.
+     */
+    private static int sizeOf(Map<String, ?> index) {
+        return index != null ? index.size() : 0;
+    }
+
+    /**
+     * Compares two versions of an index, and describes each name which was added, removed or changed.
+     *
+     * @param changes     List to add descriptions of changes to.
+     * @param description Description of the indexed element, for logging.
+     * @param previous    Previous version of the index, may be null if the section was not configured.
+     * @param current     Current version of the index, may be null if the section is not configured.
+     * @param <T>         Type of the indexed value.
+     */
+    private static <T> void describeChanges(List<String> changes, String description, Map<String, T> previous, Map<String, T> current) {
+        Map<String, T> before = previous != null ? previous : Map.of();
+        Map<String, T> after = current != null ? current : Map.of();
+        for (Map.Entry<String, T> entry : after.entrySet()) {
+            if (!before.containsKey(entry.getKey())) {
+                changes.add(String.format("%s added: %s", description, entry.getKey()));
+            } else if (!Objects.equals(before.get(entry.getKey()), entry.getValue())) {
+                changes.add(String.format("%s changed: %s", description, entry.getKey()));
+            }
+        }
+        for (String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                changes.add(String.format("%s removed: %s", description, name));
+            }
+        }
+    }
+
+    /**
+     * Resolves a reference from one configuration element to another. Unresolved references are logged, and left for
+     * the handler to reject when the request is made.
+     *
+     * @param index       Index to resolve the reference against.
+     * @param name        Name being referenced.
+     * @param description Description of the referenced element, for logging.
+     * @param requestName Name of the request holding the reference, for logging.
+     * @param <T>         Type of the referenced element.
+     * @return The referenced element, or null if not configured.
+     */
+    private static <T> T resolve(Map<String, T> index, String name, String description, String requestName) {
+        T resolved = lookup(index, name);
+        if (resolved == null) {
+            logger.warn("{} '{}' referenced by request '{}' is not configured", description, name, requestName);
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolves one of the Gpio requests linked to a Carport request.
+     *
+     * @param carportGpioRequests Index of 'Carport Only' Gpio requests.
+     * @param request             Carport request holding the Gpio request names.
+     * @param position            Position of the Gpio request name, either trigger or read.
+     * @return The linked GpioRequest, or null if not configured.
+     */
+    private static GpioRequest resolveGpio(Map<String, GpioRequest> carportGpioRequests, CarportRequest request, int position) {
+        List<String> gpioRequestNames = request.getGpioRequestName();
+        if (gpioRequestNames.size() <= position) {
+            return null;
+        }
+        return resolve(carportGpioRequests, gpioRequestNames.get(position), "Carport Gpio request", request.getName());
+    }
+
+    /**
+     * Builds the full list of URL parameters which may be forwarded by a proxy request.
+     *
+     * @param pool    StringPool to intern the URL parameter names in.
+     * @param request Proxy request to get the forward parameters of.
+     * @return An immutable List of URL parameter names.
+     */
+    private static List<String> getForwardParameters(StringPool pool, ProxyRequest request) {
+        List<String> forwardParameters = new ArrayList<>();
+        request.getForwardParameters().forEach(parameter -> forwardParameters.add(pool.intern(parameter)));
+        // If proxy request is for another automation server, ensure standard parameters are forwarded in request
+        if (request.isForAutomationServer()) {
+            for (ProxyParameterMapping mapping : ProxyParameterMapping.values()) {
+                forwardParameters.add(pool.intern(mapping.getText()));
+            }
+        }
+        return List.copyOf(forwardParameters);
+    }
+
+    /**
+     * A Broadlink request, with the device and signal it references.
+     *
+     * @param name       Name of the request.
+     * @param cliPath    Path to the Broadlink CLI executable.
+     * @param deviceName Name of the referenced device, as configured.
+     * @param device     The referenced Device, or null if not configured.
+     * @param signal     The referenced Signal, or null if not configured.
+     */
+    public record BroadlinkEntry(String name, String cliPath, String deviceName, Device device, Signal signal) {
+    }
+
+    /**
+     * A Broadlink device.
+     *
+     * @param name       Name of the device.
+     * @param deviceCode Broadlink device type code.
+     * @param ipAddress  IP address of the device.
+     * @param macAddress MAC address of the device.
+     */
+    public record Device(String name, String deviceCode, String ipAddress, String macAddress) {
+    }
+
+    /**
+     * A Carport request, with the 'Carport Only' Gpio requests it references.
+     *
+     * @param request The configured CarportRequest.
+     * @param trigger The GpioRequest used to trigger the door, or null if not configured.
+     * @param read    The GpioRequest used to read the door status, or null if not configured.
+     */
+    public record CarportEntry(CarportRequest request, GpioRequest trigger, GpioRequest read) {
+        static final int TRIGGER = 0;
+        static final int READ = 1;
+    }
+
+    /**
+     * An Email request, with the mailbox it references.
+     *
+     * @param request The configured EmailRequest.
+     * @param mailbox The referenced Mailbox, or null if not configured.
+     */
+    public record EmailEntry(EmailRequest request, Mailbox mailbox) {
+    }
+
+    /**
+     * A Proxy request, with the host it references and the URL parameters it may forward.
+     *
+     * @param request           The configured ProxyRequest.
+     * @param host              The referenced ProxyHost, or null if not configured.
+     * @param forwardParameters URL parameters which may be forwarded to the host.
+     */
+    public record ProxyEntry(ProxyRequest request, ProxyHost host, List<String> forwardParameters) {
+    }
+}
@@ -0,0 +1,229 @@
+package com.glenfordham.webserver.automation.config;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the configuration XML file and its included files, and reloads the configuration in the background when
+ * the content of any of them changes. File system events are used where supported, with modified time and content hash
+ * polling as a fallback for file systems which do not deliver events (eg. network shares).
+ */
+class ConfigWatcher implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // How often to poll the file modified time, in milliseconds, when no file system event has been received
+    private static final long POLL_INTERVAL = 2000;
+    // How long to wait for an editor to finish writing, in milliseconds, after a file system event is received
+    private static final long SETTLE_TIME = 250;
+
+    private final String configFileLocation;
+    private final Map<Path, Long> lastModified = new HashMap<>();
+    private final Map<Path, byte[]> lastHash = new HashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private WatchService watchService = null;
+
+    /**
+     * Creates a new ConfigWatcher for the configuration XML file.
+     *
+     * @param configFileLocation Path to the configuration file relative to the application run path.
+     */
+    ConfigWatcher(String configFileLocation) {
+        this.configFileLocation = configFileLocation;
+    }
+
+    /**
+     * Starts watching the configuration files on a background daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for file system events or the poll interval, and reloads the configuration when file content changes.
+     */
+    @Override
+    public void run() {
+        try (WatchService service = openWatchService()) {
+            watchService = service;
+            trackFiles();
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean changeNotified = false;
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        changeNotified = isConfigFileEvent(key);
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+
+                if (changeNotified) {
+                    // Editors commonly write in several steps, so wait for the file to settle
+                    Thread.sleep(SETTLE_TIME);
+                }
+                checkForChanges(changeNotified);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException | IOException e) {
+            logger.error("Configuration XML watcher stopped. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if any configuration file has changed, and reloads the configuration if the content of any file is
+     * different to what was last seen.
+     *
+     * @param changeNotified True if a file system event was received for a configuration file.
+     */
+    private void checkForChanges(boolean changeNotified) {
+        // Each load may add or remove included files
+        trackFiles();
+
+        boolean modified = changeNotified;
+        for (Map.Entry<Path, Long> entry : lastModified.entrySet()) {
+            long fileModified = getLastModified(entry.getKey());
+            if (fileModified != entry.getValue()) {
+                entry.setValue(fileModified);
+                modified = true;
+            }
+        }
+        if (!modified) {
+            return;
+        }
+
+        // Modified time alone is not trusted, as saving the same content or touching a file should not reload
+        boolean contentChanged = false;
+        for (Map.Entry<Path, byte[]> entry : lastHash.entrySet()) {
+            byte[] hash = getContentHash(entry.getKey());
+            if (hash != null && !Arrays.equals(hash, entry.getValue())) {
+                entry.setValue(hash);
+                contentChanged = true;
+            }
+        }
+        if (contentChanged) {
+            AutomationConfig.reload(configFileLocation);
+        }
+    }
+
+    /**
+     * Starts tracking any configuration file which is not already tracked, and stops tracking files which are no
+     * longer included.
+     */
+    private void trackFiles() {
+        List<Path> files = AutomationConfig.getConfigFiles(configFileLocation);
+        lastModified.keySet().retainAll(files);
+        lastHash.keySet().retainAll(files);
+        for (Path file : files) {
+            if (!lastHash.containsKey(file)) {
+                lastModified.put(file, getLastModified(file));
+                lastHash.put(file, getContentHash(file));
+                watchDirectory(file.getParent());
+            }
+        }
+    }
+
+    /**
+     * Drains the events of a WatchKey, and checks if any of them relate to a configuration file.
+     *
+     * @param key WatchKey with pending events for a configuration file's directory.
+     * @return True if a configuration file was created or modified.
+     */
+    private boolean isConfigFileEvent(WatchKey key) {
+        boolean configFileEvent = false;
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // An overflow means events were lost, so a configuration file may have changed
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || lastHash.containsKey(directory.resolve((Path) event.context()))) {
+                configFileEvent = true;
+            }
+        }
+        return configFileEvent;
+    }
+
+    /**
+     * Opens a WatchService for the configuration files.
+     *
+     * @return A WatchService, or null if file system events are not supported and polling should be used.
+     */
+    private WatchService openWatchService() {
+        try {
+            return Path.of(configFileLocation).toAbsolutePath().getFileSystem().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("File system events not available, polling configuration XML for changes every {} ms", POLL_INTERVAL);
+            return null;
+        }
+    }
+
+    /**
+     * Registers a configuration file's directory with the WatchService. Editors often save by replacing the file, so
+     * the directory is watched rather than the file itself.
+     *
+     * @param directory Directory holding a configuration file.
+     */
+    private void watchDirectory(Path directory) {
+        if (watchService == null || !watchedDirectories.add(directory)) {
+            return;
+        }
+        try {
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.info("Watching configuration XML for changes: {}", directory);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Files in this directory are still polled for changes
+            logger.warn("Unable to watch {} for changes, it will be polled every {} ms", directory, POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Gets the last modified time of a configuration file.
+     *
+     * @param file The configuration file.
+     * @return The last modified time in milliseconds, or 0 if the file cannot be read.
+     */
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Gets a hash of a configuration file's content.
+     *
+     * @param file The configuration file.
+     * @return A SHA-256 hash of the file content, or null if the file cannot be read.
+     */
+    private static byte[] getContentHash(Path file) {
+        try {
+            return ConfigCache.hash(Files.readAllBytes(file));
+        } catch (IOException e) {
+            // File may be mid-replacement or not yet created, it will be checked again on the next event or poll
+            logger.debug("Unable to read configuration XML. {}", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.glenfordham.webserver.automation.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A configured Broadlink signal, with its payload held in the shared SignalArena of the ConfigSnapshot.
+ */
+public final class Signal {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String name;
+    private final SignalArena arena;
+    private final int offset;
+    private final int length;
+    private final boolean hex;
+
+    /**
+     * Creates a Signal referencing its payload in an arena.
+     *
+     * @param name   Name of the signal.
+     * @param arena  Arena holding the payload.
+     * @param offset Offset of the payload in the arena.
+     * @param length Length of the payload in bytes.
+     * @param hex    True if the payload was decoded from hex, false if it is the configured text.
+     */
+    Signal(String name, SignalArena arena, int offset, int length, boolean hex) {
+        this.name = name;
+        this.arena = arena;
+        this.offset = offset;
+        this.length = length;
+        this.hex = hex;
+    }
+
+    /**
+     * Gets the name of the signal.
+     *
+     * @return The signal name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the length of the decoded signal payload.
+     *
+     * @return The payload length in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets a copy of the decoded signal payload.
+     *
+     * @return The signal payload.
+     */
+    public byte[] getPayload() {
+        return Arrays.copyOfRange(arena.getPayloads(), offset, offset + length);
+    }
+
+    /**
+     * Gets the signal code in the form expected by the Broadlink CLI. The code is encoded on each call rather than
+     * kept, as signals are sent rarely compared to how much heap their text takes.
+     *
+     * @return The signal code as lower case hex text, or the configured text if it was not hex.
+     */
+    public String getCode() {
+        byte[] payloads = arena.getPayloads();
+        if (!hex) {
+            return new String(payloads, offset, length, StandardCharsets.UTF_8);
+        }
+        char[] code = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int value = payloads[offset + i] & 0xFF;
+            code[i * 2] = HEX_DIGITS[value >>> 4];
+            code[i * 2 + 1] = HEX_DIGITS[value & 0x0F];
+        }
+        return new String(code);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof Signal signal)) {
+            return false;
+        }
+        return hex == signal.hex
+                && name.equals(signal.name)
+                && Arrays.equals(arena.getPayloads(), offset, offset + length,
+                signal.arena.getPayloads(), signal.offset, signal.offset + signal.length);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = name.hashCode();
+        byte[] payloads = arena.getPayloads();
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + payloads[i];
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Signal[name=%s,length=%d]", name, length);
+    }
+}
@@ -0,0 +1,99 @@
+package com.glenfordham.webserver.automation.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A single byte array holding the decoded payload of every Broadlink signal in a ConfigSnapshot. Signal codes are
+ * configured as hex text, which takes four bytes of heap per payload byte once held as a String, so they are decoded
+ * into the arena when the snapshot is built and only encoded again when a signal is sent.
+ */
+final class SignalArena {
+
+    private final byte[] payloads;
+    private int position = 0;
+
+    /**
+     * Creates an arena with exactly enough space for the given signal codes.
+     *
+     * @param codes Every signal code which will be added to the arena.
+     */
+    SignalArena(List<String> codes) {
+        int capacity = 0;
+        for (String code : codes) {
+            capacity += payloadLength(code);
+        }
+        payloads = new byte[capacity];
+    }
+
+    /**
+     * Decodes a signal code into the arena.
+     *
+     * @param name Name of the signal.
+     * @param code Signal code as configured. Codes which are not valid hex are stored as text.
+     * @return A Signal referencing its payload in the arena.
+     */
+    Signal add(String name, String code) {
+        int offset = position;
+        String trimmed = code.strip();
+        boolean hex = isHex(trimmed);
+        if (hex) {
+            for (int i = 0; i < trimmed.length(); i += 2) {
+                payloads[position++] = (byte) ((Character.digit(trimmed.charAt(i), 16) << 4)
+                        | Character.digit(trimmed.charAt(i + 1), 16));
+            }
+        } else {
+            byte[] text = code.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(text, 0, payloads, position, text.length);
+            position += text.length;
+        }
+        return new Signal(name, this, offset, position - offset, hex);
+    }
+
+    /**
+     * Gets the backing array of the arena. Only read by Signal.
+     *
+     * @return The arena byte array.
+     */
+    byte[] getPayloads() {
+        return payloads;
+    }
+
+    /**
+     * Gets the size of the arena.
+     *
+     * @return The number of payload bytes held.
+     */
+    int size() {
+        return payloads.length;
+    }
+
+    /**
+     * Gets the number of bytes a signal code takes once decoded.
+     *
+     * @param code Signal code as configured.
+     * @return The decoded length in bytes.
+     */
+    private static int payloadLength(String code) {
+        String trimmed = code.strip();
+        return isHex(trimmed) ? trimmed.length() / 2 : code.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Checks if a signal code is valid hex text.
+     *
+     * @param code Trimmed signal code.
+     * @return True if the code has an even number of characters, all of which are hex digits.
+     */
+    private static boolean isHex(String code) {
+        if (code.isEmpty() || code.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < code.length(); i++) {
+            if (Character.digit(code.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+package com.glenfordham.webserver.automation.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores each distinct String used by a ConfigSnapshot once. Names, IP addresses and the like are often repeated across
+ * configuration elements, so interning them while the snapshot is built means only one copy is kept for the lifetime
+ * of the snapshot. Unlike {@link String#intern()}, the pool is released with the snapshot.
+ */
+final class StringPool {
+
+    // Approximate size of a String and its backing array, excluding the characters themselves
+    private static final int STRING_OVERHEAD = 40;
+
+    private final Map<String, String> strings = new HashMap<>();
+    private long estimatedBytes = 0;
+
+    /**
+     * Gets the pooled copy of a String, adding it to the pool if it is not already present.
+     *
+     * @param value String to intern, may be null.
+     * @return The pooled String, or null if value is null.
+     */
+    String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = strings.putIfAbsent(value, value);
+        if (pooled != null) {
+            return pooled;
+        }
+        estimatedBytes += STRING_OVERHEAD + (long) value.length() * (isLatin1(value) ? 1 : 2);
+        return value;
+    }
+
+    /**
+     * Gets the number of distinct Strings in the pool.
+     *
+     * @return The number of pooled Strings.
+     */
+    int size() {
+        return strings.size();
+    }
+
+    /**
+     * Gets the estimated number of bytes held by the pooled Strings.
+     *
+     * @return The estimated size in bytes.
+     */
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Checks if a String can be stored with one byte per character.
+     *
+     * @param value String to check.
+     * @return True if every character is Latin-1.
+     */
+    private static boolean isLatin1(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,24 @@
+package com.glenfordham.webserver.automation.handler;
+
+import com.glenfordham.webserver.servlet.parameter.ParameterException;
+import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+
+/**
+ * A configured request, compiled by its Handler and ready to run.
+ */
+@FunctionalInterface
+public interface Action {
+
+    /**
+     * Runs the request.
+     *
+     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
+     * @param deadline     Deadline of the request, which bounds every wait and stops any work still running once it
+     *                     passes.
+     * @param response     Response to the client, for writing a response body.
+     * @throws DeadlineExceededException If the request runs out of time.
+     * @throws HandlerException          If a generic Exception occurs when handling the request.
+     * @throws ParameterException        If a required URL parameter is not valid.
+     */
+    void run(ParameterMap parameterMap, Deadline deadline, Response response) throws HandlerException, ParameterException;
+}
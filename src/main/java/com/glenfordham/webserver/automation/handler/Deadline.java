@@ -0,0 +1,164 @@
+package com.glenfordham.webserver.automation.handler;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a request must be complete, measured from when the request was received, so that time spent
+ * waiting for a request handler thread or in a bulkhead queue counts towards it. Handlers bound every wait by the time
+ * remaining, and stop anything they have started, such as a child process or a connection, once the deadline passes,
+ * so that no thread or process outlives the client's interest in the request.
+ * <p>
+ * A request without a timeout has a deadline which never passes.
+ */
+public final class Deadline {
+
+    /**
+     * A deadline which never passes, for requests without a timeout.
+     */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    // Runs the tasks which stop work once a deadline passes. A single daemon thread is enough, as the tasks only
+    // close connections or destroy processes
+    private static final ScheduledExecutorService expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long expiresAt;
+    private final boolean bounded;
+
+    /**
+     * Creates a deadline.
+     *
+     * @param expiresAt Time the deadline passes, from System.nanoTime().
+     * @param bounded   False if the deadline never passes.
+     */
+    private Deadline(long expiresAt, boolean bounded) {
+        this.expiresAt = expiresAt;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Creates a deadline a timeout after a request was received.
+     *
+     * @param receivedAt Time the request was received, from System.nanoTime().
+     * @param timeout    Time the request has to complete, in milliseconds, or 0 for no deadline.
+     * @return The Deadline.
+     */
+    public static Deadline after(long receivedAt, long timeout) {
+        // Timeouts too long to add to System.nanoTime() without overflowing would never pass anyway
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        return timeout > 0 && nanos < Long.MAX_VALUE / 2 ? new Deadline(receivedAt + nanos, true) : NONE;
+    }
+
+    /**
+     * Checks if the deadline can pass.
+     *
+     * @return True if the request has a timeout.
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Checks if the deadline has passed.
+     *
+     * @return True if the request has run out of time.
+     */
+    public boolean isExpired() {
+        return bounded && expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Gets the time remaining until the deadline.
+     *
+     * @param unit Unit of the time remaining.
+     * @return The time remaining, 0 if the deadline has passed, or Long.MAX_VALUE if it never passes.
+     */
+    public long remaining(TimeUnit unit) {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Bounds a timeout by the time remaining, for passing to APIs which take a timeout of their own.
+     *
+     * @param timeout Timeout in milliseconds, or 0 for no timeout.
+     * @return The smaller of the timeout and the time remaining, in milliseconds, at least 1 so that it is never
+     * taken to mean no timeout. 0 if neither is limited.
+     */
+    public int bound(int timeout) {
+        if (!bounded) {
+            return timeout;
+        }
+        long remaining = Math.max(1, remaining(TimeUnit.MILLISECONDS));
+        return (int) (timeout > 0 ? Math.min(timeout, remaining) : Math.min(Integer.MAX_VALUE, remaining));
+    }
+
+    /**
+     * Checks that the deadline has not passed, before starting more work.
+     *
+     * @throws DeadlineExceededException If the deadline has passed.
+     */
+    public void check() throws DeadlineExceededException {
+        if (isExpired()) {
+            throw new DeadlineExceededException("Request timed out");
+        }
+    }
+
+    /**
+     * Sleeps, if there is time to do so before the deadline. Otherwise fails straight away without sleeping, so that
+     * a wait between two steps of a request, such as writing a GPIO pin and then resetting it, is not cut off half way.
+     *
+     * @param millis Time to sleep, in milliseconds.
+     * @throws DeadlineExceededException If the deadline would pass before the sleep is over.
+     * @throws HandlerException          If the thread is interrupted while sleeping.
+     */
+    public void sleep(long millis) throws HandlerException {
+        if (remaining(TimeUnit.MILLISECONDS) < millis) {
+            throw new DeadlineExceededException(String.format("Request would time out during a wait of %d ms", millis));
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandlerException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs a task once the deadline passes, to stop work which is blocking the request handler thread, such as by
+     * closing a connection or destroying a process. The returned Expiry must be closed once the work is complete, so
+     * that the task is not run after the request has moved on.
+     *
+     * @param task Task which stops the work.
+     * @return An Expiry which cancels the task when closed.
+     */
+    public Expiry onExpiry(Runnable task) {
+        if (!bounded) {
+            return () -> {
+            };
+        }
+        ScheduledFuture<?> future = expiryExecutor.schedule(task, Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return () -> future.cancel(false);
+    }
+
+    /**
+     * A task scheduled to run once a deadline passes, cancelled when closed.
+     */
+    @FunctionalInterface
+    public interface Expiry extends AutoCloseable {
+
+        /**
+         * Cancels the task, if it has not already run.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,26 @@
+package com.glenfordham.webserver.automation.handler;
+
+/**
+ * A DeadlineExceededException is thrown when a request runs out of time before it is complete.
+ */
+public class DeadlineExceededException extends HandlerException {
+
+    /**
+     * Creates a new DeadlineExceededException.
+     *
+     * @param message the message to be used for the Exception
+     */
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    /**
+     * Creates a new DeadlineExceededException.
+     *
+     * @param message Message to be used for the Exception.
+     * @param e Exception to wrap when creating the new Exception.
+     */
+    public DeadlineExceededException(String message, Exception e) {
+        super(message, e);
+    }
+}
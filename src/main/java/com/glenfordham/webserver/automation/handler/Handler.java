@@ -1,24 +1,70 @@
 package com.glenfordham.webserver.automation.handler;
 
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
 
-import java.io.OutputStream;
+import java.util.Set;
 
 /**
- * Interface for building Automation Server request handlers
+ * Interface for building Automation Server request handlers. A handler compiles each of its configured requests into
+ * an Action when a configuration version is first used, so that requests are dispatched without searching or
+ * validating configuration.
+ * <p>
+ * Handlers are service providers, found with ServiceLoader, and must be annotated with {@link HandlesRequestType}. Each
+ * handler is a singleton which lives from when its request type is first configured until it is no longer configured,
+ * so it can keep state such as connections or per-device state between requests. Handlers are used by many requests
+ * at once, so any state must be thread-safe.
  */
 public interface Handler {
 
     /**
-     * Entry point for a request handler.
+     * Initialises the handler, once it has been created for the first configuration version with its request type
+     * configured, and before any of its requests are compiled.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration the handler is created for.
      */
-    void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException;
+    default void init(ConfigSnapshot config) {
+    }
+
+    /**
+     * Tells the handler about a newer configuration version with its request type configured, before its requests are
+     * compiled. Requests of older versions may still be running.
+     *
+     * @param config The newer configuration.
+     */
+    default void reconfigure(ConfigSnapshot config) {
+    }
+
+    /**
+     * Gets the names of the requests configured for this handler.
+     *
+     * @param config Configuration to get the request names from.
+     * @return The configured request names, normalised to lower case. Empty if the section is not configured.
+     */
+    Set<String> getRequestNames(ConfigSnapshot config);
+
+    /**
+     * Compiles a configured request into an Action, with its configuration resolved and checked. If the request
+     * cannot be run, the reason is logged once here rather than on every request.
+     *
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return The Action, or null if the request cannot be run.
+     */
+    Action compile(ConfigSnapshot config, String requestName);
+
+    /**
+     * Prepares the outbound resources used by the configured requests, such as host name lookups or connections,
+     * without running any request. Failures are logged, and do not prevent the requests from being run later.
+     *
+     * @param config Configuration to warm up.
+     */
+    default void warmUp(ConfigSnapshot config) {
+    }
+
+    /**
+     * Releases any resources held by the handler, once no configuration version has the handler's request type
+     * configured. The handler is not used again.
+     */
+    default void close() {
+    }
 }
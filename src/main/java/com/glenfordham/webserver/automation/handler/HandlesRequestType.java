@@ -0,0 +1,30 @@
+package com.glenfordham.webserver.automation.handler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the request type handled by a Handler. Handlers are found with ServiceLoader, and the request type is read
+ * from this annotation, so that a handler is not created until its request type is configured.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface HandlesRequestType {
+
+    /**
+     * Gets the request type, as given in the 'request_type' URL parameter.
+     *
+     * @return The request type, case-insensitive.
+     */
+    String value();
+
+    /**
+     * Gets whether requests may have URL parameters other than the standard parameters, which are then checked by the
+     * handler itself.
+     *
+     * @return True if other URL parameters are allowed.
+     */
+    boolean extraParameters() default false;
+}
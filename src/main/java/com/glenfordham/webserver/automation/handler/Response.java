@@ -0,0 +1,50 @@
+package com.glenfordham.webserver.automation.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The response to a request, written by its Action. A body which is complete before it is written should be written
+ * with {@link #write(byte[])}, so the Content-Length is set and the client can keep the connection open without the
+ * body being chunked. If nothing is written, a generic response is sent to the client instead.
+ */
+public interface Response {
+
+    /**
+     * Writes the whole body of the response, setting its Content-Length. The body is written once, and nothing else
+     * can be written to the response afterwards.
+     *
+     * @param body The complete response body.
+     * @throws IOException           If the body cannot be written.
+     * @throws IllegalStateException If the body has already been written.
+     */
+    void write(byte[] body) throws IOException;
+
+    /**
+     * Writes the whole body of the response as UTF-8 text, setting its Content-Length.
+     *
+     * @param body The complete response body.
+     * @throws IOException           If the body cannot be written.
+     * @throws IllegalStateException If the body has already been written.
+     */
+    default void write(String body) throws IOException {
+        write(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets a stream for writing a body whose size is not known up front. The body is sent chunked.
+     *
+     * @return The OutputStream of the response body.
+     * @throws IOException           If the stream cannot be opened.
+     * @throws IllegalStateException If the body has already been written with {@link #write(byte[])}.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Checks if anything has been written to the response.
+     *
+     * @return True if the body has been written, or the stream has been opened.
+     */
+    boolean isWritten();
+}
@@ -2,102 +2,94 @@ package com.glenfordham.webserver.automation.handler.broadlink;
 
 import com.glenfordham.utils.process.cmd.CmdLineException;
 import com.glenfordham.utils.process.cmd.CommandLine;
-import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot.BroadlinkEntry;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot.Device;
+import com.glenfordham.webserver.automation.config.Signal;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
-import com.glenfordham.webserver.automation.jaxb.BroadlinkDevice;
-import com.glenfordham.webserver.automation.jaxb.BroadlinkRequest;
-import com.glenfordham.webserver.automation.jaxb.BroadlinkSignal;
-import com.glenfordham.webserver.automation.jaxb.Config;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.OutputStream;
+import java.util.Set;
 
 /**
  * Broadlink actions require the broadlink CLI path (including Python path) and a number of parameters configured.
  * The required values will be dependent on your device.
  * @see <a href="https://github.com/mjg59/python-broadlink">python-broadlink on GitHub</a>
  */
+@HandlesRequestType("broadlink")
 public class BroadlinkHandler implements Handler {
 
     private static final Logger logger = LogManager.getLogger();
 
     /**
-     * Processes a broadlink type request. Matches request against configuration XML and triggers Broadlink action
-     * on the device configured against the request.
+     * Gets the names of the configured Broadlink requests.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration to get the request names from.
+     * @return The configured request names.
      */
     @Override
-    public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        processRequest(parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst());
+    public Set<String> getRequestNames(ConfigSnapshot config) {
+        return config.getBroadlinkRequestNames();
     }
 
     /**
-     * Attempts to process the broadlink request.
-     * Checks that the request matches a supported request in the configuration file.
-     * If it does, then invoke the broadlink action and device associated with that request name.
+     * Compiles a broadlink type request. Checks that the device and signal associated with the request are configured.
      *
-     * @param incomingRequestName Name of the request to be actioned.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException If thread is interrupted while waiting for the process to complete, or if an error occurs when running broadlink CLI executable.
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return An Action which triggers the Broadlink action on the configured device, or null if not runnable.
      */
-    private void processRequest(String incomingRequestName) throws AutomationConfigException, HandlerException {
-        Config config = AutomationConfig.get();
-
-        // Ensure Broadlink element is present in config file
-        if (config.getBroadlink() == null) {
-            throw new HandlerException("No Broadlink configuration in configuration XML");
-        }
-
-        // Check if the incoming request matches a configured request name
-        BroadlinkRequest request = config.getBroadlink().getRequests().stream()
-                .filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-                .findFirst()
-                .orElse(null);
-
-        if (request == null) {
-            logger.error("Invalid request name");
-            return;
-        }
+    @Override
+    public Action compile(ConfigSnapshot config, String requestName) {
+        BroadlinkEntry entry = config.getBroadlinkRequest(requestName);
 
         // Check that the device associated with the request name is configured
-        BroadlinkDevice device = config.getBroadlink().getDevices().stream()
-                .filter(deviceEntry -> request.getBroadlinkDeviceName().equalsIgnoreCase(deviceEntry.getName()))
-                .findFirst()
-                .orElse(null);
+        Device device = entry.device();
 
         if (device == null) {
-            logger.error("Device name not configured: {}", request.getBroadlinkDeviceName());
-            return;
+            logger.error("Device name not configured: {}", entry.deviceName());
+            return null;
         }
 
-        // Check if the incoming request matches a configured request name
-        BroadlinkSignal signal = config.getBroadlink().getSignals().stream()
-                .filter(signalEntry -> request.getSignalName().equalsIgnoreCase(signalEntry.getName()))
-                .findFirst()
-                .orElse(null);
+        // Check that the signal associated with the request name is configured
+        Signal signal = entry.signal();
 
         if (signal == null) {
-            logger.error("Invalid signal name: {}", incomingRequestName);
-            return;
+            logger.error("Invalid signal name: {}", requestName);
+            return null;
         }
 
+        return (parameterMap, deadline, response) -> sendSignal(entry.cliPath(), device, signal, deadline);
+    }
+
+    /**
+     * Invokes the broadlink CLI executable to send a signal to a device. The executable is terminated if it does not
+     * complete before the deadline.
+     *
+     * @param cliPath  Path to the broadlink CLI executable.
+     * @param device   Device to send the signal with.
+     * @param signal   Signal to be sent.
+     * @param deadline Deadline of the request.
+     * @throws DeadlineExceededException If the executable does not complete before the deadline.
+     * @throws HandlerException          If an error occurs when running broadlink CLI executable.
+     */
+    private void sendSignal(String cliPath, Device device, Signal signal, Deadline deadline) throws HandlerException {
+        deadline.check();
         // Invoke the Broadlink executable and configured command line
         try {
-            new CommandLine(config.getBroadlink().getCliPath()
+            new CommandLine(cliPath
                     + " --send " + signal.getCode()
-                    + " --device \"" + device.getDeviceCode() + " " + device.getIpAddress() + " " + device.getMacAddress() + "\"").exec();
+                    + " --device \"" + device.deviceCode() + " " + device.ipAddress() + " " + device.macAddress() + "\"").exec(deadline.bound(0));
         } catch (CmdLineException e) {
+            if (deadline.isExpired()) {
+                throw new DeadlineExceededException(String.format("Broadlink process did not complete in time. %s", e.getMessage()), e);
+            }
             throw new HandlerException(String.format("Error occurred when executing Broadlink process. %s", e.getMessage()), e);
         }
     }
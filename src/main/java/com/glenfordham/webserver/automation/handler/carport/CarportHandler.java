@@ -1,136 +1,113 @@
 package com.glenfordham.webserver.automation.handler.carport;
 
-import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot.CarportEntry;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
+import com.glenfordham.webserver.automation.handler.Response;
 import com.glenfordham.webserver.automation.handler.gpio.GpioPinControl;
 import com.glenfordham.webserver.automation.jaxb.CarportAction;
 import com.glenfordham.webserver.automation.jaxb.CarportRequest;
-import com.glenfordham.webserver.automation.jaxb.Config;
 import com.glenfordham.webserver.automation.jaxb.GpioRequest;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CarportHandler relies on the GpioHandler and GPIO configuration to be present. Use dedicated Gpio requests for each
  * action, using the 'Carport Only' flag. This handler is compatible with Raspberry Pi's only.
  */
+@HandlesRequestType("carport")
 public class CarportHandler implements Handler {
 
 	private static final Logger logger = LogManager.getLogger();
 
-	static final int TRIGGER = 0;
-	static final int READ = 1;
-
-	private OutputStream clientOutput = null;
-
 	/**
-	 * Processes a Carport type request. Carport requests are used to control a carport door through a Raspberry PI
-	 * GPIO interface.
+	 * Gets the names of the configured Carport requests.
 	 *
-	 * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-	 * @param clientOutput Client OutputStream, for writing a response.
-	 * @throws AutomationConfigException If unable to get configuration.
-	 * @throws HandlerException          If a generic Exception occurs when handling the request.
-	 * @throws ParameterException        If unable to get request name from parameter.
+	 * @param config Configuration to get the request names from.
+	 * @return The configured request names.
 	 */
 	@Override
-	public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-		String incomingRequestName = parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst();
-		Config config = AutomationConfig.get();
-		this.clientOutput = clientOutput;
-
-		// Ensure Carport element is present in config file
-		if (config.getCarport() == null) {
-			throw new HandlerException("No Carport configuration in configuration XML");
-		}
-
-		// Check if the incoming request matches a configured request name
-		CarportRequest carportRequest = config.getCarport().getRequests().stream()
-				.filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-				.findFirst()
-				.orElse(null);
+	public Set<String> getRequestNames(ConfigSnapshot config) {
+		return config.getCarportRequestNames();
+	}
 
-		if (carportRequest == null) {
-			logger.error("Invalid request name");
-			return;
-		}
+	/**
+	 * Compiles a Carport type request. Carport requests are used to control a carport door through a Raspberry PI
+	 * GPIO interface. Checks that the linked 'Carport Only' GpioRequest configuration for door trigger and read status
+	 * is present, and that open/close actions have a wait time.
+	 *
+	 * @param config      Configuration to compile the request from.
+	 * @param requestName Name of the configured request.
+	 * @return An Action which performs the carport door command, or null if not runnable.
+	 */
+	@Override
+	public Action compile(ConfigSnapshot config, String requestName) {
+		CarportEntry entry = config.getCarportRequest(requestName);
 
 		// Check if wait time is configured for open/close actions
+		CarportRequest carportRequest = entry.request();
 		CarportAction action = carportRequest.getAction();
 		if ((action == CarportAction.OPEN || action == CarportAction.CLOSE) && (carportRequest.getWaitTime() == null || carportRequest.getDoorClosedValue() == null)) {
-			logger.error("Wait time required for open/close action");
-			return;
+			logger.error("Wait time required for open/close action: {}", requestName);
+			return null;
 		}
 
-		// Get all carport only Gpio requests
-		List<GpioRequest> carportGpioRequests = config.getGpio().getRequests().stream().filter(GpioRequest::isCarportOnly).toList();
-		processRequest(carportRequest, carportGpioRequests);
-	}
-
-	/**
-	 * Attempts to process the carport request.
-	 * Retrieves the linked GpioRequest configuration for door trigger and read status, and uses these to perform the
-	 * required Carport Door commands.
-	 *
-	 * @param carportRequest CarportRequest to be processed.
-	 * @param carportGpioRequests List of configured 'Carport Only' GpioRequests.
-	 * @throws HandlerException If an error occurs invoking the Gpio process.
-	 */
-	void processRequest(CarportRequest carportRequest, List<GpioRequest> carportGpioRequests) throws HandlerException {
 		// Retrieve the Gpio request to use for triggering the door
-		GpioRequest triggerRequest = carportGpioRequests.stream().filter(e->carportRequest.getGpioRequestName().get(TRIGGER).equalsIgnoreCase(e.getName())).findFirst().orElse(null);
+		GpioRequest triggerRequest = entry.trigger();
 		if (triggerRequest == null) {
 			logger.error("Invalid Trigger Gpio Request: {}", carportRequest);
-			return;
+			return null;
 		}
 
 		// Retrieve the Gpio request to use for reading the current door status (eg. open/closed)
-		GpioRequest readRequest = carportGpioRequests.stream().filter(e->carportRequest.getGpioRequestName().get(READ).equalsIgnoreCase(e.getName())).findFirst().orElse(null);
+		GpioRequest readRequest = entry.read();
 		if (readRequest == null) {
 			logger.error("Invalid Read Gpio Request: {}", carportRequest);
-			return;
+			return null;
 		}
 
 		// Invoke appropriate carport action
-		switch (carportRequest.getAction()) {
-			case TRIGGER -> sendDoorTrigger(triggerRequest);
-			case STATUS -> readDoorStatus(readRequest);
-			case OPEN -> openDoor(triggerRequest, readRequest, carportRequest.getDoorClosedValue());
-			case CLOSE ->
-					closeDoor(triggerRequest, readRequest, carportRequest.getDoorClosedValue(), carportRequest.getWaitTime());
-		}
+		return switch (action) {
+			case TRIGGER -> (parameterMap, deadline, response) -> sendDoorTrigger(triggerRequest, deadline);
+			case STATUS -> (parameterMap, deadline, response) -> readDoorStatus(readRequest, deadline, response);
+			case OPEN -> (parameterMap, deadline, response) -> openDoor(triggerRequest, readRequest, carportRequest.getDoorClosedValue(), deadline);
+			case CLOSE -> (parameterMap, deadline, response) ->
+					closeDoor(triggerRequest, readRequest, carportRequest.getDoorClosedValue(), carportRequest.getWaitTime(), deadline);
+		};
 	}
 
 	/**
 	 * Closes the carport door. Multiple attempts are made such that if the door is almost closed but was previously
 	 * on the way down, it will be re-opened fully and then fully closed. The wait time should represent how long it
-	 * takes for the door to go from fully open to fully closed.
+	 * takes for the door to go from fully open to fully closed. The door is not triggered again unless there is time to
+	 * hold and reset the trigger pin and then wait for the door before the deadline, so a request which runs out of
+	 * time stops between attempts. A trigger which has started always resets its pin.
 	 *
 	 * @param triggerRequest GpioRequest to be used for triggering the door.
 	 * @param readRequest GpioRequest to be used for checking if the door is open/closed.
 	 * @param doorClosedValue Value expected to be returned from the readRequest if the door is closed.
 	 * @param waitTime Time to wait in milliseconds between sending a trigger request and performing another door status check.
+	 * @param deadline Deadline of the request.
+	 * @throws DeadlineExceededException If the door is not closed before the deadline.
 	 * @throws HandlerException If an error occurs while processing GpioRequests or if the sleeping thread is interrupted.
 	 */
-	private void closeDoor(GpioRequest triggerRequest, GpioRequest readRequest, String doorClosedValue, int waitTime) throws HandlerException {
+	private void closeDoor(GpioRequest triggerRequest, GpioRequest readRequest, String doorClosedValue, int waitTime, Deadline deadline) throws HandlerException {
 		int attempts = 0;
-		while (attempts <=3 && !GpioPinControl.process(readRequest).equalsIgnoreCase(doorClosedValue)) {
-			GpioPinControl.process(triggerRequest);
-			try {
-				Thread.sleep(waitTime);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				throw new HandlerException(e.getMessage(), e);
+		while (attempts <=3 && !GpioPinControl.process(readRequest, deadline).equalsIgnoreCase(doorClosedValue)) {
+			if (deadline.remaining(TimeUnit.MILLISECONDS) < (long) GpioPinControl.getResetWaitTime(triggerRequest) + waitTime) {
+				throw new DeadlineExceededException(String.format("Not enough time left to close the carport door after %d attempts", attempts));
 			}
+			GpioPinControl.process(triggerRequest, deadline);
+			deadline.sleep(waitTime);
 			attempts++;
 		}
 	}
@@ -141,11 +118,12 @@ public class CarportHandler implements Handler {
 	 * @param triggerRequest GpioRequest to be used for triggering the door.
 	 * @param readRequest GpioRequest to be used for checking if the door is open/closed.
 	 * @param doorClosedValue Value expected to be returned from the readRequest if the door is closed.
-	 * @throws HandlerException If an error occurs while processing GpioRequests.
+	 * @param deadline Deadline of the request.
+	 * @throws HandlerException If an error occurs while processing GpioRequests, or the request runs out of time.
 	 */
-	private void openDoor(GpioRequest triggerRequest, GpioRequest readRequest, String doorClosedValue) throws HandlerException {
-		if (!GpioPinControl.process(readRequest).equalsIgnoreCase(doorClosedValue)) {
-			GpioPinControl.process(triggerRequest);
+	private void openDoor(GpioRequest triggerRequest, GpioRequest readRequest, String doorClosedValue, Deadline deadline) throws HandlerException {
+		if (!GpioPinControl.process(readRequest, deadline).equalsIgnoreCase(doorClosedValue)) {
+			GpioPinControl.process(triggerRequest, deadline);
 		}
 	}
 
@@ -153,11 +131,13 @@ public class CarportHandler implements Handler {
 	 * Checks the current status of the carport door and returns the value.
 	 *
 	 * @param readRequest GpioRequest to be used for checking if the door is open/closed.
-	 * @throws HandlerException If an error occurs while processing the GpioRequest.
+	 * @param deadline Deadline of the request.
+	 * @param response Response to the client, for writing the door status.
+	 * @throws HandlerException If an error occurs while processing the GpioRequest, or the request runs out of time.
 	 */
-	private void readDoorStatus(GpioRequest readRequest) throws HandlerException {
+	private void readDoorStatus(GpioRequest readRequest, Deadline deadline, Response response) throws HandlerException {
 		try {
-			clientOutput.write(GpioPinControl.process(readRequest).getBytes());
+			response.write(GpioPinControl.process(readRequest, deadline));
 		} catch (IOException e) {
 			throw new HandlerException(e.getMessage(), e);
 		}
@@ -167,9 +147,10 @@ public class CarportHandler implements Handler {
 	 * Sends the door trigger request, equivalent to pressing the carport door remote button.
 	 *
 	 * @param triggerRequest GpioRequest to be used for triggering the door.
-	 * @throws HandlerException If an error occurs while processing the GpioRequest.
+	 * @param deadline Deadline of the request.
+	 * @throws HandlerException If an error occurs while processing the GpioRequest, or the request runs out of time.
 	 */
-	private void sendDoorTrigger(GpioRequest triggerRequest) throws HandlerException {
-		GpioPinControl.process(triggerRequest);
+	private void sendDoorTrigger(GpioRequest triggerRequest, Deadline deadline) throws HandlerException {
+		GpioPinControl.process(triggerRequest, deadline);
 	}
 }
@@ -2,76 +2,91 @@ package com.glenfordham.webserver.automation.handler.cmdline;
 
 import com.glenfordham.utils.StreamUtils;
 import com.glenfordham.utils.process.ProcessWrapper;
-import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
+import com.glenfordham.webserver.automation.handler.Response;
 import com.glenfordham.webserver.automation.jaxb.CommandLineRequest;
-import com.glenfordham.webserver.automation.jaxb.Config;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
  * CommandLine handler is used for processing command prompt and terminal commands in the same way that they would
  * process when executed against the operating system.
  */
+@HandlesRequestType("command_line")
 public class CommandLineHandler implements Handler {
 
     private static final Logger logger = LogManager.getLogger();
 
+    // How long to wait for a process when the request has no deadline, in seconds
+    private static final long DEFAULT_TIMEOUT = 30;
+
     /**
-     * Processes a Command Line type request. Matches request against configuration XML and triggers command defined
-     * against the request name.
+     * Gets the names of the configured Command Line requests.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration to get the request names from.
+     * @return The configured request names.
      */
     @Override
-    public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        String incomingRequestName = parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst();
-        Config config = AutomationConfig.get();
-
-        // Ensure Gpio element is present in config file
-        if (config.getCommandLine() == null) {
-            throw new HandlerException("No CommandLine configuration in configuration XML");
-        }
-
-        // Check if the incoming request matches a configured request name
-        CommandLineRequest request = config.getCommandLine().getRequests().stream()
-                .filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-                .findFirst()
-                .orElse(null);
-
-        if (request == null) {
-            logger.error("Invalid request name");
-            return;
-        }
+    public Set<String> getRequestNames(ConfigSnapshot config) {
+        return config.getCommandLineRequestNames();
+    }
 
-        // Invoke the executable using ProcessWrapper to ensure all streams and the process are closed.
-        // Wait for the process to complete and log error if an error code is returned
+    /**
+     * Compiles a Command Line type request.
+     *
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return An Action which triggers the command defined against the request name.
+     */
+    @Override
+    public Action compile(ConfigSnapshot config, String requestName) {
+        CommandLineRequest request = config.getCommandLineRequest(requestName);
         String executePath = request.getCommandLine();
+        boolean outputReturned = BooleanUtils.isTrue(request.isOutputReturned());
+        return (parameterMap, deadline, response) -> execute(executePath, outputReturned, deadline, response);
+    }
+
+    /**
+     * Invokes the executable using ProcessWrapper to ensure all streams and the process are closed.
+     * Waits for the process to complete until the deadline of the request, or for 30 seconds if it has none. If the
+     * process does not complete in time, it is terminated along with every process it has started, and an error is
+     * logged rather than written to the client.
+     *
+     * @param executePath    Command line to execute.
+     * @param outputReturned True if the process output should be written to the client.
+     * @param deadline       Deadline of the request.
+     * @param response       Response to the client, for writing the process output.
+     * @throws DeadlineExceededException If the process does not complete before the deadline.
+     * @throws HandlerException          If the thread is interrupted, or the process cannot be run.
+     */
+    private void execute(String executePath, boolean outputReturned, Deadline deadline, Response response) throws HandlerException {
+        deadline.check();
         logger.debug("Executing process: {}", executePath);
         try {
             try (ProcessWrapper processWrapper = new ProcessWrapper(
                     Runtime.getRuntime().exec(executePath))) {
-                // This waitFor implementation continues to wait if nothing is written to STDOUT, so we use a 30-second timeout
-                if (!processWrapper.getProcess().waitFor(30, TimeUnit.SECONDS)) {
-                    // Write the error to the logs, but not to the client as they don't need to know the details
-                    logger.error(StreamUtils.getString(processWrapper.getProcess().getErrorStream()));
-                } else if (BooleanUtils.isTrue(request.isOutputReturned())) {
-                    clientOutput.write(StreamUtils.getString(processWrapper.getProcess().getInputStream()).getBytes(StandardCharsets.UTF_8));
+                // This waitFor implementation continues to wait if nothing is written to STDOUT, so it is always bounded
+                long timeout = deadline.isBounded() ? deadline.remaining(TimeUnit.MILLISECONDS) : TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT);
+                if (!processWrapper.getProcess().waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                    // Terminating the process closes its streams, so only the timeout is logged
+                    processWrapper.destroyTree();
+                    logger.error("Process did not complete within {} ms, terminated: {}", timeout, executePath);
+                    if (deadline.isBounded()) {
+                        throw new DeadlineExceededException(String.format("Process did not complete in time: %s", executePath));
+                    }
+                } else if (outputReturned) {
+                    response.write(StreamUtils.getString(processWrapper.getProcess().getInputStream()));
                 }
             }
         } catch (InterruptedException iE) {
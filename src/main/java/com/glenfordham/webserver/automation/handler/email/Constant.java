@@ -18,6 +18,27 @@ public enum Constant {
     ),
     MAIL_AUTH(
             "mail.smtp.auth"
+    ),
+    MAIL_CONNECTION_TIMEOUT(
+            "mail.smtp.connectiontimeout"
+    ),
+    MAIL_TIMEOUT(
+            "mail.smtp.timeout"
+    ),
+    MAIL_WRITE_TIMEOUT(
+            "mail.smtp.writetimeout"
+    ),
+    MAIL_SOCKET_FACTORY(
+            "mail.smtp.socketFactory"
+    ),
+    MAIL_SSL_SOCKET_FACTORY(
+            "mail.smtp.ssl.socketFactory"
+    ),
+    MAIL_SOCKS_HOST(
+            "mail.smtp.socks.host"
+    ),
+    MAIL_PROXY_HOST(
+            "mail.smtp.proxy.host"
     );
 
     private final String text;
@@ -1,110 +1,103 @@
 package com.glenfordham.webserver.automation.handler.email;
 
-import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot.EmailEntry;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
-import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
 import com.glenfordham.webserver.automation.jaxb.EmailHeader;
 import com.glenfordham.webserver.automation.jaxb.EmailRequest;
 import com.glenfordham.webserver.automation.jaxb.Mailbox;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
 import jakarta.mail.Message;
-import jakarta.mail.PasswordAuthentication;
-import jakarta.mail.Session;
-import jakarta.mail.Transport;
+import jakarta.mail.MessagingException;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.OutputStream;
-import java.util.Properties;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Email handler is used for processing requests of the email request type.
  */
+@HandlesRequestType("email")
 public class EmailHandler implements Handler {
 
     private static final Logger logger = LogManager.getLogger();
 
     /**
-     * Processes an Email type request. Matches request against configuration XML and triggers email action
-     * on the mailbox configured against the request.
+     * Gets the names of the configured Email requests.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration to get the request names from.
+     * @return The configured request names.
      */
     @Override
-    public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        String incomingRequestName = parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst();
-        Config config = AutomationConfig.get();
-
-        // Ensure Email element is present in config file
-        if (config.getEmail() == null) {
-            throw new HandlerException("No Email configuration in configuration XML");
-        }
-
-        // Check if the incoming request matches a configured request name
-        EmailRequest request = config.getEmail().getRequests().stream()
-                .filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-                .findFirst()
-                .orElse(null);
+    public Set<String> getRequestNames(ConfigSnapshot config) {
+        return config.getEmailRequestNames();
+    }
 
-        if (request == null) {
-            logger.error("Invalid request name");
-            return;
-        }
+    /**
+     * Compiles an Email type request. Checks that the mailbox associated with the request is configured.
+     *
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return An Action which sends the email with the configured mailbox, or null if not runnable.
+     */
+    @Override
+    public Action compile(ConfigSnapshot config, String requestName) {
+        EmailEntry entry = config.getEmailRequest(requestName);
 
-        // Check that the device associated with the validMailboxList name is configured
-        Mailbox mailbox = config.getEmail().getMailboxes().stream()
-                .filter(mailboxEntry -> request.getMailboxName().equalsIgnoreCase(mailboxEntry.getName()))
-                .findFirst()
-                .orElse(null);
+        // Check that the mailbox associated with the request name is configured
+        Mailbox mailbox = entry.mailbox();
 
         if (mailbox == null) {
-            logger.error("Mailbox name not configured: {}", request.getMailboxName());
-            return;
+            logger.error("Mailbox name not configured: {}", entry.request().getMailboxName());
+            return null;
         }
-        sendEmail(mailbox, request);
+        EmailRequest request = entry.request();
+        MailboxConnections connections = config.getCompiled(MailboxConnections.class, MailboxConnections::new);
+        return (parameterMap, deadline, response) -> sendEmail(connections.get(mailbox), request, deadline);
     }
 
     /**
-     * Unpacks the email request and sends the email to the linked 'Mailbox' host.
+     * Opens a connection to the mail server of each mailbox used by a configured request, so that the first email
+     * does not wait for the connection, TLS handshake and authentication.
      *
-     * @param mailbox Mail server to send the email with.
-     * @param request Email request to unpack and turn into an email to be sent.
-     * @throws HandlerException If an unexpected error occurs when handling the request.
+     * @param config Configuration to warm up.
      */
-    private synchronized void sendEmail(Mailbox mailbox, EmailRequest request) throws HandlerException {
-        // Get system properties
-        Properties properties = System.getProperties();
-
-        // Setup mail server
-        properties.put(Constant.MAIL_HOST.get(), mailbox.getHost());
-        properties.put(Constant.MAIL_PORT.get(), mailbox.getPort());
-        properties.put(Constant.MAIL_TLS.get(), mailbox.isTls() ? Boolean.TRUE.toString() : Boolean.FALSE.toString());
-        properties.put(Constant.MAIL_SSL.get(), !mailbox.isTls() ? Boolean.TRUE.toString() : Boolean.FALSE.toString());
-        properties.put(Constant.MAIL_AUTH.get(), (mailbox.isAuthenticate() ? Boolean.TRUE.toString() : Boolean.FALSE.toString()));
-
-        // Setup the email session, including an authenticator (not used if authentication is off)
-        Session session = Session.getInstance(properties, new jakarta.mail.Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(mailbox.getUsername(), mailbox.getPassword());
+    @Override
+    public void warmUp(ConfigSnapshot config) {
+        MailboxConnections connections = config.getCompiled(MailboxConnections.class, MailboxConnections::new);
+        Set<String> connected = new HashSet<>();
+        for (String requestName : config.getEmailRequestNames()) {
+            Mailbox mailbox = config.getEmailRequest(requestName).mailbox();
+            if (mailbox != null && connected.add(mailbox.getName())) {
+                long startTime = System.nanoTime();
+                try {
+                    connections.get(mailbox).connect();
+                    logger.debug("Connected to mailbox {} in {} ms", mailbox.getName(), (System.nanoTime() - startTime) / 1_000_000);
+                } catch (MessagingException e) {
+                    logger.warn("Unable to connect to mailbox {}. {}", mailbox.getName(), e.getMessage());
+                }
             }
-        });
-
-        // If log level is debug then also print email debug lines
-        session.setDebug(logger.isDebugEnabled());
+        }
+    }
 
+    /**
+     * Unpacks the email request and sends the email with the connection of the linked 'Mailbox'.
+     *
+     * @param connection Connection to the mail server to send the email with.
+     * @param request    Email request to unpack and turn into an email to be sent.
+     * @param deadline   Deadline of the request.
+     * @throws HandlerException If an unexpected error occurs when handling the request, or the request runs out of
+     *                          time.
+     */
+    private void sendEmail(MailboxConnection connection, EmailRequest request, Deadline deadline) throws HandlerException {
         try {
-            MimeMessage message = new MimeMessage(session);
+            MimeMessage message = new MimeMessage(connection.getSession());
 
             message.setFrom(new InternetAddress(request.getFrom()));
 
@@ -125,8 +118,10 @@ public class EmailHandler implements Handler {
             }
 
             logger.debug("Attempting to send message...");
-            Transport.send(message);
+            connection.send(message, deadline);
             logger.info("Email sent");
+        } catch (HandlerException e) {
+            throw e;
         } catch (Exception mE) {
             throw new HandlerException(mE.getMessage(), mE);
         }
@@ -0,0 +1,212 @@
+package com.glenfordham.webserver.automation.handler.email;
+
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
+import com.glenfordham.webserver.automation.handler.HandlerException;
+import com.glenfordham.webserver.automation.jaxb.Mailbox;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.SocketTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the mail session of a Mailbox, and a connection to its mail server which is kept open between emails, so that
+ * only the first email pays for connecting, the TLS handshake and authentication. The connection is checked before it
+ * is reused, and opened again if the mail server has closed it.
+ */
+class MailboxConnection {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Used when no connection timeout is set in the system properties, so a mail server which cannot be reached does
+    // not hold up warm-up or a request indefinitely
+    private static final String DEFAULT_CONNECTION_TIMEOUT = "10000";
+    // Used when no read or write timeout is set in the system properties, so a mail server which stops responding
+    // part way through an email does not hold up a request indefinitely
+    private static final String DEFAULT_TIMEOUT = "10000";
+
+    private final Mailbox mailbox;
+    private final Session session;
+    // Null if sockets are set up by the system properties, in which case a send is only bounded by the timeouts
+    private final RecordingSocketFactory socketFactory;
+    // Only one email is sent on a connection at a time. A lock is used rather than synchronized, so that a virtual
+    // thread waiting on the mail server does not pin its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private Transport transport = null;
+
+    /**
+     * Creates the mail session of a Mailbox. Mail settings in the system properties are used as defaults.
+     *
+     * @param mailbox The Mailbox configuration.
+     */
+    MailboxConnection(Mailbox mailbox) {
+        this.mailbox = mailbox;
+        Properties properties = new Properties(System.getProperties());
+        properties.put(Constant.MAIL_HOST.get(), mailbox.getHost());
+        properties.put(Constant.MAIL_PORT.get(), mailbox.getPort().toString());
+        properties.put(Constant.MAIL_TLS.get(), mailbox.isTls() ? Boolean.TRUE.toString() : Boolean.FALSE.toString());
+        properties.put(Constant.MAIL_SSL.get(), !mailbox.isTls() ? Boolean.TRUE.toString() : Boolean.FALSE.toString());
+        properties.put(Constant.MAIL_AUTH.get(), (mailbox.isAuthenticate() ? Boolean.TRUE.toString() : Boolean.FALSE.toString()));
+        if (System.getProperty(Constant.MAIL_CONNECTION_TIMEOUT.get()) == null) {
+            properties.put(Constant.MAIL_CONNECTION_TIMEOUT.get(), DEFAULT_CONNECTION_TIMEOUT);
+        }
+        if (System.getProperty(Constant.MAIL_TIMEOUT.get()) == null) {
+            properties.put(Constant.MAIL_TIMEOUT.get(), DEFAULT_TIMEOUT);
+        }
+        if (System.getProperty(Constant.MAIL_WRITE_TIMEOUT.get()) == null) {
+            properties.put(Constant.MAIL_WRITE_TIMEOUT.get(), DEFAULT_TIMEOUT);
+        }
+        socketFactory = usesConfiguredSockets() ? null : new RecordingSocketFactory();
+        if (socketFactory != null) {
+            // A plain socket factory is used for SSL too, as the mail session layers SSL over the plain socket
+            properties.put(Constant.MAIL_SOCKET_FACTORY.get(), socketFactory);
+            properties.put(Constant.MAIL_SSL_SOCKET_FACTORY.get(), socketFactory);
+        }
+        session = Session.getInstance(properties);
+
+        // If log level is debug then also print email debug lines
+        session.setDebug(logger.isDebugEnabled());
+    }
+
+    /**
+     * Gets the mail session, used to create messages.
+     *
+     * @return The mail Session of the Mailbox.
+     */
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * Opens the connection to the mail server, if it is not already open.
+     *
+     * @throws MessagingException If the mail server cannot be connected to.
+     */
+    void connect() throws MessagingException {
+        lock.lock();
+        try {
+            getTransport();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends an email on the open connection. If sending on a reused connection fails because the mail server closed it
+     * since it was checked, the email is sent once more on a new connection. Any other failure is not retried, as the
+     * mail server may already have accepted the email, and sending it again would deliver it twice. Waiting for another
+     * email to finish sending is bounded by the deadline, and the email is not sent, or sent again, once the deadline
+     * has passed. If the deadline passes while the email is sending, the connection is closed, and the mail server
+     * discards an email whose transfer is cut off before it is complete.
+     *
+     * @param message  The email to send.
+     * @param deadline Deadline of the request.
+     * @throws DeadlineExceededException If the deadline passes before the email is sent.
+     * @throws HandlerException          If the thread is interrupted while waiting for the connection.
+     * @throws MessagingException        If the email cannot be sent.
+     */
+    void send(MimeMessage message, Deadline deadline) throws HandlerException, MessagingException {
+        try {
+            if (!lock.tryLock(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)) {
+                throw new DeadlineExceededException("Timed out waiting for the mail server connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandlerException(e.getMessage(), e);
+        }
+        // The transport holds its own lock while sending, so cannot be closed part way. Its socket is closed instead
+        Deadline.Expiry expiry = socketFactory != null ? deadline.onExpiry(socketFactory::closeSocket) : () -> {
+        };
+        try {
+            message.saveChanges();
+            deadline.check();
+            Transport previous = transport;
+            Transport current = getTransport();
+            try {
+                current.sendMessage(message, message.getAllRecipients());
+            } catch (SendFailedException e) {
+                // The mail server rejected the email or its recipients, so sending it again would fail the same way
+                throw e;
+            } catch (MessagingException e) {
+                // Only a reused connection which is now closed, without timing out waiting for the mail server, means
+                // the connection was dropped before the email was handed over
+                if (current != previous || current.isConnected() || e.getCause() instanceof SocketTimeoutException) {
+                    throw e;
+                }
+                logger.debug("Mail server closed the open connection, reconnecting. {}", e.getMessage());
+                close();
+                deadline.check();
+                getTransport().sendMessage(message, message.getAllRecipients());
+            }
+        } catch (MessagingException e) {
+            if (deadline.isExpired()) {
+                throw new DeadlineExceededException(String.format("Email was not sent in time. %s", e.getMessage()), e);
+            }
+            throw e;
+        } finally {
+            expiry.close();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection to the mail server, if it is open.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (transport != null) {
+                transport.close();
+            }
+        } catch (MessagingException e) {
+            logger.debug("Unable to close mail server connection cleanly. {}", e.getMessage());
+        } finally {
+            transport = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the system properties set up the sockets of mail sessions, with a socket factory or a proxy, in which
+     * case they are left as configured.
+     *
+     * @return True if a socket factory, SOCKS proxy or web proxy is set in the system properties.
+     */
+    private static boolean usesConfiguredSockets() {
+        return System.getProperties().stringPropertyNames().stream().anyMatch(name ->
+                name.startsWith(Constant.MAIL_SOCKET_FACTORY.get())
+                        || name.startsWith(Constant.MAIL_SSL_SOCKET_FACTORY.get())
+                        || name.equals(Constant.MAIL_SOCKS_HOST.get())
+                        || name.equals(Constant.MAIL_PROXY_HOST.get()));
+    }
+
+    /**
+     * Gets the open connection to the mail server, connecting if there is no open connection. Must be called while
+     * holding the lock.
+     *
+     * @return The connected Transport.
+     * @throws MessagingException If the mail server cannot be connected to.
+     */
+    private Transport getTransport() throws MessagingException {
+        if (transport != null && transport.isConnected()) {
+            return transport;
+        }
+        close();
+        Transport newTransport = session.getTransport();
+        if (mailbox.isAuthenticate()) {
+            newTransport.connect(mailbox.getUsername(), mailbox.getPassword());
+        } else {
+            newTransport.connect();
+        }
+        transport = newTransport;
+        return transport;
+    }
+}
@@ -0,0 +1,43 @@
+package com.glenfordham.webserver.automation.handler.email;
+
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.jaxb.Mailbox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The mailbox connections of a configuration version, created when a mailbox is first used. Connections are closed
+ * when the configuration version is retired, so a reload which changes a mailbox never reuses a connection made with
+ * its previous settings.
+ */
+class MailboxConnections {
+
+    private final Map<String, MailboxConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the mailbox connections of a configuration version.
+     *
+     * @param config Configuration version which the connections belong to.
+     */
+    MailboxConnections(ConfigSnapshot config) {
+        config.whenRetired(this::close);
+    }
+
+    /**
+     * Gets the connection of a Mailbox, creating it on first use.
+     *
+     * @param mailbox The Mailbox configuration.
+     * @return The MailboxConnection.
+     */
+    MailboxConnection get(Mailbox mailbox) {
+        return connections.computeIfAbsent(mailbox.getName(), name -> new MailboxConnection(mailbox));
+    }
+
+    /**
+     * Closes every mailbox connection.
+     */
+    private void close() {
+        connections.values().forEach(MailboxConnection::close);
+    }
+}
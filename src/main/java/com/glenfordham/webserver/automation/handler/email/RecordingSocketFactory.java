@@ -0,0 +1,113 @@
+package com.glenfordham.webserver.automation.handler.email;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Creates the plain sockets of a mail session, and keeps the latest, so that it can be closed by another thread. The
+ * mail transport holds its own lock for the whole of a send, including while closing, so closing the socket is the
+ * only way to stop a send to a mail server which has stopped responding. TLS, whether started straight away or by
+ * STARTTLS, is layered over the plain socket by the mail session, so closing the plain socket also ends it.
+ */
+class RecordingSocketFactory extends SocketFactory {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private volatile Socket socket = null;
+
+    /**
+     * Creates an unconnected socket, which the mail session connects itself.
+     *
+     * @return The Socket.
+     */
+    @Override
+    public Socket createSocket() {
+        return record(new Socket());
+    }
+
+    /**
+     * Creates a socket connected to a host.
+     *
+     * @param host Name of the host.
+     * @param port Port of the host.
+     * @return The connected Socket.
+     * @throws IOException If the host cannot be connected to.
+     */
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return record(new Socket(host, port));
+    }
+
+    /**
+     * Creates a socket connected to a host, from a local address and port.
+     *
+     * @param host      Name of the host.
+     * @param port      Port of the host.
+     * @param localHost Local address to connect from.
+     * @param localPort Local port to connect from.
+     * @return The connected Socket.
+     * @throws IOException If the host cannot be connected to.
+     */
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return record(new Socket(host, port, localHost, localPort));
+    }
+
+    /**
+     * Creates a socket connected to an address.
+     *
+     * @param host Address of the host.
+     * @param port Port of the host.
+     * @return The connected Socket.
+     * @throws IOException If the host cannot be connected to.
+     */
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return record(new Socket(host, port));
+    }
+
+    /**
+     * Creates a socket connected to an address, from a local address and port.
+     *
+     * @param address      Address of the host.
+     * @param port         Port of the host.
+     * @param localAddress Local address to connect from.
+     * @param localPort    Local port to connect from.
+     * @return The connected Socket.
+     * @throws IOException If the host cannot be connected to.
+     */
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return record(new Socket(address, port, localAddress, localPort));
+    }
+
+    /**
+     * Closes the latest socket, if there is one, so that a send or connection in progress on it fails straight away.
+     */
+    void closeSocket() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close mail server socket cleanly. {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps a socket as the latest socket.
+     *
+     * @param newSocket The Socket.
+     * @return The same Socket.
+     */
+    private Socket record(Socket newSocket) {
+        socket = newSocket;
+        return newSocket;
+    }
+}
@@ -1,63 +1,67 @@
 package com.glenfordham.webserver.automation.handler.gpio;
 
-import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
-import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
+import com.glenfordham.webserver.automation.handler.Response;
 import com.glenfordham.webserver.automation.jaxb.GpioRequest;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterMap;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Set;
 
 /**
  * This handler interfaces with the GPIO process that sits on the PATH environment variable. For Raspberry Pi's only.
  */
+@HandlesRequestType("gpio")
 public class GpioHandler implements Handler {
 
-    private static final Logger logger = LogManager.getLogger();
-
     /**
-     * Processes a GPIO type request. Matches request against configuration XML and triggers configured GPIO action.
+     * Gets the names of the configured Gpio requests, including 'Carport Only' requests.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration to get the request names from.
+     * @return The configured request names.
      */
     @Override
-    public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        String incomingRequestName = parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst();
-        Config config = AutomationConfig.get();
-
-        // Ensure Gpio element is present in config file
-        if (config.getGpio() == null) {
-            throw new HandlerException("No Gpio configuration in configuration XML");
-        }
-
-        // Check if the incoming request matches a configured request name
-        GpioRequest request = config.getGpio().getRequests().stream()
-                .filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-                .findFirst()
-                .orElse(null);
+    public Set<String> getRequestNames(ConfigSnapshot config) {
+        return config.getGpioRequestNames();
+    }
 
-        if (request == null || request.isCarportOnly()) {
-            logger.error("Invalid request name");
-            return;
+    /**
+     * Compiles a GPIO type request. 'Carport Only' requests can only be used by the CarportHandler, so are not
+     * compiled.
+     *
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return An Action which triggers the configured GPIO action, or null for 'Carport Only' requests.
+     */
+    @Override
+    public Action compile(ConfigSnapshot config, String requestName) {
+        GpioRequest request = config.getGpioRequest(requestName);
+        if (request.isCarportOnly()) {
+            return null;
         }
+        return (parameterMap, deadline, response) -> process(request, deadline, response);
+    }
 
+    /**
+     * Processes a GPIO request, and writes the response of the Gpio command to the client if there is one.
+     *
+     * @param request      GpioRequest to be processed.
+     * @param deadline     Deadline of the request.
+     * @param response     Response to the client, for writing the Gpio command response.
+     * @throws HandlerException If an error occurs invoking the Gpio process or writing the response, or the request
+     *                          runs out of time.
+     */
+    private void process(GpioRequest request, Deadline deadline, Response response) throws HandlerException {
         // Process request and get response from Gpio command
-        String gpioResponse = GpioPinControl.process(request);
+        String gpioResponse = GpioPinControl.process(request, deadline);
         // If no read was requested, the response will be null
         if (gpioResponse != null) {
             try {
-                clientOutput.write(gpioResponse.getBytes());
+                response.write(gpioResponse);
             } catch (IOException e) {
                 throw new HandlerException(String.format("Unable to write response. %s", e.getMessage()), e);
             }
@@ -2,9 +2,13 @@ package com.glenfordham.webserver.automation.handler.gpio;
 
 import com.glenfordham.utils.process.cmd.CmdLineException;
 import com.glenfordham.utils.process.cmd.CommandLine;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.HandlerException;
 import com.glenfordham.webserver.automation.jaxb.*;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Defines behaviour for the various types of GpioRequest.
  */
@@ -12,17 +16,19 @@ public class GpioPinControl {
 	/**
 	 * Processes the GPIO request.
 	 *
-	 * @param request GpioRequest to be processed.
+	 * @param request  GpioRequest to be processed.
+	 * @param deadline Deadline of the request.
 	 * @return A String if a Gpio read was performed, or null if only a write was performed.
-	 * @throws HandlerException If a generic Exception occurs when handling the request.
+	 * @throws DeadlineExceededException If the request runs out of time.
+	 * @throws HandlerException          If a generic Exception occurs when handling the request.
 	 */
-	public static String process(GpioRequest request) throws HandlerException {
+	public static String process(GpioRequest request, Deadline deadline) throws HandlerException {
 		String response = null;
 		if (request.getRead() != null) {
-			response = process(request.getRead());
+			response = process(request.getRead(), deadline);
 		}
 		if (request.getWrite() != null) {
-			process(request.getWrite());
+			process(request.getWrite(), deadline);
 		}
 		return response;
 	}
@@ -31,43 +37,80 @@ public class GpioPinControl {
 	 * Processes a GpioRead request.
 	 *
 	 * @param readRequest GpioRead request to be processed.
+	 * @param deadline    Deadline of the request.
 	 * @return A String with the response of the read request.
 	 * @throws HandlerException If a generic Exception occurs when handling the request.
 	 */
-	private static String process(GpioRead readRequest) throws HandlerException {
+	private static String process(GpioRead readRequest, Deadline deadline) throws HandlerException {
 		GpioReadBehaviour readBehaviour = readRequest.getBehaviour();
 		if (readBehaviour.equals(GpioReadBehaviour.READ)) {
-			return execute(Constant.GPIO_READ, readRequest.getPin(), null);
+			return execute(Constant.GPIO_READ, readRequest.getPin(), null, deadline);
 		} else {
 			throw new HandlerException("For Gpio read, only READ behaviour supported");
 		}
 	}
 
 	/**
-	 * Processes a GpioWrite request.
+	 * Gets how long a GpioRequest holds its pin set before resetting it.
+	 *
+	 * @param request GpioRequest to check.
+	 * @return The wait time before reset in milliseconds, or 0 if the request does not reset its pin.
+	 */
+	public static int getResetWaitTime(GpioRequest request) {
+		GpioWrite writeRequest = request.getWrite();
+		if (writeRequest == null || writeRequest.getBehaviour().equals(GpioWriteBehaviour.WRITE)
+				|| writeRequest.getWaitTimeBeforeReset() == null) {
+			return 0;
+		}
+		return writeRequest.getWaitTimeBeforeReset();
+	}
+
+	/**
+	 * Processes a GpioWrite request. A write and reset is not started if the deadline would pass before the pin is due
+	 * to be reset. Once the write has started, the pin is always reset after the full wait time, even if the deadline
+	 * passes in the meantime, and only then is the request failed, so the pin is never left set.
 	 *
 	 * @param writeRequest GpioWrite request to be processed.
-	 * @throws HandlerException If an exception occurs when attempting to sleep the thread.
+	 * @param deadline     Deadline of the request.
+	 * @throws DeadlineExceededException If there is not enough time to write and reset the pin.
+	 * @throws HandlerException          If an exception occurs when attempting to sleep the thread.
 	 */
-	private static void process(GpioWrite writeRequest) throws HandlerException {
+	private static void process(GpioWrite writeRequest, Deadline deadline) throws HandlerException {
 		GpioWriteBehaviour writeBehaviour = writeRequest.getBehaviour();
 		if (writeBehaviour.equals(GpioWriteBehaviour.WRITE)) {
-			execute(Constant.GPIO_WRITE, writeRequest.getPin(), writeRequest.getValue());
+			execute(Constant.GPIO_WRITE, writeRequest.getPin(), writeRequest.getValue(), deadline);
 		} else if (writeRequest.getWaitTimeBeforeReset() != null) {
-			// Execute the write action...
-			execute(Constant.GPIO_WRITE, writeRequest.getPin(), writeRequest.getValue());
-			// ..then sleep for the configured time in millseconds...
-			try {
-				Thread.sleep(writeRequest.getWaitTimeBeforeReset());
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				throw new HandlerException(e.getMessage(), e);
+			int waitTime = writeRequest.getWaitTimeBeforeReset();
+			if (deadline.remaining(TimeUnit.MILLISECONDS) < waitTime) {
+				throw new DeadlineExceededException("Not enough time left to write and reset the Gpio pin");
 			}
-			// ..then write the opposite value that was originally written to the pin
-			if (writeRequest.getValue().equals(GpioWriteValue.ZERO)) {
-				execute(Constant.GPIO_WRITE, writeRequest.getPin(), GpioWriteValue.ONE);
-			} else {
-				execute(Constant.GPIO_WRITE, writeRequest.getPin(), GpioWriteValue.ZERO);
+			boolean interrupted = false;
+			try {
+				// Execute the write action...
+				execute(Constant.GPIO_WRITE, writeRequest.getPin(), writeRequest.getValue(), deadline);
+				// ..then sleep for the configured time in millseconds. The time was checked before the write, so the
+				// sleep is not cut short by the deadline...
+				try {
+					Thread.sleep(waitTime);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					throw new HandlerException(e.getMessage(), e);
+				}
+			} finally {
+				// ..then write the opposite value that was originally written to the pin, even if the write failed or
+				// was terminated after setting the pin. The reset is not bounded by the deadline, and the thread is
+				// only marked interrupted afterwards, so that the reset process is not stopped
+				try {
+					if (writeRequest.getValue().equals(GpioWriteValue.ZERO)) {
+						execute(Constant.GPIO_WRITE, writeRequest.getPin(), GpioWriteValue.ONE, Deadline.NONE);
+					} else {
+						execute(Constant.GPIO_WRITE, writeRequest.getPin(), GpioWriteValue.ZERO, Deadline.NONE);
+					}
+				} finally {
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
 			}
 		} else {
 			throw new HandlerException("write and reset requested but 'wait time before reset' not provided");
@@ -80,14 +123,20 @@ public class GpioPinControl {
 	 * @param gpioCommand Gpio command to be performed, either 'read' or 'write'.
 	 * @param pin         Pin to perform the command on.
 	 * @param writeValue  Value to write, if a write is being performed.
+	 * @param deadline    Deadline of the request, after which the Gpio process is terminated.
 	 * @return A String with the response of the Gpio pin, if a read is performed.
-	 * @throws HandlerException If an error occurs when running the Gpio process.
+	 * @throws DeadlineExceededException If the Gpio process does not complete before the deadline.
+	 * @throws HandlerException          If an error occurs when running the Gpio process.
 	 */
-	private static String execute(Constant gpioCommand, int pin, GpioWriteValue writeValue) throws HandlerException {
+	private static String execute(Constant gpioCommand, int pin, GpioWriteValue writeValue, Deadline deadline) throws HandlerException {
+		deadline.check();
 		// Invoke the GPIO executable and return the response
 		try {
-			return new CommandLine("gpio " + gpioCommand.get() + " " + pin + " " + (writeValue != null ? writeValue.value() : "")).exec();
+			return new CommandLine("gpio " + gpioCommand.get() + " " + pin + " " + (writeValue != null ? writeValue.value() : "")).exec(deadline.bound(0));
 		} catch (CmdLineException e) {
+			if (deadline.isExpired()) {
+				throw new DeadlineExceededException(String.format("Gpio process did not complete in time. %s", e.getMessage()), e);
+			}
 			throw new HandlerException(String.format("Error occurred when executing gpio process. %s", e.getMessage()), e);
 		}
 	}
@@ -2,125 +2,182 @@ package com.glenfordham.webserver.automation.handler.proxy;
 
 import com.glenfordham.utils.StreamUtils;
 import com.glenfordham.webserver.automation.Parameter;
-import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot;
+import com.glenfordham.webserver.automation.config.ConfigSnapshot.ProxyEntry;
+import com.glenfordham.webserver.automation.handler.Action;
+import com.glenfordham.webserver.automation.handler.Deadline;
+import com.glenfordham.webserver.automation.handler.DeadlineExceededException;
 import com.glenfordham.webserver.automation.handler.Handler;
 import com.glenfordham.webserver.automation.handler.HandlerException;
-import com.glenfordham.webserver.automation.jaxb.Config;
+import com.glenfordham.webserver.automation.handler.HandlesRequestType;
+import com.glenfordham.webserver.automation.handler.Response;
 import com.glenfordham.webserver.automation.jaxb.ProxyHost;
 import com.glenfordham.webserver.automation.jaxb.ProxyRequest;
-import com.glenfordham.webserver.servlet.parameter.ParameterException;
-import com.glenfordham.webserver.servlet.parameter.ParameterList;
 import com.glenfordham.webserver.servlet.parameter.ParameterMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.OutputStream;
+import javax.net.ssl.SSLContext;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * ProxyHandler processes proxy type requests, and allows the forward of a request to another Automation Server, or
  * other web service that processes URL parameters only. This handler will only forward URL parameters, and does not
  * forward other request body elements.
  */
+@HandlesRequestType(value = "proxy", extraParameters = true)
 public class ProxyHandler implements Handler {
 
     private static final Logger logger = LogManager.getLogger();
 
+    // 'proxy_' prefixed URL parameter keys, mapped to the keys expected by the forward host
+    private static final Map<String, String> PROXY_PREFIX_RENAMES = Arrays.stream(ProxyParameterMapping.values())
+            .collect(Collectors.toUnmodifiableMap(ProxyParameterMapping::getText, mapping -> mapping.getParameter().get()));
+
     /**
-     * Processes a proxy type request. Proxy requests are forwarded on to the configured destination.
+     * Gets the names of the configured Proxy requests.
      *
-     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
-     * @param clientOutput Client OutputStream, for writing a response.
-     * @throws AutomationConfigException If unable to get configuration.
-     * @throws HandlerException          If a generic Exception occurs when handling the request.
-     * @throws ParameterException        If unable to get request name from parameter.
+     * @param config Configuration to get the request names from.
+     * @return The configured request names.
      */
     @Override
-    public void start(ParameterMap parameterMap, OutputStream clientOutput) throws AutomationConfigException, HandlerException, ParameterException {
-        String incomingRequestName = parameterMap.get(Parameter.REQUEST_NAME.get()).getFirst();
-        Config config = AutomationConfig.get();
-
-        // Ensure Proxy element is present in config file
-        if (config.getProxy() == null) {
-            throw new HandlerException("No Proxy configuration in configuration XML");
-        }
-
-        // Check if the incoming request matches a configured request name
-        ProxyRequest request = config.getProxy().getRequests().stream()
-                .filter(requestEntry -> incomingRequestName.equalsIgnoreCase(requestEntry.getName()))
-                .findFirst()
-                .orElse(null);
+    public Set<String> getRequestNames(ConfigSnapshot config) {
+        return config.getProxyRequestNames();
+    }
 
-        if (request == null) {
-            logger.error("Invalid request name");
-            return;
-        }
+    /**
+     * Compiles a proxy type request. Checks that the host associated with the request is configured.
+     *
+     * @param config      Configuration to compile the request from.
+     * @param requestName Name of the configured request.
+     * @return An Action which forwards the request on to the configured destination, or null if not runnable.
+     */
+    @Override
+    public Action compile(ConfigSnapshot config, String requestName) {
+        ProxyEntry entry = config.getProxyRequest(requestName);
 
-        // Check that the device associated with the request name is configured
-        ProxyHost host = config.getProxy().getHosts().stream()
-                .filter(deviceEntry -> request.getHost().equalsIgnoreCase(deviceEntry.getName()))
-                .findFirst()
-                .orElse(null);
+        // Check that the host associated with the request name is configured
+        ProxyRequest request = entry.request();
+        ProxyHost host = entry.host();
 
         if (host == null) {
             logger.error("Host name not configured: {}", request.getHost());
-            return;
+            return null;
         }
 
-        // If proxy request is for another automation server, check that all proxy parameters are present
-        if (request.isForAutomationServer()
-                && !Arrays.stream(ProxyParameterMapping.values()).allMatch(e->parameterMap.containsKey(e.getText())) ) {
-            logger.error("Proxy request for another automation server does not contain all required URL parameters");
-            return;
+        String hostUrl = host.getScheme() + "://" + host.getFqdn() + ":" + host.getPort() + "/";
+        return (parameterMap, deadline, response) -> forward(entry, hostUrl, parameterMap, deadline, response);
+    }
+
+    /**
+     * Resolves the address of each host used by a configured request, which the JVM then caches (for 30 seconds by
+     * default, set with the networkaddress.cache.ttl security property). If any host uses https, the default TLS
+     * context is also created, which loads the trusted certificates.
+     *
+     * @param config Configuration to warm up.
+     */
+    @Override
+    public void warmUp(ConfigSnapshot config) {
+        Set<String> resolved = new HashSet<>();
+        boolean https = false;
+        for (String requestName : config.getProxyRequestNames()) {
+            ProxyHost host = config.getProxyRequest(requestName).host();
+            if (host == null || !resolved.add(host.getFqdn())) {
+                continue;
+            }
+            https |= "https".equalsIgnoreCase(host.getScheme());
+            long startTime = System.nanoTime();
+            try {
+                InetAddress[] addresses = InetAddress.getAllByName(host.getFqdn());
+                logger.debug("Resolved proxy host {} to {} addresses in {} ms",
+                        host.getFqdn(), addresses.length, (System.nanoTime() - startTime) / 1_000_000);
+            } catch (UnknownHostException e) {
+                logger.warn("Unable to resolve proxy host {}", host.getFqdn());
+            }
         }
+        if (https) {
+            try {
+                SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                logger.warn("Unable to create TLS context. {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Forwards a proxy type request on to the configured destination, and returns the response to the client. The
+     * connection and read timeouts of the host are shortened to the time remaining, and the connection is closed if
+     * the deadline passes while the response is being read. Another automation server is sent the time remaining as
+     * the timeout of the forwarded request, so that it stops too.
+     *
+     * @param entry        The configured proxy request.
+     * @param hostUrl      URL of the configured host, without URL parameters.
+     * @param parameterMap Complete ParameterMap object, containing both parameter keys and values.
+     * @param deadline     Deadline of the request.
+     * @param response     Response to the client, for writing the response of the proxy host.
+     * @throws DeadlineExceededException If the proxy host does not respond before the deadline.
+     * @throws HandlerException          If a generic Exception occurs when making the proxy request.
+     */
+    private void forward(ProxyEntry entry, String hostUrl, ParameterMap parameterMap, Deadline deadline, Response response) throws HandlerException {
+        ProxyRequest request = entry.request();
+        ProxyHost host = entry.host();
 
-        // Get list of parameters to forward in the proxy request
-        ParameterMap forwardParameterMap;
-        List<String> proxyParameters = request.getForwardParameters();
-        // If proxy request is for another automation server, ensure standard parameters are forwarded in request
+        // If proxy request is for another automation server, check that all proxy parameters are present
         if (request.isForAutomationServer()) {
-            for (ProxyParameterMapping mapping : ProxyParameterMapping.values()) {
-                proxyParameters.add(mapping.getText());
+            for (String proxyParameter : PROXY_PREFIX_RENAMES.keySet()) {
+                if (!parameterMap.containsKey(proxyParameter)) {
+                    logger.error("Proxy request for another automation server does not contain all required URL parameters");
+                    return;
+                }
             }
         }
-        // Forward the parameters as specified in configuration, others will be ignored
-        forwardParameterMap = parameterMap.filterByList(request.getForwardParameters());
+
+        // Forward the parameters as specified in configuration, others will be ignored. For requests to another
+        // automation server, the standard 'proxy_' prefixed parameters are included when the configuration is loaded
+        ParameterMap forwardParameterMap = parameterMap.filterByList(entry.forwardParameters());
 
         // Remove 'proxy_' prefixes so request can be processed by the forward host
         if (request.isForAutomationServer()) {
-            filterProxyPrefixes(forwardParameterMap);
+            forwardParameterMap = forwardParameterMap.withKeysRenamed(PROXY_PREFIX_RENAMES);
+        }
+
+        String urlString = forwardParameterMap.getAsUrlString();
+        if (request.isForAutomationServer() && deadline.isBounded() && !forwardParameterMap.containsKey(Parameter.TIMEOUT.get())) {
+            // At least 1, as a timeout of 0 is not valid, and the deadline is checked again before the request is sent
+            urlString += (urlString.isEmpty() ? "?" : "&") + Parameter.TIMEOUT.get() + "=" + Math.max(1, deadline.remaining(TimeUnit.MILLISECONDS));
         }
 
         // Send request to configured proxy host with configured forward parameters, and return response to original requester
+        deadline.check();
         try {
-            URL url = new URL(host.getScheme() + "://" + host.getFqdn() + ":" + host.getPort() + "/" + forwardParameterMap.getAsUrlString());
+            URL url = new URL(hostUrl + urlString);
             HttpURLConnection con = (HttpURLConnection) url.openConnection();
             con.setRequestMethod("GET");
-            con.setConnectTimeout(host.getConnectionTimeout());
-            con.setReadTimeout(host.getReadTimeout());
+            con.setConnectTimeout(deadline.bound(host.getConnectionTimeout()));
+            con.setReadTimeout(deadline.bound(host.getReadTimeout()));
             con.setInstanceFollowRedirects(false);
-            clientOutput.write(StreamUtils.getString(con.getInputStream()).getBytes());
-            clientOutput.flush();
-            clientOutput.close();
+            // The read timeout applies to each read, so the connection is also closed once the deadline passes
+            Deadline.Expiry expiry = deadline.onExpiry(con::disconnect);
+            try {
+                response.write(StreamUtils.getString(con.getInputStream()));
+            } finally {
+                expiry.close();
+            }
         } catch (Exception e) {
+            if (deadline.isExpired()) {
+                throw new DeadlineExceededException(String.format("Proxy request did not complete in time. %s", e.getMessage()), e);
+            }
             throw new HandlerException(String.format("Error occurred when making proxy request. %s", e.getMessage()), e);
         }
     }
-
-    /**
-     * Remove the 'proxy_' prefix text from URL parameters in order to be forwarded to another automation server
-     *
-     * @param parameterMap The parameter map with keys to remove 'proxy_' prefix text from
-     */
-    private void filterProxyPrefixes(ParameterMap parameterMap) {
-        for (ProxyParameterMapping mapping : ProxyParameterMapping.values()) {
-            ParameterList tempParameterList = parameterMap.get(mapping.getText());
-            parameterMap.remove(mapping.getText());
-            parameterMap.put(mapping.getParameter().get(), tempParameterList);
-        }
-    }
 }
@@ -1,31 +1,151 @@
 package com.glenfordham.webserver.automation.jaxb;
 
-import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.apache.commons.lang3.builder.ToStringBuilder;
-import org.apache.commons.lang3.builder.ToStringStyle;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * Super class for all generated JAXB objects to allow easy overriding of default Java methods.
+ * <p>
+ * equals, hashCode and toString are field-wise. The fields of each generated class are looked up once, the first time
+ * the class is used, and read through method handles afterwards, so comparing configuration on every reload does not
+ * use reflection or build strings. A list which has not been created yet is treated as an empty list, as the
+ * generated classes only create lists when they are first read.
  */
 public class JaxbObject {
 
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	// Fields of each generated class, found once per class
+	private static final ClassValue<Fields> FIELDS = new ClassValue<>() {
+		@Override
+		protected Fields computeValue(Class<?> type) {
+			return Fields.of(type);
+		}
+	};
+
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		Fields fields = FIELDS.get(getClass());
+		StringBuilder builder = new StringBuilder(getClass().getSimpleName()).append('[');
+		for (int i = 0; i < fields.names.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(fields.names[i]).append('=').append(fields.get(i, this));
+		}
+		return builder.append(']').toString();
 	}
 
 
 	@Override
 	public boolean equals(Object object) {
-		if (object == null) {
+		if (this == object) {
+			return true;
+		}
+		if (object == null || !this.getClass().equals(object.getClass())) {
 			return false;
 		}
-		return this.getClass().equals(object.getClass()) && ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE).equals(object.toString());
+		Fields fields = FIELDS.get(getClass());
+		for (int i = 0; i < fields.names.length; i++) {
+			if (!Objects.equals(fields.get(i, this), fields.get(i, object))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 
 	@Override
 	public int hashCode() {
-		return HashCodeBuilder.reflectionHashCode(this);
+		Fields fields = FIELDS.get(getClass());
+		int hash = 1;
+		for (int i = 0; i < fields.names.length; i++) {
+			hash = 31 * hash + Objects.hashCode(fields.get(i, this));
+		}
+		return hash;
+	}
+
+	/**
+	 * The instance fields of a generated class and its generated super classes, with a getter for each.
+	 */
+	private static final class Fields {
+
+		private final String[] names;
+		private final MethodHandle[] getters;
+		private final boolean[] lists;
+
+		/**
+		 * Creates the fields of a class.
+		 *
+		 * @param names   Field names.
+		 * @param getters Getter of each field, taking the object and returning the field value.
+		 * @param lists   Whether each field is a List.
+		 */
+		private Fields(String[] names, MethodHandle[] getters, boolean[] lists) {
+			this.names = names;
+			this.getters = getters;
+			this.lists = lists;
+		}
+
+		/**
+		 * Finds the instance fields of a generated class, in declaration order, starting with its super classes.
+		 *
+		 * @param type The generated class.
+		 * @return The Fields of the class.
+		 * @throws IllegalStateException If a field cannot be read.
+		 */
+		private static Fields of(Class<?> type) {
+			List<Field> fields = new ArrayList<>();
+			for (Class<?> current = type; current != JaxbObject.class && current != Object.class; current = current.getSuperclass()) {
+				List<Field> declared = new ArrayList<>();
+				for (Field field : current.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+						declared.add(field);
+					}
+				}
+				fields.addAll(0, declared);
+			}
+
+			String[] names = new String[fields.size()];
+			MethodHandle[] getters = new MethodHandle[fields.size()];
+			boolean[] lists = new boolean[fields.size()];
+			// Generated fields are protected, and so are accessible from this package without setAccessible
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			for (int i = 0; i < fields.size(); i++) {
+				Field field = fields.get(i);
+				names[i] = field.getName();
+				lists[i] = List.class.isAssignableFrom(field.getType());
+				try {
+					getters[i] = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException(String.format("Unable to read field %s of %s", field.getName(), type.getName()), e);
+				}
+			}
+			return new Fields(names, getters, lists);
+		}
+
+		/**
+		 * Gets the value of a field.
+		 *
+		 * @param index  Index of the field.
+		 * @param object Object to read the field of.
+		 * @return The field value. An empty list if the field is a list which has not been created.
+		 */
+		private Object get(int index, Object object) {
+			Object value;
+			try {
+				value = (Object) getters[index].invokeExact(object);
+			} catch (Throwable e) {
+				// Field getters do not throw
+				throw new IllegalStateException(e);
+			}
+			return value == null && lists[index] ? List.of() : value;
+		}
 	}
 }
@@ -0,0 +1,123 @@
+package com.glenfordham.webserver.concurrent;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reports how often virtual threads are pinned to their carrier thread, using the JDK Flight Recorder
+ * jdk.VirtualThreadPinned event. A pinned virtual thread blocks a platform thread while it waits, typically because it
+ * blocked inside a synchronized block or a native method. Pinning is logged as it happens at debug level, and a summary
+ * is logged at each report interval in which any pinning occurred, along with where in the application it occurred
+ * most.
+ */
+public class PinningMonitor {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String APPLICATION_PACKAGE = "com.glenfordham.";
+    // Pinning shorter than this is not recorded, as it does not noticeably hold up a carrier thread
+    private static final Duration THRESHOLD = Duration.ofMillis(20);
+    private static final long REPORT_INTERVAL_MINUTES = 5;
+
+    private static final LongAdder pinnedCount = new LongAdder();
+    private static final LongAdder pinnedNanos = new LongAdder();
+    private static final Map<String, LongAdder> pinnedLocations = new ConcurrentHashMap<>();
+    private static boolean started = false;
+
+    /**
+     * Starts monitoring virtual thread pinning in the background. Only the first call has any effect.
+     */
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        try {
+            RecordingStream stream = new RecordingStream();
+            stream.enable(PINNED_EVENT).withThreshold(THRESHOLD).withStackTrace();
+            stream.onEvent(PINNED_EVENT, PinningMonitor::record);
+            stream.startAsync();
+        } catch (IllegalStateException | SecurityException e) {
+            logger.warn("Unable to monitor virtual thread pinning, Flight Recorder is not available. {}", e.getMessage());
+            return;
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pinning-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(PinningMonitor::report, REPORT_INTERVAL_MINUTES, REPORT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        started = true;
+        logger.info("Monitoring virtual thread pinning longer than {} ms", THRESHOLD.toMillis());
+    }
+
+    /**
+     * Records a pinned event.
+     *
+     * @param event The jdk.VirtualThreadPinned event.
+     */
+    private static void record(RecordedEvent event) {
+        String location = getLocation(event);
+        pinnedCount.increment();
+        pinnedNanos.add(event.getDuration().toNanos());
+        pinnedLocations.computeIfAbsent(location, key -> new LongAdder()).increment();
+        logger.debug("Virtual thread pinned for {} ms at {}", event.getDuration().toMillis(), location);
+    }
+
+    /**
+     * Logs a summary of pinning since the last report, and resets the counts.
+     */
+    private static void report() {
+        long count = pinnedCount.sumThenReset();
+        long totalMillis = pinnedNanos.sumThenReset() / 1_000_000;
+        String mostPinned = null;
+        long mostPinnedCount = 0;
+        for (Map.Entry<String, LongAdder> location : pinnedLocations.entrySet()) {
+            long locationCount = location.getValue().sumThenReset();
+            if (locationCount > mostPinnedCount) {
+                mostPinned = location.getKey();
+                mostPinnedCount = locationCount;
+            }
+        }
+        if (count > 0) {
+            logger.warn("Virtual threads pinned {} times in the last {} minutes, for {} ms in total. Most often at {} ({} times)",
+                    count, REPORT_INTERVAL_MINUTES, totalMillis, mostPinned, mostPinnedCount);
+        }
+    }
+
+    /**
+     * Gets where a virtual thread was pinned, preferring the innermost application method over JDK or library methods.
+     *
+     * @param event The jdk.VirtualThreadPinned event.
+     * @return The class and method name where pinning occurred, or "unknown" if there is no stack trace.
+     */
+    private static String getLocation(RecordedEvent event) {
+        if (event.getStackTrace() == null || event.getStackTrace().getFrames().isEmpty()) {
+            return "unknown";
+        }
+        RecordedFrame location = event.getStackTrace().getFrames().get(0);
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            if (frame.isJavaFrame() && frame.getMethod().getType().getName().startsWith(APPLICATION_PACKAGE)) {
+                location = frame;
+                break;
+            }
+        }
+        return location.getMethod().getType().getName() + "." + location.getMethod().getName();
+    }
+
+    // use static methods
+    private PinningMonitor() {
+    }
+}
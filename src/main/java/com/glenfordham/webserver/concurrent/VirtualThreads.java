@@ -0,0 +1,46 @@
+package com.glenfordham.webserver.concurrent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors which run each task on its own virtual thread. The application is built for Java 17, so virtual
+ * threads are created through reflection, and are only available when running on a Java version which provides them
+ * (Java 21 or later, or Java 19 and 20 with preview features enabled).
+ */
+public class VirtualThreads {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Creates an executor which starts a new, named virtual thread for each task.
+     *
+     * @param namePrefix Prefix of the thread names, followed by an increasing number.
+     * @return An ExecutorService using virtual threads, or null if virtual threads are not available.
+     */
+    public static ExecutorService newExecutor(String namePrefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (InvocationTargetException e) {
+            // Preview API present but not enabled
+            logger.debug("Virtual threads not enabled. {}", e.getCause().getMessage());
+            return null;
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads not supported. {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // use static methods
+    private VirtualThreads() {
+    }
+}
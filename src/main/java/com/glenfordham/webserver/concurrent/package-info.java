@@ -0,0 +1,4 @@
+/**
+ * Container for thread and executor support shared by the web server and request handlers.
+ */
+package com.glenfordham.webserver.concurrent;
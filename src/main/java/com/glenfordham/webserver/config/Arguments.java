@@ -14,13 +14,22 @@ public enum Arguments {
             "the location of the config.xml file",
             null
     ),
+    CONFIG_CACHE(
+            "k",
+            false,
+            true,
+            "configCache",
+            true,
+            "the location of a binary cache of config.xml, used to skip XML processing at startup while config.xml is unchanged",
+            null
+    ),
     CONFIG_RELOAD(
             "r",
             false,
             true,
             "reload",
             false,
-            "if present, config.xml will be loaded on every request",
+            "if present, config.xml will be reloaded whenever it changes",
             null
     ),
     DEBUG(
@@ -32,6 +41,177 @@ public enum Arguments {
             "enable verbose logging for debugging purposes",
             null
     ),
+    HANDLER_THREADS(
+            "t",
+            false,
+            true,
+            "handlerThreads",
+            true,
+            "sets the number of threads that run requests, so slow requests do not hold up web server threads  eg. 16",
+            "16"
+    ),
+    VIRTUAL_THREADS(
+            "v",
+            false,
+            true,
+            "virtualThreads",
+            false,
+            "if present, web requests and request handlers run on virtual threads. Requires Java 21 or later, so not available with the zip packages, which include Java 17. Falls back to platform threads with a warning",
+            null
+    ),
+    ENGINE(
+            "b",
+            false,
+            true,
+            "engine",
+            true,
+            "sets the server engine, 'tomcat' or 'lightweight'. The lightweight engine starts faster and uses less memory, but does not support HTTP/2  eg. tomcat",
+            "tomcat"
+    ),
+    CONNECTOR_MIN_THREADS(
+            "m",
+            false,
+            true,
+            "minThreads",
+            true,
+            "sets the number of connector threads kept running while idle  eg. 2",
+            "2"
+    ),
+    CONNECTOR_MAX_THREADS(
+            "x",
+            false,
+            true,
+            "maxThreads",
+            true,
+            "sets the maximum number of connector threads  eg. 20",
+            "20"
+    ),
+    CONNECTOR_QUEUE_SIZE(
+            "q",
+            false,
+            true,
+            "queueSize",
+            true,
+            "sets the number of accepted connections queued while all connector threads are busy  eg. 100",
+            "100"
+    ),
+    ACCEPT_COUNT(
+            "a",
+            false,
+            true,
+            "acceptCount",
+            true,
+            "sets the number of connections queued by the operating system while all connector threads are busy  eg. 50",
+            "50"
+    ),
+    KEEP_ALIVE_TIMEOUT(
+            "e",
+            false,
+            true,
+            "keepAliveTimeout",
+            true,
+            "sets how long an idle keep-alive connection is kept open, in milliseconds  eg. 30000",
+            "30000"
+    ),
+    MAX_KEEP_ALIVE_REQUESTS(
+            "n",
+            false,
+            true,
+            "maxKeepAliveRequests",
+            true,
+            "sets the number of requests a keep-alive connection can make before it is closed, -1 for no limit  eg. 1000",
+            "1000"
+    ),
+    HTTP2(
+            "u",
+            false,
+            true,
+            "http2",
+            false,
+            "if present, clients can upgrade connections to HTTP/2 without TLS (h2c)",
+            null
+    ),
+    RATE_LIMIT(
+            "l",
+            false,
+            true,
+            "rateLimit",
+            true,
+            "sets the number of requests per second allowed from each client address, in bursts of up to a second's worth. Requests over the limit get a 429 response, 0 for no limit. Behind a reverse proxy, all clients share the limit of the proxy's address  eg. 10",
+            "0"
+    ),
+    AUTH_FAILURE_LIMIT(
+            "f",
+            false,
+            true,
+            "authFailureLimit",
+            true,
+            "sets the number of failed authentication attempts from a client address before it is locked out, 0 for no lockout. Only use when clients connect directly, as behind a reverse proxy a lockout locks out every client  eg. 5",
+            "0"
+    ),
+    LOCKOUT_TIME(
+            "j",
+            false,
+            true,
+            "lockoutTime",
+            true,
+            "sets how long a client address is locked out for after too many failed authentication attempts, in seconds  eg. 300",
+            "300"
+    ),
+    TARGET_DELAY(
+            "y",
+            false,
+            true,
+            "targetDelay",
+            true,
+            "sets how long requests should wait for a request handler thread, in milliseconds. Once requests have waited longer than this for 20 times as long, requests are shed with a 503 response until the queue clears, 0 to never shed requests  eg. 100",
+            "100"
+    ),
+    REQUEST_TIMEOUT(
+            "z",
+            false,
+            true,
+            "requestTimeout",
+            true,
+            "sets how long requests have to complete from when they are received, in milliseconds, unless their request policy sets a timeout. Work still running once it passes is stopped, and the request gets a 504 response, 0 for no limit  eg. 30000",
+            "0"
+    ),
+    WARM_UP(
+            "w",
+            false,
+            true,
+            "warmUp",
+            false,
+            "if present, configured requests are warmed up at startup without being run, proxy host names are resolved and mailbox connections are opened, before any request is accepted",
+            null
+    ),
+    TRAINING_RUN(
+            "g",
+            false,
+            true,
+            "trainingRun",
+            true,
+            "starts the server, sends it synthetic requests, then writes a class data sharing archive to the given location and exits. Later startups using the archive are faster",
+            null
+    ),
+    UNIX_SOCKET(
+            "s",
+            false,
+            true,
+            "unixSocket",
+            true,
+            "the path of a Unix domain socket to also listen on, for clients on the same host. Requests on the socket do not need an authentication token, access is controlled by the socket file permissions",
+            null
+    ),
+    UNIX_SOCKET_PERMISSIONS(
+            "o",
+            false,
+            true,
+            "unixSocketPermissions",
+            true,
+            "sets the file permissions of the Unix domain socket, for its owner, group and others  eg. rw-rw----",
+            "rw-rw----"
+    ),
     PORT(
             "p",
             false,
@@ -0,0 +1,205 @@
+package com.glenfordham.webserver.request;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Sheds requests when the server is overloaded, based on how long requests wait for a request handler thread, in the
+ * style of the CoDel queue management algorithm. Queueing is normal during a short burst, so the server is only
+ * overloaded once, for a whole interval of 20 times the target delay, no request has been started within the target
+ * delay. While overloaded, requests which have waited longer than the target delay are shed, as are new requests while
+ * the queue is longer than the number of request handler threads. Otherwise, only requests which have waited longer
+ * than the whole interval are shed. Shed requests get a 503 response with a Retry-After header, so clients back off
+ * rather than queueing more requests behind the ones already waiting.
+ * <p>
+ * Critical requests are never shed. Whether a request is critical is only looked up when it would otherwise be shed.
+ * The queue depth, number of requests in flight, and number of shed requests are available through JMX, as the
+ * AdmissionControl MBean.
+ */
+public class AdmissionControl implements AdmissionControlMXBean {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String OBJECT_NAME = "com.glenfordham.webserver:type=AdmissionControl";
+    // The interval is 20 times the target delay, as recommended for CoDel
+    private static final int INTERVAL_MULTIPLE = 20;
+
+    private final long target;
+    private final long interval;
+    private final int queueLimit;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    // Shortest wait of the requests started in the current interval, and the time the interval ends
+    private final AtomicLong minimumDelay = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong intervalEnd;
+    private volatile boolean overloaded = false;
+    private ObjectName objectName = null;
+
+    /**
+     * Creates the admission control of a request pipeline.
+     *
+     * @param targetDelay Time requests should wait for a request handler thread, in milliseconds, or 0 to never shed
+     *                    requests.
+     * @param queueLimit  Number of queued requests over which new requests are shed while the server is overloaded,
+     *                    normally the number of request handler threads.
+     */
+    public AdmissionControl(int targetDelay, int queueLimit) {
+        this.target = TimeUnit.MILLISECONDS.toNanos(Math.max(0, targetDelay));
+        this.interval = target * INTERVAL_MULTIPLE;
+        this.queueLimit = queueLimit;
+        this.intervalEnd = new AtomicLong(System.nanoTime() + interval);
+        if (target > 0) {
+            logger.info("Load shedding: target delay {} ms, interval {} ms", targetDelay, TimeUnit.NANOSECONDS.toMillis(interval));
+        }
+    }
+
+    /**
+     * Registers the AdmissionControl MBean with the platform MBean server.
+     */
+    void register() {
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            logger.warn("Unable to register {} MBean. {}", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters the AdmissionControl MBean, if it was registered.
+     */
+    void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.debug("Unable to unregister {} MBean. {}", OBJECT_NAME, e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Checks if a new request can be queued. Queued requests must then be started, or cancelled if they cannot be run.
+     *
+     * @param critical Checks if the request is critical.
+     * @return True if the request is queued, false if it is shed.
+     */
+    boolean offer(BooleanSupplier critical) {
+        if (overloaded && queued.get() >= queueLimit && !critical.getAsBoolean()) {
+            shed.increment();
+            return false;
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a queued request which could not be run.
+     */
+    void cancel() {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Checks if a queued request can be started, now that a request handler thread has taken it from the queue. Must
+     * be followed by finish() once a started request is complete.
+     *
+     * @param queuedSince Time the request was queued, from System.nanoTime().
+     * @param critical    Checks if the request is critical.
+     * @return True if the request is started, false if it is shed.
+     */
+    boolean start(long queuedSince, BooleanSupplier critical) {
+        queued.decrementAndGet();
+        if (target > 0) {
+            long now = System.nanoTime();
+            long delay = now - queuedSince;
+            updateOverloaded(now, delay);
+            if (delay > (overloaded ? target : interval) && !critical.getAsBoolean()) {
+                shed.increment();
+                return false;
+            }
+        }
+        inFlight.incrementAndGet();
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * Records that a started request is complete.
+     */
+    void finish() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gets how long clients of shed requests should wait before retrying.
+     *
+     * @return The interval, in whole seconds, at least 1.
+     */
+    long getRetryAfter() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(interval + TimeUnit.SECONDS.toNanos(1) - 1));
+    }
+
+    @Override
+    public int getQueued() {
+        return queued.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.sum();
+    }
+
+    @Override
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * Records how long a request waited, and at the end of each interval, decides if the server is overloaded: if no
+     * request started in the interval waited less than the target delay. An interval in which no request was started
+     * is not overloaded.
+     *
+     * @param now   Current time, from System.nanoTime().
+     * @param delay How long the request waited.
+     */
+    private void updateOverloaded(long now, long delay) {
+        long end = intervalEnd.get();
+        if (now - end < 0 || !intervalEnd.compareAndSet(end, now + interval)) {
+            minimumDelay.accumulateAndGet(delay, Math::min);
+            return;
+        }
+        long minimum = minimumDelay.getAndSet(delay);
+        boolean wasOverloaded = overloaded;
+        overloaded = minimum != Long.MAX_VALUE && minimum > target;
+        if (overloaded && !wasOverloaded) {
+            logger.warn("Server overloaded, requests waited at least {} ms for a request handler thread, shedding requests. {} queued, {} in flight",
+                    TimeUnit.NANOSECONDS.toMillis(minimum), queued.get(), inFlight.get());
+        } else if (!overloaded && wasOverloaded) {
+            logger.info("Server no longer overloaded, {} requests shed in total", shed.sum());
+        }
+    }
+}
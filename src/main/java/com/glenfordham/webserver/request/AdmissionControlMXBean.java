@@ -0,0 +1,43 @@
+package com.glenfordham.webserver.request;
+
+/**
+ * Management interface of AdmissionControl, registered with the platform MBean server so that the request queue and
+ * load shedding can be watched with JConsole or any other JMX client.
+ */
+public interface AdmissionControlMXBean {
+
+    /**
+     * Gets the number of requests waiting for a request handler thread.
+     *
+     * @return The current queue depth.
+     */
+    int getQueued();
+
+    /**
+     * Gets the number of requests being run by request handler threads.
+     *
+     * @return The number of requests in flight.
+     */
+    int getInFlight();
+
+    /**
+     * Gets the number of requests run since the server started.
+     *
+     * @return The number of admitted requests.
+     */
+    long getAdmitted();
+
+    /**
+     * Gets the number of requests shed with a 503 response since the server started.
+     *
+     * @return The number of shed requests.
+     */
+    long getShed();
+
+    /**
+     * Checks if requests are currently being shed.
+     *
+     * @return True if the server is overloaded.
+     */
+    boolean isOverloaded();
+}
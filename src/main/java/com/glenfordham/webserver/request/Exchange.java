@@ -0,0 +1,43 @@
+package com.glenfordham.webserver.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The response side of a single HTTP request, provided by the server engine which received it. The status code and
+ * headers are sent with the start of the body, so headers must be set before then.
+ */
+public interface Exchange {
+
+    /**
+     * Sets a response header.
+     *
+     * @param name  Header name.
+     * @param value Header value.
+     */
+    void setHeader(String name, String value);
+
+    /**
+     * Sends the status code and a complete body, with its Content-Length.
+     *
+     * @param status      HTTP status code.
+     * @param contentType Content type of the body, or null if it has none.
+     * @param body        The complete body.
+     * @throws IOException If the response cannot be written.
+     */
+    void send(int status, String contentType, byte[] body) throws IOException;
+
+    /**
+     * Sends the status code, and opens a stream for a body whose size is not known up front.
+     *
+     * @param status HTTP status code.
+     * @return The OutputStream of the response body.
+     * @throws IOException If the response cannot be written.
+     */
+    OutputStream stream(int status) throws IOException;
+
+    /**
+     * Completes the response. Nothing can be written afterwards.
+     */
+    void complete();
+}
@@ -0,0 +1,54 @@
+package com.glenfordham.webserver.request;
+
+import com.glenfordham.webserver.automation.handler.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The Response given to a request handler, which writes to the Exchange of the request and keeps track of whether
+ * anything was written, so the pipeline knows whether to send a static response instead.
+ */
+class HandlerResponse implements Response {
+
+    private static final int STATUS_OK = 200;
+
+    private final Exchange exchange;
+    // Set once the whole body has been written, after which nothing else can be written
+    private boolean complete = false;
+    private OutputStream stream = null;
+
+    /**
+     * Creates the Response of a request.
+     *
+     * @param exchange The Exchange of the request.
+     */
+    HandlerResponse(Exchange exchange) {
+        this.exchange = exchange;
+    }
+
+    @Override
+    public void write(byte[] body) throws IOException {
+        if (isWritten()) {
+            throw new IllegalStateException("Response body has already been written");
+        }
+        complete = true;
+        exchange.send(STATUS_OK, null, body);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (complete) {
+            throw new IllegalStateException("Response body has already been written");
+        }
+        if (stream == null) {
+            stream = exchange.stream(STATUS_OK);
+        }
+        return stream;
+    }
+
+    @Override
+    public boolean isWritten() {
+        return complete || stream != null;
+    }
+}
@@ -0,0 +1,245 @@
+package com.glenfordham.webserver.request;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limits the rate of requests from each client address, and locks out client addresses after repeated failed
+ * authentication attempts. Requests are checked before they are handed to a request handler thread, so that rejected
+ * requests cost no configuration lookup or validation.
+ * <p>
+ * Limits are kept by the address of the connected client, which is the address of the proxy if the server is behind a
+ * reverse proxy, so all clients of the proxy share one limit, and can be locked out together. Forwarded addresses are
+ * not trusted, as any client could set them. Authentication tokens are not limited, as a client could otherwise use up
+ * the limit of a token it does not know the secret of.
+ * <p>
+ * Each client address has a token bucket, which allows the configured number of requests per second, in bursts of up
+ * to a second's worth of requests. The bucket is kept as the single time at which it will next be full, so taking from
+ * it is one compare-and-set. Buckets are held in a fixed size table, so memory use is bounded however many addresses
+ * are seen. A full bucket holds no state, so its slot can be reused by another address; if every
+ * slot an address can use is in use, the least recently limited one is replaced. Nothing is locked, so a burst of
+ * requests from a new address at the same moment may briefly be given two buckets.
+ */
+public class RateLimiter {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // Slots in each table, must be a power of two
+    private static final int TABLE_SIZE = 4096;
+    // Number of slots each key can be held in
+    private static final int PROBES = 8;
+    // Requests up to a second ahead of the allowed rate are allowed, as a burst
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicReferenceArray<Bucket> clients = new AtomicReferenceArray<>(TABLE_SIZE);
+    private final long interval;
+    private final int maxFailures;
+    private final long lockoutNanos;
+
+    /**
+     * Creates a rate limiter.
+     *
+     * @param requestsPerSecond Requests allowed per second from each client address, or 0 for no limit.
+     * @param maxFailures       Failed authentication attempts from a client address before it is locked out, or 0 for
+     *                          no lockout.
+     * @param lockoutSeconds    How long a client address is locked out for, in seconds. Failed attempts further apart
+     *                          than this are not counted together.
+     */
+    public RateLimiter(int requestsPerSecond, int maxFailures, int lockoutSeconds) {
+        this.interval = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+        this.maxFailures = Math.max(0, maxFailures);
+        this.lockoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, lockoutSeconds));
+        if (interval > 0) {
+            logger.info("Rate limit: {} requests per second per client address", requestsPerSecond);
+        }
+        if (this.maxFailures > 0) {
+            logger.info("Authentication lockout: {} seconds after {} failed attempts", lockoutSeconds, maxFailures);
+        }
+    }
+
+    /**
+     * Checks if a request is allowed, taking it from the bucket of its client address.
+     *
+     * @param clientAddress Address of the client.
+     * @return 0 if the request is allowed, otherwise the number of seconds the client should wait before retrying.
+     */
+    long check(String clientAddress) {
+        long now = System.nanoTime();
+        if (maxFailures > 0) {
+            Bucket client = find(clients, clientAddress, now, false);
+            if (client != null && client.lockedUntil - now > 0) {
+                return toRetrySeconds(client.lockedUntil - now);
+            }
+        }
+        if (interval == 0) {
+            return 0;
+        }
+        long wait = find(clients, clientAddress, now, true).take(now, interval);
+        return wait > 0 ? toRetrySeconds(wait) : 0;
+    }
+
+    /**
+     * Records a failed authentication attempt from a client address, locking it out once it has made too many.
+     *
+     * @param clientAddress Address of the client.
+     */
+    void failed(String clientAddress) {
+        if (maxFailures == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Bucket client = find(clients, clientAddress, now, true);
+        if (now - client.lastFailure > lockoutNanos) {
+            client.failures.set(0);
+        }
+        client.lastFailure = now;
+        // Only the attempt which reaches the limit locks the client out
+        int failures = client.failures.incrementAndGet();
+        if (failures == maxFailures) {
+            client.failures.set(0);
+            client.lockedUntil = now + lockoutNanos;
+            logger.warn("Client {} locked out for {} seconds after {} failed authentication attempts",
+                    clientAddress, TimeUnit.NANOSECONDS.toSeconds(lockoutNanos), failures);
+        }
+    }
+
+    /**
+     * Records a successful authentication from a client address, so earlier failed attempts no longer count towards a
+     * lockout.
+     *
+     * @param clientAddress Address of the client.
+     */
+    void succeeded(String clientAddress) {
+        if (maxFailures == 0) {
+            return;
+        }
+        Bucket client = find(clients, clientAddress, System.nanoTime(), false);
+        if (client != null && client.failures.get() != 0) {
+            client.failures.set(0);
+        }
+    }
+
+    /**
+     * Finds the bucket of a key, creating it if it is not held. A new bucket is placed in the first of the key's slots
+     * which is empty or holds no state, otherwise in place of the least recently limited bucket.
+     *
+     * @param table  Table of buckets.
+     * @param key    Client address.
+     * @param now    Current time, from System.nanoTime().
+     * @param create True to create the bucket if the key is not held.
+     * @return The bucket, or null if the key is not held and create is false.
+     */
+    private Bucket find(AtomicReferenceArray<Bucket> table, String key, long now, boolean create) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        int free = -1;
+        int oldest = -1;
+        Bucket oldestBucket = null;
+        Bucket freeBucket = null;
+        for (int i = 0; i < PROBES; i++) {
+            int index = (hash + i) & (TABLE_SIZE - 1);
+            Bucket bucket = table.get(index);
+            if (bucket == null) {
+                // Buckets are replaced but never removed, so the key is not held in a later slot
+                if (free < 0) {
+                    free = index;
+                }
+                break;
+            }
+            if (bucket.key.equals(key)) {
+                return bucket;
+            }
+            if (free < 0 && bucket.isIdle(now, lockoutNanos)) {
+                free = index;
+                freeBucket = bucket;
+            }
+            if (oldestBucket == null || bucket.full.get() - oldestBucket.full.get() < 0) {
+                oldest = index;
+                oldestBucket = bucket;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        Bucket bucket = new Bucket(key, now, lockoutNanos);
+        int index = free >= 0 ? free : oldest;
+        Bucket expected = free >= 0 ? freeBucket : oldestBucket;
+        // If another thread changed the slot first, the new bucket is still used for this request, but is not kept
+        table.compareAndSet(index, expected, bucket);
+        return bucket;
+    }
+
+    /**
+     * Rounds a wait up to whole seconds, for the Retry-After header.
+     *
+     * @param nanos Wait in nanoseconds.
+     * @return Wait in seconds, at least 1.
+     */
+    private static long toRetrySeconds(long nanos) {
+        return Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * The token bucket and failed authentication attempts of a client address.
+     */
+    private static final class Bucket {
+
+        private final String key;
+        // Time at which the bucket will be full again, or earlier if it is already full
+        private final AtomicLong full;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long lastFailure;
+        private volatile long lockedUntil;
+
+        /**
+         * Creates a full bucket.
+         *
+         * @param key          Client address.
+         * @param now          Current time, from System.nanoTime().
+         * @param lockoutNanos How long a client address is locked out for.
+         */
+        private Bucket(String key, long now, long lockoutNanos) {
+            this.key = key;
+            this.full = new AtomicLong(now);
+            this.lastFailure = now - lockoutNanos - 1;
+            this.lockedUntil = now;
+        }
+
+        /**
+         * Takes a request from the bucket, if it is not empty.
+         *
+         * @param now      Current time, from System.nanoTime().
+         * @param interval Time taken for the bucket to refill by one request.
+         * @return 0 if the request was taken, otherwise the time until the bucket has room, in nanoseconds.
+         */
+        private long take(long now, long interval) {
+            while (true) {
+                long current = full.get();
+                long next = (current - now > 0 ? current : now) + interval;
+                long ahead = next - now - BURST_NANOS;
+                if (ahead > 0) {
+                    return ahead;
+                }
+                if (full.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Checks if the bucket holds no state, so its slot can be used by another key.
+         *
+         * @param now          Current time, from System.nanoTime().
+         * @param lockoutNanos How long a client address is locked out for.
+         * @return True if the bucket is full, not locked out, and has no recent failed authentication attempts.
+         */
+        private boolean isIdle(long now, long lockoutNanos) {
+            return full.get() - now <= 0 && lockedUntil - now <= 0 && now - lastFailure > lockoutNanos;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.glenfordham.webserver.request;
+
+import com.glenfordham.webserver.automation.Automation;
+import com.glenfordham.webserver.automation.Outcome;
+import com.glenfordham.webserver.automation.config.AutomationConfig;
+import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.concurrent.VirtualThreads;
+import com.glenfordham.webserver.servlet.parameter.ParameterException;
+import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs requests through the Automation Server, the same way for every server engine. The server engine parses the
+ * request, and the pipeline runs it on a request handler thread, so that slow requests such as carport door operations
+ * do not hold a web server thread while they wait, and then completes the response through the engine's Exchange.
+ */
+public class RequestPipeline {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // How long to wait for running requests to finish when the pipeline is closed, in seconds
+    private static final long SHUTDOWN_WAIT = 10;
+    // How long clients of requests rejected by a bulkhead should wait before retrying, in seconds
+    private static final String BUSY_RETRY_AFTER = "1";
+
+    private final Automation automation;
+    private final String configLocation;
+    private final String configCache;
+    private final boolean configReload;
+    private final boolean debug;
+    private final boolean warmUp;
+    private final boolean virtualThreads;
+    private final int handlerThreads;
+    private final RateLimiter rateLimiter;
+    private final int targetDelay;
+    private ExecutorService handlerExecutor = null;
+    private AdmissionControl admissionControl = null;
+
+    /**
+     * Creates a request pipeline. Nothing is loaded until it is initialised.
+     *
+     * @param configLocation Location of config.xml.
+     * @param configCache    Location of the config.xml cache, or null if it is not cached.
+     * @param configReload   True if config.xml is reloaded when it changes.
+     * @param debug          True if errors are logged with their stack traces.
+     * @param warmUp         True if the configuration is warmed up before the first request.
+     * @param virtualThreads True if request handlers run on virtual threads.
+     * @param handlerThreads Number of request handler threads, when not running on virtual threads.
+     * @param rateLimiter    RateLimiter which requests from clients which are not pre-authenticated are checked by.
+     * @param targetDelay    Time requests should wait for a request handler thread before requests are shed, in
+     *                       milliseconds, or 0 to never shed requests.
+     * @param requestTimeout Time requests have to complete from when they are received, in milliseconds, unless
+     *                       their request policy sets a timeout, or 0 for no limit.
+     */
+    public RequestPipeline(String configLocation, String configCache, boolean configReload, boolean debug, boolean warmUp, boolean virtualThreads, int handlerThreads,
+                           RateLimiter rateLimiter, int targetDelay, int requestTimeout) {
+        this.automation = new Automation(requestTimeout);
+        this.configLocation = configLocation;
+        this.configCache = configCache;
+        this.configReload = configReload;
+        this.debug = debug;
+        this.warmUp = warmUp;
+        this.virtualThreads = virtualThreads;
+        this.handlerThreads = handlerThreads;
+        this.rateLimiter = rateLimiter;
+        this.targetDelay = targetDelay;
+    }
+
+    /**
+     * Loads config.xml, warms it up if selected, and starts the request handler threads. Exits the application if
+     * config.xml cannot be loaded and will not be reloaded.
+     */
+    public void init() {
+        long startTime = System.nanoTime();
+        if (configCache != null) {
+            AutomationConfig.useCache(configCache);
+        }
+        // Reload config.xml and its included files in the background when they change, rather than on every request.
+        // Watching starts before the first load, so that files are only parsed again when they change
+        if (configReload) {
+            AutomationConfig.watch(configLocation);
+        }
+
+        try {
+            // Initialise config.xml and config handling at startup
+            AutomationConfig.load(configLocation);
+            if (warmUp) {
+                automation.warmUp();
+            }
+        } catch (ParameterException e) {
+            logger.warn("Warm-up did not complete. {}", e.getMessage());
+        } catch (AutomationConfigException e) {
+            if (debug) {
+                logger.error(String.format("Unable to initialise configuration file. %s", e.getMessage()), e);
+            } else {
+                logger.error(String.format("Unable to initialise configuration file. %s", e.getMessage()));
+            }
+
+            // If configuration reload is off, exit the application
+            if (!configReload) {
+                System.exit(1);
+            } else {
+                logger.warn("Configuration will be attempted to be reloaded when the file is next changed.");
+            }
+        }
+
+        // Blocking in a handler costs no platform thread on a virtual thread, so there is no need to limit them, and
+        // requests do not queue
+        if (virtualThreads) {
+            handlerExecutor = VirtualThreads.newExecutor("request-handler-");
+            admissionControl = new AdmissionControl(targetDelay, Integer.MAX_VALUE);
+            logger.info("Request handlers run on virtual threads");
+        }
+        if (handlerExecutor == null) {
+            handlerExecutor = createHandlerExecutor(handlerThreads);
+            admissionControl = new AdmissionControl(targetDelay, handlerThreads);
+            logger.info("Request handler threads: {}", handlerThreads);
+        }
+        admissionControl.register();
+        logger.info("Request pipeline initialised in {} ms", (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    /**
+     * Stops the request handler threads, waiting a short time for running requests to finish.
+     */
+    public void close() {
+        if (admissionControl != null) {
+            admissionControl.unregister();
+        }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+            try {
+                if (!handlerExecutor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.SECONDS)) {
+                    logger.warn("Requests still running after {} seconds, stopping anyway", SHUTDOWN_WAIT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hands a request to a request handler thread. The response is completed by the handler thread, or by the calling
+     * thread with a 429 response if the client is over its rate limit or locked out, or a 503 response if the server
+     * is overloaded or the pipeline is shutting down. Rate limits are checked before anything else, so rejected
+     * requests cost little.
+     *
+     * @param parameterMap     Parameters of the HTTP request.
+     * @param clientAddress    Address of the client, or null if it has none.
+     * @param preAuthenticated True if the request was received on the Unix domain socket, so needs no authentication
+     *                         token, and is not rate limited.
+     * @param exchange         Exchange of the request.
+     */
+    public void submit(ParameterMap parameterMap, String clientAddress, boolean preAuthenticated, Exchange exchange) {
+        String client = preAuthenticated ? null : clientAddress;
+        if (client != null) {
+            long retryAfter = rateLimiter.check(client);
+            if (retryAfter > 0) {
+                logger.debug("Request from {} rejected, over rate limit or locked out", client);
+                exchange.setHeader("Retry-After", Long.toString(retryAfter));
+                sendStaticResponse(StaticResponse.TOO_MANY_REQUESTS, exchange);
+                exchange.complete();
+                return;
+            }
+        }
+        BooleanSupplier critical = () -> automation.isCritical(parameterMap, preAuthenticated);
+        if (!admissionControl.offer(critical)) {
+            shed(exchange);
+            return;
+        }
+        long queuedSince = System.nanoTime();
+        try {
+            handlerExecutor.execute(() -> {
+                if (!admissionControl.start(queuedSince, critical)) {
+                    shed(exchange);
+                    return;
+                }
+                try {
+                    processRequest(parameterMap, client, preAuthenticated, queuedSince, exchange);
+                } finally {
+                    admissionControl.finish();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Only happens while the server is shutting down
+            admissionControl.cancel();
+            logger.warn("Request not processed, server is shutting down");
+            sendStaticResponse(StaticResponse.SERVICE_UNAVAILABLE, exchange);
+            exchange.complete();
+        }
+    }
+
+    /**
+     * Processes a request on a request handler thread, and completes the response. If the request handler does not
+     * write a response, a static response is sent with a status code for the outcome of the request: 401 if the
+     * authentication token is not correct, 404 if the request is not valid or not configured, 500 if the request
+     * failed, 503 if no configuration is loaded, or too many of the same requests are already running, and 504 if the
+     * request did not complete before its deadline.
+     *
+     * @param parameterMap     Parameters of the HTTP request.
+     * @param client           Address of the client, or null if it is not rate limited.
+     * @param preAuthenticated True if the request needs no authentication token.
+     * @param receivedAt       Time the request was received, from System.nanoTime(), which its deadline is measured
+     *                         from.
+     * @param exchange         Exchange of the request.
+     */
+    private void processRequest(ParameterMap parameterMap, String client, boolean preAuthenticated, long receivedAt, Exchange exchange) {
+        HandlerResponse response = new HandlerResponse(exchange);
+        StaticResponse staticResponse;
+        try {
+            Outcome outcome = automation.processHttpRequest(parameterMap, preAuthenticated, receivedAt, response);
+            if (client != null) {
+                if (outcome == Outcome.UNAUTHORISED) {
+                    rateLimiter.failed(client);
+                } else if (outcome == Outcome.COMPLETED) {
+                    rateLimiter.succeeded(client);
+                }
+            }
+            staticResponse = switch (outcome) {
+                case COMPLETED -> StaticResponse.OK;
+                case UNAUTHORISED -> StaticResponse.UNAUTHORISED;
+                case INVALID, NOT_CONFIGURED -> StaticResponse.NOT_FOUND;
+                case BUSY -> {
+                    exchange.setHeader("Retry-After", BUSY_RETRY_AFTER);
+                    yield StaticResponse.BUSY;
+                }
+                case TIMED_OUT -> StaticResponse.GATEWAY_TIMEOUT;
+            };
+        } catch (AutomationConfigException e) {
+            logger.error("Request not processed, configuration is not loaded. {}", e.getMessage());
+            staticResponse = StaticResponse.SERVICE_UNAVAILABLE;
+        } catch (ParameterException e) {
+            logger.error("Request not processed. {}", e.getMessage());
+            staticResponse = StaticResponse.NOT_FOUND;
+        } catch (Exception e) {
+            if (debug) {
+                logger.error(String.format("Unexpected error occurred processing request. %s", e.getMessage()), e);
+            } else {
+                logger.error(String.format("Unexpected error occurred processing request. %s", e.getMessage()));
+            }
+            staticResponse = StaticResponse.INTERNAL_SERVER_ERROR;
+        }
+        try {
+            // Once a request handler has written a response, its status code has already been sent
+            if (!response.isWritten()) {
+                sendStaticResponse(staticResponse, exchange);
+            }
+        } finally {
+            exchange.complete();
+        }
+    }
+
+    /**
+     * Sheds a request while the server is overloaded, with a 503 response telling the client when to retry, and
+     * completes the response.
+     *
+     * @param exchange Exchange of the request.
+     */
+    private void shed(Exchange exchange) {
+        logger.debug("Request shed, server is overloaded");
+        exchange.setHeader("Retry-After", Long.toString(admissionControl.getRetryAfter()));
+        sendStaticResponse(StaticResponse.SERVICE_UNAVAILABLE, exchange);
+        exchange.complete();
+    }
+
+    /**
+     * Sends a static response, logging rather than throwing if the client has gone away.
+     *
+     * @param staticResponse The StaticResponse to send.
+     * @param exchange       Exchange of the request.
+     */
+    private static void sendStaticResponse(StaticResponse staticResponse, Exchange exchange) {
+        try {
+            staticResponse.send(exchange);
+        } catch (IOException e) {
+            logger.debug("Unable to send response. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the executor which runs request handlers. Threads are daemon threads, so that a stuck request does not
+     * prevent the application from exiting.
+     *
+     * @param threads Number of request handler threads.
+     * @return A fixed size ExecutorService, queueing requests while all threads are busy.
+     */
+    private static ExecutorService createHandlerExecutor(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "request-handler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,88 @@
+package com.glenfordham.webserver.request;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Static responses sent when a request handler does not write a response, or a request cannot be run. Bodies are
+ * encoded once, when the class is loaded, and sent with their Content-Length, so clients and proxies can keep the
+ * connection open.
+ */
+public enum StaticResponse {
+    OK(
+            200,
+            "Nothing to see here folks."
+    ),
+    BAD_REQUEST(
+            400,
+            "Bad request."
+    ),
+    UNAUTHORISED(
+            401,
+            "Not authorised."
+    ),
+    NOT_FOUND(
+            404,
+            "Nothing to see here folks."
+    ),
+    METHOD_NOT_ALLOWED(
+            405,
+            "Method not allowed."
+    ),
+    TOO_MANY_REQUESTS(
+            429,
+            "Too many requests."
+    ),
+    INTERNAL_SERVER_ERROR(
+            500,
+            "Request failed."
+    ),
+    SERVICE_UNAVAILABLE(
+            503,
+            "Service unavailable."
+    ),
+    BUSY(
+            503,
+            "Too many of these requests are running, try again later."
+    ),
+    GATEWAY_TIMEOUT(
+            504,
+            "Request did not complete in time."
+    );
+
+    private static final String CONTENT_TYPE = "text/html;charset=UTF-8";
+
+    private static final String TEMPLATE =
+            """
+            <html lang="en">
+            \t<head>
+            \t\t<title>Web Server</title>
+            \t</head>
+            \t<body>
+            \t\t<div class='main'>
+                  \t\t%s
+            \t\t</div>
+            \t</body>
+            </html>
+            
+            """;
+
+    private final int status;
+    private final byte[] body;
+
+    StaticResponse(int status, String message) {
+        this.status = status;
+        this.body = String.format(TEMPLATE, message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sends the response, with its status code, content type and Content-Length. Must be called before anything else
+     * is written to the response.
+     *
+     * @param exchange The Exchange of the request.
+     * @throws IOException If the body cannot be written.
+     */
+    public void send(Exchange exchange) throws IOException {
+        exchange.send(status, CONTENT_TYPE, body);
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Container for the request pipeline shared by the server engines, which runs requests through the Automation Server
+ * and sends their responses.
+ */
+package com.glenfordham.webserver.request;
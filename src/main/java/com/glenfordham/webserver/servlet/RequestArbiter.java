@@ -1,87 +1,78 @@
 package com.glenfordham.webserver.servlet;
 
-import com.glenfordham.utils.StreamUtils;
-import com.glenfordham.webserver.automation.Automation;
 import com.glenfordham.webserver.automation.config.AutomationConfig;
-import com.glenfordham.webserver.automation.config.AutomationConfigException;
+import com.glenfordham.webserver.request.RateLimiter;
+import com.glenfordham.webserver.request.RequestPipeline;
 import com.glenfordham.webserver.servlet.parameter.ParameterMap;
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
-import jakarta.servlet.ServletOutputStream;
-import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
-@WebServlet(
-        name = "RequestArbiter",
-        urlPatterns = {""},
-        loadOnStartup = 1
-)
+/**
+ * The only servlet of the Automation Server, registered programmatically by TomcatEngine on the context root, with
+ * asynchronous support. Requests are run by the RequestPipeline shared with the other server engines.
+ */
 public class RequestArbiter extends HttpServlet {
 
-    private static final Logger logger = LogManager.getLogger();
+    public static final String HANDLER_THREADS_KEY = "handlerThreads";
+    public static final String VIRTUAL_THREADS_KEY = "virtualThreads";
+    public static final String WARM_UP_KEY = "warmUp";
+    public static final String RATE_LIMIT_KEY = "rateLimit";
+    public static final String AUTH_FAILURE_LIMIT_KEY = "authFailureLimit";
+    public static final String LOCKOUT_TIME_KEY = "lockoutTime";
+    public static final String TARGET_DELAY_KEY = "targetDelay";
+    public static final String REQUEST_TIMEOUT_KEY = "requestTimeout";
+    // Request attribute set on requests received on the Unix domain socket, whose clients are allowed by file permissions
+    public static final String UNIX_SOCKET_ATTRIBUTE = "com.glenfordham.webserver.unixSocket";
+
+    private RequestPipeline pipeline = null;
 
     @Override
     public void init() throws ServletException {
         super.init();
-        try {
-            // Initialise config.xml and config handling at servlet startup
-            AutomationConfig.load((String) this.getServletContext().getAttribute(AutomationConfig.CONFIG_LOCATION_KEY));
-            if (this.getServletContext().getAttribute(AutomationConfig.CONFIG_RELOAD_KEY).equals(true)) {
-                AutomationConfig.setConfigReload(true);
-            }
-        } catch (AutomationConfigException e) {
-            if (this.getServletContext().getAttribute(AutomationConfig.CONFIG_DEBUG_KEY).equals(true)) {
-                logger.error(String.format("Unable to initialise configuration file. %s", e.getMessage()), e);
-            } else {
-                logger.error(String.format("Unable to initialise configuration file. %s", e.getMessage()));
-            }
+        pipeline = new RequestPipeline(
+                (String) this.getServletContext().getAttribute(AutomationConfig.CONFIG_LOCATION_KEY),
+                (String) this.getServletContext().getAttribute(AutomationConfig.CONFIG_CACHE_KEY),
+                this.getServletContext().getAttribute(AutomationConfig.CONFIG_RELOAD_KEY).equals(true),
+                this.getServletContext().getAttribute(AutomationConfig.CONFIG_DEBUG_KEY).equals(true),
+                this.getServletContext().getAttribute(WARM_UP_KEY).equals(true),
+                this.getServletContext().getAttribute(VIRTUAL_THREADS_KEY).equals(true),
+                (Integer) this.getServletContext().getAttribute(HANDLER_THREADS_KEY),
+                new RateLimiter(
+                        (Integer) this.getServletContext().getAttribute(RATE_LIMIT_KEY),
+                        (Integer) this.getServletContext().getAttribute(AUTH_FAILURE_LIMIT_KEY),
+                        (Integer) this.getServletContext().getAttribute(LOCKOUT_TIME_KEY)),
+                (Integer) this.getServletContext().getAttribute(TARGET_DELAY_KEY),
+                (Integer) this.getServletContext().getAttribute(REQUEST_TIMEOUT_KEY));
+        pipeline.init();
+    }
 
-            // If configuration reload is off, exit the application
-            if (this.getServletContext().getAttribute(AutomationConfig.CONFIG_RELOAD_KEY).equals(false)) {
-                System.exit(1);
-            } else {
-                logger.warn("Configuration will be attempted to be reloaded on next request.");
-            }
+    @Override
+    public void destroy() {
+        if (pipeline != null) {
+            pipeline.close();
         }
+        super.destroy();
     }
 
-    private static final String GENERIC_OUTPUT =
-            """
-            <html lang="en">
-            \t<head>
-            \t\t<title>Web Server</title>
-            \t</head>
-            \t<body>
-            \t\t<div class='main'>
-                  \t\tNothing to see here folks.
-            \t\t</div>
-            \t</body>
-            </html>
-            
-            """;
-
+    /**
+     * Accepts a request and hands it to the request pipeline, which completes the response on a request handler
+     * thread.
+     *
+     * @param req  The HTTP request.
+     * @param resp The HTTP response.
+     */
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
+        // Create ParameterMap from the raw query string before going async, as the request is parsed here
+        ParameterMap parameterMap = new ParameterMap(req.getQueryString());
+        boolean preAuthenticated = Boolean.TRUE.equals(req.getAttribute(UNIX_SOCKET_ATTRIBUTE));
 
-        // Get output stream for client to be optionally used in various request handlers
-        try (ServletOutputStream clientStream = resp.getOutputStream()) {
-
-            // Pass context containing configuration, create ParameterMap from request ugly String[] map, and attempt to process the request
-            new Automation().processHttpRequest(getServletContext(), new ParameterMap(req.getParameterMap()), clientStream);
-
-            // If stream still ready after handler processing, assume nothing was written, and return generic response
-            if (clientStream.isReady()) {
-                StreamUtils.writeString(GENERIC_OUTPUT, clientStream);
-            }
-        } catch (Exception e) {
-            if (this.getServletContext().getAttribute(AutomationConfig.CONFIG_DEBUG_KEY).equals(true)) {
-                logger.error(String.format("Unexpected error occurred in servlet. %s", e.getMessage()), e);
-            } else {
-                logger.error(String.format("Unexpected error occurred in servlet. %s", e.getMessage()));
-            }
-        }
+        AsyncContext asyncContext = req.startAsync();
+        // Handlers limit how long they run for, so the container does not time out the request
+        asyncContext.setTimeout(0);
+        pipeline.submit(parameterMap, req.getRemoteAddr(), preAuthenticated, new ServletExchange(asyncContext));
     }
 }
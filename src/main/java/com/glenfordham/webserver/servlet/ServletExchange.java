@@ -0,0 +1,53 @@
+package com.glenfordham.webserver.servlet;
+
+import com.glenfordham.webserver.request.Exchange;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The Exchange of a request received by the servlet, which writes to the HTTP response of its AsyncContext.
+ */
+class ServletExchange implements Exchange {
+
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+
+    /**
+     * Creates the Exchange of an asynchronous request.
+     *
+     * @param asyncContext AsyncContext of the request.
+     */
+    ServletExchange(AsyncContext asyncContext) {
+        this.asyncContext = asyncContext;
+        this.response = (HttpServletResponse) asyncContext.getResponse();
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        response.setHeader(name, value);
+    }
+
+    @Override
+    public void send(int status, String contentType, byte[] body) throws IOException {
+        response.setStatus(status);
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    @Override
+    public OutputStream stream(int status) throws IOException {
+        response.setStatus(status);
+        return response.getOutputStream();
+    }
+
+    @Override
+    public void complete() {
+        asyncContext.complete();
+    }
+}
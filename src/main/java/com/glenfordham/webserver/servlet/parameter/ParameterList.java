@@ -1,21 +1,31 @@
 package com.glenfordham.webserver.servlet.parameter;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Objects;
+import java.util.AbstractList;
 
 /**
  * Defines a list of URL parameters and provides convenience methods for access. URL parameters can appear in a URL
  * multiple times, so this list will sort all values for a given URL parameter key.
+ * <p>
+ * The list is a read-only view of its ParameterMap, and values are only decoded when the list is first read.
  */
-public class ParameterList extends ArrayList<String> {
+public class ParameterList extends AbstractList<String> {
+
+    private final ParameterMap parameterMap;
+    private final String key;
+    private final int firstIndex;
+    private String[] values = null;
 
     /**
-     * Extends a plain ArrayList of Strings to provide convenience methods.
+     * Creates a view of the values of a URL parameter key.
+     *
+     * @param parameterMap The ParameterMap holding the values.
+     * @param key          The URL parameter key, case-insensitive.
+     * @param firstIndex   Index in the ParameterMap of the first appearance of the key.
      */
-    ParameterList() {
-        super();
+    ParameterList(ParameterMap parameterMap, String key, int firstIndex) {
+        this.parameterMap = parameterMap;
+        this.key = key;
+        this.firstIndex = firstIndex;
     }
 
     /**
@@ -32,29 +42,25 @@ public class ParameterList extends ArrayList<String> {
         }
     }
 
-    @Override @SuppressWarnings("unchecked")
-    public boolean equals(Object o) {
-        if (o == this)
-            return true;
-        if (!(o instanceof List))
-            return false;
-
-        ListIterator<String> e1 = listIterator();
-        ListIterator<String> e2 = ((List<String>) o).listIterator();
-        while (e1.hasNext() && e2.hasNext()) {
-            String o1 = e1.next();
-            Object o2 = e2.next();
-            if (!(Objects.equals(o1, o2)))
-                return false;
-        }
-        return !(e1.hasNext() || e2.hasNext());
+    @Override
+    public String get(int index) {
+        return getValues()[index];
     }
 
     @Override
-    public int hashCode() {
-        int hashCode = 1;
-        for (String e : this)
-            hashCode = 31*hashCode + (e==null ? 0 : e.hashCode());
-        return hashCode;
+    public int size() {
+        return getValues().length;
+    }
+
+    /**
+     * Gets the decoded values, decoding them on first use.
+     *
+     * @return The non-blank values of the URL parameter.
+     */
+    private String[] getValues() {
+        if (values == null) {
+            values = parameterMap.decodeValues(key, firstIndex);
+        }
+        return values;
     }
 }
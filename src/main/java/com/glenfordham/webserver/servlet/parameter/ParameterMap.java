@@ -1,124 +1,362 @@
 package com.glenfordham.webserver.servlet.parameter;
 
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Defines a ParameterMap object, used to represent URL parameters that appear in the URL request. Removes the need to
- * handle String arrays required in the regular Servlet request parameter maps.
+ * Defines a ParameterMap object, used to represent URL parameters that appear in the URL request. The raw query string
+ * is parsed once into the positions of each key and value, and keys and values are only decoded when they are used.
+ * Key lookups are case-insensitive.
+ * <p>
+ * A ParameterMap is immutable. Filtering or renaming keys returns a view which shares the parsed query string, rather
+ * than copying it.
  */
-public class ParameterMap extends HashMap<String, ParameterList> {
+public class ParameterMap {
+
+    // Each parsed pair is stored as four positions in the query string: key start, key end, value start, value end
+    private static final int PAIR_SIZE = 4;
+    private static final String[] NO_KEYS = new String[0];
+
+    private final String query;
+    private final int[] positions;
+    // Pairs included in this view, in the order they appear in the query string
+    private final int[] pairs;
+    // Decoded or renamed key of each pair, or null where the raw key text is used. Empty if no key needs decoding
+    private final String[] keys;
+    // ParameterList of each pair in this view, created when first requested
+    private ParameterList[] lists = null;
 
     /**
-     * Extends the default Servlet request parameter map to remove the need to handle String[].
+     * Parses a raw URL query string.
      *
-     * @param requestParams The servlet request parameter map to create the ParameterMap from.
+     * @param queryString The query string, without the leading '?', may be null if the URL has no query string.
      */
-    public ParameterMap(Map<String, String[]> requestParams) {
-        super();
-        for (Map.Entry<String, String[]> entry : requestParams.entrySet()) {
-            ParameterList paramList = new ParameterList();
-            for (String param : requestParams.get(entry.getKey())) {
-                if (!param.isBlank()) {
-                    paramList.add(param);
+    public ParameterMap(String queryString) {
+        query = queryString != null ? queryString : "";
+        int maxPairs = 1;
+        for (int i = 0; i < query.length(); i++) {
+            if (query.charAt(i) == '&') {
+                maxPairs++;
+            }
+        }
+
+        int[] parsed = new int[maxPairs * PAIR_SIZE];
+        String[] decodedKeys = NO_KEYS;
+        int count = 0;
+        int start = 0;
+        while (start <= query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            int keyEnd = query.indexOf('=', start);
+            if (keyEnd < 0 || keyEnd > end) {
+                keyEnd = end;
+            }
+
+            // Parameters without a name are ignored, as are names which cannot be decoded
+            if (keyEnd > start) {
+                boolean encoded = needsDecoding(start, keyEnd);
+                String decodedKey = encoded ? decode(start, keyEnd) : null;
+                if (!encoded || (decodedKey != null && !decodedKey.isEmpty())) {
+                    if (encoded) {
+                        if (decodedKeys == NO_KEYS) {
+                            decodedKeys = new String[maxPairs];
+                        }
+                        decodedKeys[count] = decodedKey;
+                    }
+                    int offset = count * PAIR_SIZE;
+                    parsed[offset] = start;
+                    parsed[offset + 1] = keyEnd;
+                    parsed[offset + 2] = Math.min(keyEnd + 1, end);
+                    parsed[offset + 3] = end;
+                    count++;
                 }
             }
-            this.put(entry.getKey(), paramList);
+            start = end + 1;
+        }
+
+        positions = parsed;
+        keys = decodedKeys;
+        pairs = new int[count];
+        for (int i = 0; i < count; i++) {
+            pairs[i] = i;
         }
     }
 
     /**
-     * Builds a new ParameterMap from the existing map, and then filters it by the parameter list provided.
-     * Only URL parameters in the filter list will be present in the new ParameterMap.
+     * Creates a view of a ParameterMap.
      *
-     * @param filterList List with which to filter the ParameterMap by.
-     * @return A new ParameterMap, filtered to the required URL parameters.
+     * @param source The ParameterMap to share the parsed query string with.
+     * @param pairs  The pairs included in the view.
+     * @param keys   Decoded or renamed keys of each pair.
+     */
+    private ParameterMap(ParameterMap source, int[] pairs, String[] keys) {
+        this.query = source.query;
+        this.positions = source.positions;
+        this.pairs = pairs;
+        this.keys = keys;
+    }
+
+    /**
+     * Gets the values of a URL parameter. Blank values are not included.
+     *
+     * @param key The URL parameter key, case-insensitive.
+     * @return The ParameterList of values, or null if the key is not present.
+     */
+    public ParameterList get(String key) {
+        for (int i = 0; i < pairs.length; i++) {
+            if (keyMatches(pairs[i], key)) {
+                if (lists == null) {
+                    lists = new ParameterList[pairs.length];
+                }
+                if (lists[i] == null) {
+                    lists[i] = new ParameterList(this, key, i);
+                }
+                return lists[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a URL parameter is present, with or without a value.
+     *
+     * @param key The URL parameter key, case-insensitive.
+     * @return True if the key is present.
+     */
+    public boolean containsKey(String key) {
+        for (int pair : pairs) {
+            if (keyMatches(pair, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks that every URL parameter key is one of the allowed keys. No keys are decoded or copied to do so.
+     *
+     * @param allowedKeys The allowed URL parameter keys, case-insensitive.
+     * @return True if every key is allowed.
+     */
+    public boolean containsOnlyKeys(String... allowedKeys) {
+        for (int pair : pairs) {
+            if (!matchesAny(pair, allowedKeys)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if there are no URL parameters.
+     *
+     * @return True if there are no URL parameters.
+     */
+    public boolean isEmpty() {
+        return pairs.length == 0;
+    }
+
+    /**
+     * Gets a view of this ParameterMap which only includes the URL parameters in the filter list. The parsed query
+     * string is shared rather than copied.
+     *
+     * @param filterList List with which to filter the ParameterMap by, case-insensitive.
+     * @return A ParameterMap view, filtered to the required URL parameters.
      */
     public ParameterMap filterByList(List<String> filterList) {
-        ParameterMap filteredParameterMap = (ParameterMap) this.clone();
-        for (String key : this.keySet()) {
-            if (filterList.stream().noneMatch(e->e.equalsIgnoreCase(key))) {
-                filteredParameterMap.remove(key);
+        String[] allowedKeys = filterList.toArray(NO_KEYS);
+        int[] filteredPairs = new int[pairs.length];
+        int count = 0;
+        for (int pair : pairs) {
+            if (matchesAny(pair, allowedKeys)) {
+                filteredPairs[count++] = pair;
+            }
+        }
+        return new ParameterMap(this, Arrays.copyOf(filteredPairs, count), keys);
+    }
+
+    /**
+     * Gets a view of this ParameterMap with some URL parameter keys renamed. The parsed query string is shared rather
+     * than copied.
+     *
+     * @param renames Map of current key, case-insensitive, to new key.
+     * @return A ParameterMap view, with the keys renamed.
+     */
+    public ParameterMap withKeysRenamed(Map<String, String> renames) {
+        String[] renamedKeys = keys.length > 0 ? keys.clone() : new String[positions.length / PAIR_SIZE];
+        for (int pair : pairs) {
+            for (Map.Entry<String, String> rename : renames.entrySet()) {
+                if (keyMatches(pair, rename.getKey())) {
+                    renamedKeys[pair] = rename.getValue();
+                    break;
+                }
             }
         }
-        return filteredParameterMap;
+        return new ParameterMap(this, pairs, renamedKeys);
     }
 
     /**
-     * Translates ParameterMap object to a string which can be used for another HTTP request.
+     * Translates ParameterMap object to a string which can be used for another HTTP request. Each URL parameter keeps
+     * the position of its first appearance in the original query string.
      *
      * @return A safely-encoded URL string built from the ParameterMap.
      */
     public String getAsUrlString() {
-        if (this.size() == 0) {
+        if (pairs.length == 0) {
             return "";
         }
-        List<String> tempList = new ArrayList<>();
-        for (Entry<String, ParameterList> entry : this.entrySet()) {
-            StringBuilder urlPiece = new StringBuilder();
-            if (entry.getValue().isEmpty()) {
-                urlPiece.append(entry.getKey());
-            } else {
-                for (String parameterPiece : entry.getValue()) {
-                    urlPiece.append(entry.getKey()).append(parameterPiece.isBlank() ? "" : "=" + URLEncoder.encode(parameterPiece, StandardCharsets.UTF_8));
+        StringBuilder url = new StringBuilder("?");
+        for (int i = 0; i < pairs.length; i++) {
+            String key = getKey(pairs[i]);
+            // Only the first appearance of each key is written, along with all of its values
+            if (isFirstAppearance(i, key)) {
+                String encodedKey = URLEncoder.encode(key, StandardCharsets.UTF_8);
+                ParameterList values = get(key);
+                if (values.isEmpty()) {
+                    appendPiece(url, encodedKey);
+                } else {
+                    for (String value : values) {
+                        appendPiece(url, encodedKey + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8));
+                    }
                 }
             }
-            tempList.add(urlPiece.toString());
         }
-        return "?" + String.join("&", tempList);
+        return url.toString();
     }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public boolean equals(Object o) {
-        if (o == this) {
-            return true;
+    /**
+     * Decodes the non-blank values of a URL parameter. Used by ParameterList when its values are first needed.
+     *
+     * @param key        The URL parameter key, case-insensitive.
+     * @param firstIndex Index in this view of the first pair with the key.
+     * @return The decoded, non-blank values, in the order they appear.
+     */
+    String[] decodeValues(String key, int firstIndex) {
+        String[] values = new String[pairs.length - firstIndex];
+        int count = 0;
+        for (int i = firstIndex; i < pairs.length; i++) {
+            if (keyMatches(pairs[i], key)) {
+                int offset = pairs[i] * PAIR_SIZE;
+                int valueStart = positions[offset + 2];
+                int valueEnd = positions[offset + 3];
+                String value = needsDecoding(valueStart, valueEnd) ? decode(valueStart, valueEnd) : query.substring(valueStart, valueEnd);
+                if (value != null && !value.isBlank()) {
+                    values[count++] = value;
+                }
+            }
         }
-        if (!(o instanceof Map)) {
-            return false;
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Checks if the key of a pair matches a URL parameter key, ignoring case.
+     *
+     * @param pair Index of the pair.
+     * @param key  The URL parameter key.
+     * @return True if the keys match.
+     */
+    private boolean keyMatches(int pair, String key) {
+        if (pair < keys.length && keys[pair] != null) {
+            return keys[pair].equalsIgnoreCase(key);
         }
-        Map<String, ParameterList> m = (Map<String, ParameterList>) o;
-        if (m.size() != size()) {
-            return false;
+        int keyStart = positions[pair * PAIR_SIZE];
+        int keyLength = positions[pair * PAIR_SIZE + 1] - keyStart;
+        return keyLength == key.length() && query.regionMatches(true, keyStart, key, 0, keyLength);
+    }
+
+    /**
+     * Checks if the key of a pair matches any of the given keys, ignoring case.
+     *
+     * @param pair    Index of the pair.
+     * @param allowed The keys to match against.
+     * @return True if any key matches.
+     */
+    private boolean matchesAny(int pair, String[] allowed) {
+        for (String key : allowed) {
+            if (keyMatches(pair, key)) {
+                return true;
+            }
         }
-        try {
-            for (Entry<String, ParameterList> e : this.entrySet()) {
-                String key = e.getKey();
-                ParameterList value = e.getValue();
-                if (value == null) {
-                    if (!(m.get(key) == null && m.containsKey(key))) {
-                        return false;
-                    }
-                } else {
-                    if (!value.equals(m.get(key))) {
-                        return false;
-                    }
-                    for (int i = 0; i < value.size(); i++) {
-                        if (!this.get(key).get(i).equals(m.get(key).get(i))) {
-                            return false;
-                        }
-                    }
-                }
+        return false;
+    }
+
+    /**
+     * Gets the key of a pair.
+     *
+     * @param pair Index of the pair.
+     * @return The decoded or renamed key.
+     */
+    private String getKey(int pair) {
+        if (pair < keys.length && keys[pair] != null) {
+            return keys[pair];
+        }
+        return query.substring(positions[pair * PAIR_SIZE], positions[pair * PAIR_SIZE + 1]);
+    }
+
+    /**
+     * Checks if a key appears for the first time at an index in this view.
+     *
+     * @param index Index in this view.
+     * @param key   The key at the index.
+     * @return True if no earlier pair has the same key.
+     */
+    private boolean isFirstAppearance(int index, String key) {
+        for (int i = 0; i < index; i++) {
+            if (keyMatches(pairs[i], key)) {
+                return false;
             }
-        } catch (ClassCastException | NullPointerException unused) {
-            return false;
         }
         return true;
     }
 
-    @Override
-    public int hashCode() {
-        int h = 0;
-        for (Entry<String, ParameterList> entry : this.entrySet())
-            h += entry.hashCode();
-        return h;
+    /**
+     * Checks if part of the query string contains escaped characters.
+     *
+     * @param start Start of the part, inclusive.
+     * @param end   End of the part, exclusive.
+     * @return True if the part contains '%' or '+'.
+     */
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = query.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes part of the query string.
+     *
+     * @param start Start of the part, inclusive.
+     * @param end   End of the part, exclusive.
+     * @return The decoded text, or null if the part is not validly encoded.
+     */
+    private String decode(int start, int end) {
+        try {
+            return URLDecoder.decode(query.substring(start, end), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 
-    // ensure provided constructor is used
-    private ParameterMap() {
+    /**
+     * Appends a key or key-value piece to a URL string being built.
+     *
+     * @param url   The URL string being built, starting with '?'.
+     * @param piece The piece to append.
+     */
+    private static void appendPiece(StringBuilder url, String piece) {
+        if (url.length() > 1) {
+            url.append('&');
+        }
+        url.append(piece);
     }
 }